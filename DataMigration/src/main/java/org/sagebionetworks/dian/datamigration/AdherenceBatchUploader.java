@@ -0,0 +1,216 @@
+package org.sagebionetworks.dian.datamigration;
+
+import org.sagebionetworks.bridge.rest.exceptions.BadRequestException;
+import org.sagebionetworks.bridge.rest.exceptions.BridgeSDKException;
+import org.sagebionetworks.bridge.rest.model.AdherenceRecord;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Uploads a participant's adherence records to Bridge in batches.
+ *
+ * Up to UPLOAD_WINDOW batches are in flight at the same time, and the next batch is sent
+ * as soon as any of them finishes. Only the batches that failed are retried.
+ *
+ * The batch size starts at START_BATCH_SIZE and grows each time a full batch succeeds,
+ * up to MAX_BATCH_SIZE. If Bridge rejects a batch as too large, with a 413, the batch is
+ * split in half and each half is retried. When both halves then
+ * succeed, the smaller size is remembered as the largest size Bridge accepts for the rest
+ * of the run. A split where one half is still rejected points at a single oversized record,
+ * so it does not lower the batch size. Any other 400 is a bad record, and is not retried.
+ */
+public class AdherenceBatchUploader {
+
+    public static final int START_BATCH_SIZE = 25;
+    public static final int MAX_BATCH_SIZE = 100;
+    // Maximum number of batches in flight at once, for a single participant
+    public static final int UPLOAD_WINDOW = 4;
+    // Network failures of a batch are retried this many times before giving up
+    public static final int MAX_RETRIES = 2;
+
+    private static final int PAYLOAD_TOO_LARGE = 413;
+
+    /**
+     * Sends a single batch of adherence records to Bridge
+     */
+    public interface BatchRequest {
+        void send(List<AdherenceRecord> batch) throws IOException;
+    }
+
+    private static final AtomicInteger threadCount = new AtomicInteger(0);
+    // Its own pool, so uploads never wait behind, or deadlock with, RequestGraph requests.
+    // It is the same size as the RequestGraph pool, so Bridge sees the same concurrency.
+    private static final ExecutorService executor =
+            Executors.newFixedThreadPool(RequestGraph.MAX_CONCURRENT_REQUESTS, runnable -> {
+                Thread thread = new Thread(runnable,
+                        "adherence-upload-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private int batchSize = START_BATCH_SIZE;
+    private int maxBatchSize = MAX_BATCH_SIZE;
+
+    private int batchesSent = 0;
+    private int batchesRetried = 0;
+
+    /**
+     * @param records to upload
+     * @param request that sends one batch of records to Bridge
+     * @throws IOException the first batch that could not be uploaded,
+     *                     with any other failed batches added as suppressed
+     */
+    public void upload(List<AdherenceRecord> records, BatchRequest request) throws IOException {
+        if (records.isEmpty()) {
+            return;
+        }
+
+        Deque<Batch> pending = new ArrayDeque<>();
+        int size = getBatchSize();
+        for (int i = 0; i < records.size(); i += size) {
+            pending.add(new Batch(records.subList(i, Math.min(records.size(), i + size)), 0, null));
+        }
+
+        CompletionService<Batch> completion = new ExecutorCompletionService<>(executor);
+        List<Throwable> failures = new ArrayList<>();
+        int inFlight = 0;
+
+        while (!pending.isEmpty() || inFlight > 0) {
+            while (inFlight < UPLOAD_WINDOW && !pending.isEmpty()) {
+                Batch batch = pending.poll();
+                completion.submit(() -> {
+                    try {
+                        request.send(batch.records);
+                    } catch (IOException | RuntimeException e) {
+                        batch.failure = e;
+                    }
+                    return batch;
+                });
+                inFlight++;
+            }
+
+            Batch done = take(completion);
+            inFlight--;
+
+            if (done.failure == null) {
+                didSucceed(done.records.size());
+                if (done.split != null && ++done.split.halvesSucceeded == 2) {
+                    // Neither half was too large on its own, so the batch was
+                    didShrink(done.split.largerHalf);
+                }
+            } else if (isTooLarge(done.failure) && done.records.size() > 1) {
+                // Split the batch and try each half on its own
+                int half = done.records.size() / 2;
+                Split split = new Split(done.records.size() - half);
+                didRetry();
+                pending.add(new Batch(done.records.subList(0, half), done.attempt, split));
+                pending.add(new Batch(done.records.subList(half, done.records.size()),
+                        done.attempt, split));
+            } else if (!(done.failure instanceof BadRequestException) &&
+                    !isTooLarge(done.failure) && done.attempt < MAX_RETRIES) {
+                didRetry();
+                pending.add(new Batch(done.records, done.attempt + 1, done.split));
+            } else {
+                failures.add(done.failure);
+            }
+        }
+
+        if (failures.isEmpty()) {
+            return;
+        }
+        Throwable first = failures.get(0);
+        for (int i = 1; i < failures.size(); i++) {
+            first.addSuppressed(failures.get(i));
+        }
+        if (first instanceof IOException) {
+            throw (IOException)first;
+        }
+        throw (RuntimeException)first;
+    }
+
+    public synchronized int getBatchSize() {
+        return batchSize;
+    }
+
+    public synchronized String statsString() {
+        return "Adherence batches sent " + batchesSent + ", retried " + batchesRetried +
+                ", batch size " + batchSize;
+    }
+
+    private synchronized void didSucceed(int size) {
+        batchesSent++;
+        if (size >= batchSize && batchSize < maxBatchSize) {
+            batchSize = Math.min(maxBatchSize, batchSize * 2);
+        }
+    }
+
+    private synchronized void didShrink(int smallerSize) {
+        maxBatchSize = Math.min(maxBatchSize, smallerSize);
+        batchSize = Math.min(batchSize, maxBatchSize);
+    }
+
+    private synchronized void didRetry() {
+        batchesRetried++;
+    }
+
+    /**
+     * @return true if Bridge rejected the request because it was too large,
+     *         and not because of the records in it
+     */
+    static boolean isTooLarge(Exception e) {
+        // A 400 can't be told apart from a validation error that mentions a size or a limit
+        return e instanceof BridgeSDKException &&
+                ((BridgeSDKException)e).getStatusCode() == PAYLOAD_TOO_LARGE;
+    }
+
+    private static Batch take(CompletionService<Batch> completion) throws IOException {
+        try {
+            Future<Batch> future = completion.take();
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while uploading adherence records", e);
+        } catch (ExecutionException e) {
+            // Batch tasks catch their own failures, so this is unexpected
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static class Batch {
+        final List<AdherenceRecord> records;
+        final int attempt;
+        // The split this batch is a half of, or null
+        final Split split;
+        Exception failure = null;
+
+        Batch(List<AdherenceRecord> records, int attempt, Split split) {
+            this.records = records;
+            this.attempt = attempt;
+            this.split = split;
+        }
+    }
+
+    /**
+     * The two halves of a batch Bridge rejected as too large.
+     * Only read and written by the thread that called upload.
+     */
+    private static class Split {
+        final int largerHalf;
+        int halvesSucceeded = 0;
+
+        Split(int largerHalf) {
+            this.largerHalf = largerHalf;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package org.sagebionetworks.dian.datamigration;
+
+import com.google.common.collect.Lists;
+
+import org.sagebionetworks.bridge.rest.ClientManager;
+import org.sagebionetworks.bridge.rest.api.AdherenceRecordsApi;
+import org.sagebionetworks.bridge.rest.api.AssessmentsApi;
+import org.sagebionetworks.bridge.rest.api.ForResearchersApi;
+import org.sagebionetworks.bridge.rest.api.ParticipantReportsApi;
+import org.sagebionetworks.bridge.rest.api.ParticipantsApi;
+import org.sagebionetworks.bridge.rest.api.SchedulesV2Api;
+import org.sagebionetworks.bridge.rest.api.StudyActivityEventsApi;
+import org.sagebionetworks.bridge.rest.model.ClientInfo;
+import org.sagebionetworks.bridge.rest.model.SignIn;
+
+import java.io.IOException;
+
+/**
+ * Everything needed to talk to one Bridge app: the signed in API handles,
+ * and the caches and buffers that only make sense within that app.
+ *
+ * BridgeJavaSdkUtil uses the context bound to the current thread, or the default context
+ * created by BridgeJavaSdkUtil.initialize(), so that more than one app can be migrated
+ * at the same time in the same JVM. See BridgeJavaSdkUtil.withContext.
+ */
+public class BridgeClientContext {
+
+    private final String bridgeId;
+
+    final ForResearchersApi researcherApi;
+    final ParticipantReportsApi reportsApi;
+    final ParticipantsApi participantsApi;
+    final StudyActivityEventsApi activityEventsApi;
+    final AssessmentsApi assessmentsApi;
+    final SchedulesV2Api scheduleApi;
+    final AdherenceRecordsApi adherenceRecordsApi;
+
+    // Participants that have already been looked up, so repeated lookups skip the network
+    public final ParticipantCache participantCache = new ParticipantCache();
+
+    // Merges participant updates made during one participant's unit of work into a single update
+    public final ParticipantUpdateBuffer participantUpdates = new ParticipantUpdateBuffer();
+
+    // Uploads adherence records in concurrent batches, sized to what Bridge accepts
+    public final AdherenceBatchUploader adherenceUploader = new AdherenceBatchUploader();
+
+    // Opt-in disk cache of read-only responses, see BridgeResponseCache for how to enable it
+    public final BridgeResponseCache responseCache;
+
+    // Skips report writes whose content has not changed, see ReportChangeDetector to enable it
+    public ReportChangeDetector reportChangeDetector;
+
+    // When not null, everything is read from this snapshot instead of Bridge, see CohortSnapshot
+    public final CohortSnapshot snapshot;
+
+    // When not null, writes are counted in this plan instead of being sent, see MigrationPlan
+    public volatile MigrationPlan plan = null;
+
+    /**
+     * Signs in to a Bridge app, using the caches and change detection set by the environmental vars,
+     * or returns an offline context if they are set to read from a snapshot.
+     * @param email account for accessing bridge
+     * @param password for email account for accessing bridge
+     * @param bridgeId bridge project identifier
+     * @return a new context for the bridge app
+     * @throws IOException if something went wrong with the network request
+     */
+    public static BridgeClientContext signIn(
+            String email, String password, String bridgeId) throws IOException {
+
+        if (CohortSnapshot.isEnabledInEnvironment()) {
+            return fromSnapshot(CohortSnapshot.fromEnvironment(bridgeId));
+        }
+        return signInToBridge(email, password, bridgeId);
+    }
+
+    /**
+     * Signs in to a Bridge app, even if the environmental vars are set to read from a snapshot.
+     * @param email account for accessing bridge
+     * @param password for email account for accessing bridge
+     * @param bridgeId bridge project identifier
+     * @return a new context for the bridge app
+     * @throws IOException if something went wrong with the network request
+     */
+    public static BridgeClientContext signInToBridge(
+            String email, String password, String bridgeId) throws IOException {
+
+        ClientInfo clientInfo = new ClientInfo()
+                .appName("DianDataMigration")
+                .deviceName("Sage-Bionetworks Device")
+                .appVersion(1);
+
+        SignIn signIn = new SignIn()
+                .appId(bridgeId)
+                .email(email)
+                .password(password);
+
+        ClientManager clientManager = new ClientManager.Builder()
+                .withClientInfo(clientInfo)
+                .withSignIn(signIn)
+                .withAcceptLanguage(Lists.newArrayList("en")).build();
+
+        return new BridgeClientContext(bridgeId,
+                clientManager.getClient(ForResearchersApi.class),
+                clientManager.getClient(ParticipantReportsApi.class),
+                clientManager.getClient(ParticipantsApi.class),
+                clientManager.getClient(StudyActivityEventsApi.class),
+                clientManager.getClient(AssessmentsApi.class),
+                clientManager.getClient(SchedulesV2Api.class),
+                clientManager.getClient(AdherenceRecordsApi.class),
+                BridgeResponseCache.fromEnvironment(),
+                ReportChangeDetector.fromEnvironment());
+    }
+
+    /**
+     * @param snapshot of a bridge app
+     * @return an offline context that reads everything from the snapshot, and can't write to Bridge
+     */
+    public static BridgeClientContext fromSnapshot(CohortSnapshot snapshot) {
+        return new BridgeClientContext(snapshot.bridgeId,
+                null, null, null, null, null, null, null,
+                BridgeResponseCache.disabled(), ReportChangeDetector.off(), snapshot);
+    }
+
+    public BridgeClientContext(String bridgeId,
+                               ForResearchersApi researcherApi,
+                               ParticipantReportsApi reportsApi,
+                               ParticipantsApi participantsApi,
+                               StudyActivityEventsApi activityEventsApi,
+                               AssessmentsApi assessmentsApi,
+                               SchedulesV2Api scheduleApi,
+                               AdherenceRecordsApi adherenceRecordsApi,
+                               BridgeResponseCache responseCache,
+                               ReportChangeDetector reportChangeDetector) {
+        this(bridgeId, researcherApi, reportsApi, participantsApi, activityEventsApi,
+                assessmentsApi, scheduleApi, adherenceRecordsApi,
+                responseCache, reportChangeDetector, null);
+    }
+
+    private BridgeClientContext(String bridgeId,
+                                ForResearchersApi researcherApi,
+                                ParticipantReportsApi reportsApi,
+                                ParticipantsApi participantsApi,
+                                StudyActivityEventsApi activityEventsApi,
+                                AssessmentsApi assessmentsApi,
+                                SchedulesV2Api scheduleApi,
+                                AdherenceRecordsApi adherenceRecordsApi,
+                                BridgeResponseCache responseCache,
+                                ReportChangeDetector reportChangeDetector,
+                                CohortSnapshot snapshot) {
+        this.bridgeId = bridgeId;
+        this.researcherApi = researcherApi;
+        this.reportsApi = reportsApi;
+        this.participantsApi = participantsApi;
+        this.activityEventsApi = activityEventsApi;
+        this.assessmentsApi = assessmentsApi;
+        this.scheduleApi = scheduleApi;
+        this.adherenceRecordsApi = adherenceRecordsApi;
+        this.responseCache = responseCache;
+        this.reportChangeDetector = reportChangeDetector;
+        this.snapshot = snapshot;
+    }
+
+    public String getBridgeId() {
+        return bridgeId;
+    }
+
+    /**
+     * @return true if this context reads from a snapshot, and can't write to Bridge
+     */
+    public boolean isOffline() {
+        return snapshot != null;
+    }
+
+    /**
+     * @return the cache and buffer stats of this app, one per line, for logging at the end of a run
+     */
+    public String statsString() {
+        StringBuilder stats = new StringBuilder();
+        stats.append(bridgeId).append(" ").append(participantCache.statsString());
+        stats.append("\n").append(bridgeId).append(" ").append(participantUpdates.statsString());
+        stats.append("\n").append(bridgeId).append(" ").append(adherenceUploader.statsString());
+        stats.append("\n").append(bridgeId).append(" ").append(reportChangeDetector.statsString());
+        if (responseCache.isEnabled()) {
+            stats.append("\n").append(bridgeId).append(" ").append(responseCache.statsString());
+        }
+        return stats.toString();
+    }
+}
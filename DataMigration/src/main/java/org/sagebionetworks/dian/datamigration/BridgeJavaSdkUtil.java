@@ -3,19 +3,16 @@ package org.sagebionetworks.dian.datamigration;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.Lists;
 import com.google.gson.Gson;
 import com.google.gson.JsonElement;
 import com.google.gson.internal.LinkedTreeMap;
+import com.google.gson.reflect.TypeToken;
 
-import org.apache.commons.collections4.ListUtils;
 import org.joda.time.DateTime;
 import org.joda.time.LocalDate;
 import org.json.JSONObject;
-import org.sagebionetworks.bridge.rest.ClientManager;
 import org.sagebionetworks.bridge.rest.api.AdherenceRecordsApi;
 import org.sagebionetworks.bridge.rest.api.AssessmentsApi;
-import org.sagebionetworks.bridge.rest.api.AuthenticationApi;
 import org.sagebionetworks.bridge.rest.api.ForResearchersApi;
 import org.sagebionetworks.bridge.rest.api.ParticipantReportsApi;
 import org.sagebionetworks.bridge.rest.api.ParticipantsApi;
@@ -23,17 +20,14 @@ import org.sagebionetworks.bridge.rest.api.SchedulesV2Api;
 import org.sagebionetworks.bridge.rest.api.StudyActivityEventsApi;
 import org.sagebionetworks.bridge.rest.exceptions.EntityNotFoundException;
 import org.sagebionetworks.bridge.rest.model.AdherenceRecord;
-import org.sagebionetworks.bridge.rest.model.AdherenceRecordList;
 import org.sagebionetworks.bridge.rest.model.AdherenceRecordUpdates;
 import org.sagebionetworks.bridge.rest.model.AdherenceRecordsSearch;
-import org.sagebionetworks.bridge.rest.model.ClientInfo;
 import org.sagebionetworks.bridge.rest.model.ExternalIdentifier;
 import org.sagebionetworks.bridge.rest.model.ReportData;
 import org.sagebionetworks.bridge.rest.model.Schedule2;
 import org.sagebionetworks.bridge.rest.model.ScheduledSession;
 import org.sagebionetworks.bridge.rest.model.SearchTermPredicate;
 import org.sagebionetworks.bridge.rest.model.SharingScope;
-import org.sagebionetworks.bridge.rest.model.SignIn;
 import org.sagebionetworks.bridge.rest.model.SignUp;
 import org.sagebionetworks.bridge.rest.model.Study;
 import org.sagebionetworks.bridge.rest.model.StudyActivityEventList;
@@ -44,6 +38,7 @@ import org.sagebionetworks.bridge.rest.model.Timeline;
 import org.sagebionetworks.dian.datamigration.tools.rescheduler.TestSchedule;
 
 import java.io.IOException;
+import java.lang.reflect.Type;
 import java.sql.Time;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -84,18 +79,20 @@ public class BridgeJavaSdkUtil {
     // Maximum character count for user attributes
     private static final int ATTRIBUTE_LENGTH_MAX = 255;
 
-    // Maximum adherence records that can be updated at once
-    private static final int ADHERENCE_RECORD_MAX_COUNT = 25;
+    // Maximum adherence records returned by one page of a search
+    private static final int ADHERENCE_SEARCH_PAGE_SIZE = 500;
+    private static final Type ADHERENCE_RECORD_LIST_TYPE =
+            new TypeToken<List<AdherenceRecord>>(){}.getType();
+
+    // The user ID returned for participants that would have been created while planning a migration
+    public static final String PLANNED_USER_ID_PREFIX = "planned-";
 
     private static ObjectMapper objectMapper = new ObjectMapper();
 
-    private static ForResearchersApi researcherApi;
-    private static ParticipantReportsApi reportsApi;
-    private static ParticipantsApi participantsApi;
-    private static StudyActivityEventsApi activityEventsApi;
-    private static AssessmentsApi assessmentsApi;
-    private static SchedulesV2Api scheduleApi;
-    private static AdherenceRecordsApi adherenceRecordsApi;
+    // Used when no context is bound to the current thread, set by initialize()
+    private static volatile BridgeClientContext defaultContext = null;
+    // Bound by withContext, so concurrent runs against different bridge apps do not share state
+    private static final ThreadLocal<BridgeClientContext> threadContext = new ThreadLocal<>();
 
     @VisibleForTesting
     protected static void mockInitialize(ForResearchersApi mockResearcherApi,
@@ -105,13 +102,10 @@ public class BridgeJavaSdkUtil {
                                          AssessmentsApi mockAssessmentsApi,
                                          SchedulesV2Api mockScheduleApi,
                                          AdherenceRecordsApi mockAdherenceApi) {
-        researcherApi = mockResearcherApi;
-        reportsApi = mockReportsApi;
-        participantsApi = mockParticipantsApi;
-        activityEventsApi = mockActivityEventsApi;
-        assessmentsApi = mockAssessmentsApi;
-        scheduleApi = mockScheduleApi;
-        adherenceRecordsApi = mockAdherenceApi;
+        defaultContext = new BridgeClientContext(BRIDGE_ID,
+                mockResearcherApi, mockReportsApi, mockParticipantsApi, mockActivityEventsApi,
+                mockAssessmentsApi, mockScheduleApi, mockAdherenceApi,
+                BridgeResponseCache.disabled(), ReportChangeDetector.off());
     }
 
     /**
@@ -136,30 +130,95 @@ public class BridgeJavaSdkUtil {
      * @throws IOException if something went wrong with the network request
      */
     public static void initialize() throws IOException {
+        defaultContext = BridgeClientContext.signIn(BRIDGE_EMAIL, BRIDGE_PW, BRIDGE_ID);
+    }
+
+    /**
+     * @return the context bound to the current thread, or the default context
+     */
+    public static BridgeClientContext context() {
+        BridgeClientContext context = threadContext.get();
+        if (context == null) {
+            context = defaultContext;
+        }
+        if (context == null) {
+            throw new IllegalStateException("BridgeJavaSdkUtil has not been initialized");
+        }
+        return context;
+    }
+
+    /**
+     * @return the current context, which must be able to write to Bridge
+     * @throws IllegalStateException if the current context reads from an offline snapshot,
+     *                               or is planning a migration
+     */
+    private static BridgeClientContext onlineContext() {
+        BridgeClientContext context = context();
+        requireOnline(context);
+        return context;
+    }
 
-        ClientInfo clientInfo = new ClientInfo()
-                .appName("DianDataMigration")
-                .deviceName("Sage-Bionetworks Device")
-                .appVersion(1);
+    private static void requireOnline(BridgeClientContext context) {
+        if (context.isOffline()) {
+            throw new IllegalStateException("Can't write to " + context.getBridgeId() +
+                    ", it is being read from an offline snapshot");
+        }
+        if (context.plan != null) {
+            throw new IllegalStateException("Can't write to " + context.getBridgeId() +
+                    ", a migration is being planned");
+        }
+    }
 
-        SignIn signIn = new SignIn()
-                .appId(BRIDGE_ID)
-                .email(BRIDGE_EMAIL)
-                .password(BRIDGE_PW);
+    /**
+     * Sends a read request, timing it if the context is planning a migration
+     * @param context the request is sent with
+     * @param endpoint name the latency is recorded under
+     * @param request to send
+     * @return the response
+     * @throws IOException if the request failed
+     */
+    private static <T> T timed(BridgeClientContext context, String endpoint,
+                               RequestGraph.Request<T> request) throws IOException {
+        MigrationPlan plan = context.plan;
+        if (plan == null) {
+            return request.call();
+        }
+        long start = System.nanoTime();
+        try {
+            return request.call();
+        } finally {
+            plan.recordLatency(endpoint, System.nanoTime() - start);
+        }
+    }
 
-        ClientManager clientManager = new ClientManager.Builder()
-                .withClientInfo(clientInfo)
-                .withSignIn(signIn)
-                .withAcceptLanguage(Lists.newArrayList("en")).build();
+    /**
+     * @return the context bound to the current thread, or null if there is none
+     */
+    static BridgeClientContext boundContext() {
+        return threadContext.get();
+    }
 
-        AuthenticationApi authApi = clientManager.getClient(AuthenticationApi.class);
-        researcherApi = clientManager.getClient(ForResearchersApi.class);
-        reportsApi = clientManager.getClient(ParticipantReportsApi.class);
-        participantsApi = clientManager.getClient(ParticipantsApi .class);
-        activityEventsApi = clientManager.getClient(StudyActivityEventsApi.class);
-        assessmentsApi = clientManager.getClient(AssessmentsApi.class);
-        scheduleApi = clientManager.getClient(SchedulesV2Api.class);
-        adherenceRecordsApi = clientManager.getClient(AdherenceRecordsApi.class);
+    /**
+     * Runs work with a context bound to the current thread, so every function in this class
+     * called by the work uses that context's bridge app, API handles, and caches.
+     * @param context to bind
+     * @param work to run
+     * @return the result of the work
+     * @throws IOException if the work failed
+     */
+    public static <T> T withContext(BridgeClientContext context,
+                                    RequestGraph.Request<T> work) throws IOException {
+        BridgeClientContext previous = threadContext.get();
+        threadContext.set(context);
+        try {
+            return work.call();
+        } finally {
+            if (previous == null) {
+                threadContext.remove();
+            } else {
+                threadContext.set(previous);
+            }
+        }
     }
 
     /**
@@ -172,11 +231,17 @@ public class BridgeJavaSdkUtil {
                                    HmDataModel.HmUserData data) throws IOException {
 
         try {
-            StudyParticipant participant = researcherApi
-                    .getParticipantByExternalId(user.externalId, false).execute().body();
+            StudyParticipant participant = getParticipantByExternalId(user.externalId);
 
             if (isParticipantMigrated(participant, user)) {
-                clearMigrationData(participant.getId(), user);
+                beginParticipantUpdates(participant);
+                try {
+                    clearMigrationData(participant.getId(), user);
+                } catch (IOException | RuntimeException e) {
+                    endParticipantUpdatesAfterFailure(participant.getId(), e);
+                    throw e;
+                }
+                flushParticipantUpdates(participant.getId());
             } else {
                 System.out.println("Updating migration data for user " + user.externalId);
                 writeUserReports(participant.getId(), data);
@@ -191,7 +256,14 @@ public class BridgeJavaSdkUtil {
     }
 
     public static String createParticipant(SignUp signUp) throws IOException {
-        return researcherApi.createParticipant(signUp).execute().body().getIdentifier();
+        BridgeClientContext context = context();
+        if (context.plan != null) {
+            String externalId = signUp.getExternalIds().values().iterator().next();
+            context.plan.record(MigrationPlan.Mutation.CREATE_PARTICIPANT, externalId);
+            // Nothing is sent for a user ID that was never created, so it only needs to be unique
+            return PLANNED_USER_ID_PREFIX + externalId;
+        }
+        return onlineContext().researcherApi.createParticipant(signUp).execute().body().getIdentifier();
     }
 
     /**
@@ -202,12 +274,46 @@ public class BridgeJavaSdkUtil {
      */
     public static String getParticipantReportClientDataString(
             String userId, String reportId, boolean isOptional) throws IOException {
+        return getParticipantReportClientDataString(userId, reportId, isOptional, true);
+    }
+
+    /**
+     * Never served from the response cache, so a change made since the report was cached is seen
+     * @param userId to download the report from
+     * @param reportId of the specific report to download
+     * @return the client data string for the singleton report as it is on bridge now, or null if it has none
+     * @throws IOException if something goes wrong
+     */
+    public static String getCurrentParticipantReportClientDataString(
+            String userId, String reportId) throws IOException {
+        return getParticipantReportClientDataString(userId, reportId, true, false);
+    }
+
+    private static String getParticipantReportClientDataString(
+            String userId, String reportId, boolean isOptional,
+            boolean useResponseCache) throws IOException {
+        BridgeClientContext context = context();
+
+        if (context.isOffline()) {
+            String clientData = context.snapshot.getReport(userId, reportId);
+            if (clientData == null && !isOptional) {
+                throw new IllegalStateException(reportId + " report is not in the snapshot.");
+            }
+            return clientData;
+        }
+
+        String cacheKey = reportCacheKey(userId, reportId);
+        String cached = useResponseCache ? context.responseCache.get(cacheKey) : null;
+        if (cached != null) {
+            return cached;
+        }
 
-        List<ReportData> reports = reportsApi.getUsersParticipantReportRecordsV4(
-                userId, reportId,
-                REPORT_DATE.minusDays(2).toDateTimeAtStartOfDay(),
-                REPORT_DATE.plusDays(2).toDateTimeAtStartOfDay(),
-                null, 50).execute().body().getItems();
+        List<ReportData> reports = timed(context, "getReport", () ->
+                context.reportsApi.getUsersParticipantReportRecordsV4(
+                        userId, reportId,
+                        REPORT_DATE.minusDays(2).toDateTimeAtStartOfDay(),
+                        REPORT_DATE.plusDays(2).toDateTimeAtStartOfDay(),
+                        null, 50).execute().body().getItems());
 
         if (reports.size() != 1) {
             if (isOptional) {
@@ -218,11 +324,15 @@ public class BridgeJavaSdkUtil {
             }
         }
 
+        String clientData;
         if (reports.get(0).getData() instanceof LinkedTreeMap) {
             // Some users may have their data organized as a Map instead of a JSON String
-            return new Gson().toJson((LinkedTreeMap)reports.get(0).getData());
+            clientData = new Gson().toJson((LinkedTreeMap)reports.get(0).getData());
+        } else {
+            clientData = (String)reports.get(0).getData();
         }
-        return (String)reports.get(0).getData();
+        context.responseCache.put(cacheKey, BridgeResponseCache.Kind.REPORT, clientData);
+        return clientData;
     }
 
     public static String getParticipantReportClientDataString(
@@ -230,8 +340,23 @@ public class BridgeJavaSdkUtil {
         return getParticipantReportClientDataString(userId, reportId, false);
     }
 
+    /**
+     * @param externalId of the participant
+     * @return the participant, from the participant cache if it has been recently looked up
+     * @throws IOException if something goes wrong
+     */
     public static StudyParticipant getParticipantByExternalId(String externalId) throws IOException {
-        return researcherApi.getParticipantByExternalId(externalId, false).execute().body();
+        BridgeClientContext context = context();
+        if (context.isOffline()) {
+            return context.snapshot.getParticipantByExternalId(externalId);
+        }
+        StudyParticipant participant = context.participantCache.getByExternalId(externalId);
+        if (participant == null) {
+            participant = timed(context, "getParticipant", () ->
+                    context.researcherApi.getParticipantByExternalId(externalId, false).execute().body());
+            context.participantCache.put(externalId, participant);
+        }
+        return participant;
     }
 
     /**
@@ -267,23 +392,110 @@ public class BridgeJavaSdkUtil {
     @VisibleForTesting
     protected static void clearMigrationData(
             String userId, HmDataModel.HmUser user) throws IOException {
+        BridgeClientContext context = context();
         System.out.println("Clearing migration data for user " + user.externalId);
 
+        if (context.plan != null) {
+            context.plan.record(MigrationPlan.Mutation.DELETE_REPORT, userId, 3);
+            if (context.participantUpdates.isOpen(userId)) {
+                context.participantUpdates.stageAttributes(userId, migratedUserAttributes(user));
+            } else {
+                context.plan.record(MigrationPlan.Mutation.UPDATE_PARTICIPANT, userId);
+            }
+            return;
+        }
+        requireOnline(context);
+
+        // None of these requests depend on each other, so they are all sent at the same time
+        RequestGraph requests = new RequestGraph();
+
         // Delete all user study reports
-        reportsApi.deleteAllParticipantReportRecords(userId, COMPLETED_TESTS_REPORT_ID).execute();
-        reportsApi.deleteAllParticipantReportRecords(userId, TEST_SCHEDULE_REPORT_ID).execute();
-        reportsApi.deleteAllParticipantReportRecords(userId, AVAILABILITY_REPORT_ID).execute();
+        for (String reportId : new String[] {
+                COMPLETED_TESTS_REPORT_ID, TEST_SCHEDULE_REPORT_ID, AVAILABILITY_REPORT_ID }) {
+            requests.add(reportId, () -> {
+                context.reportsApi.deleteAllParticipantReportRecords(userId, reportId).execute();
+                context.responseCache.invalidate(reportCacheKey(userId, reportId));
+                context.reportChangeDetector.didDelete(userId, reportId);
+                return null;
+            });
+        }
 
         StudyParticipant newParticipant = new StudyParticipant()
                 .attributes(migratedUserAttributes(user));
 
-        participantsApi.updateParticipant(userId, newParticipant).execute();
+        requests.add("updateParticipant", () -> {
+            if (context.participantUpdates.isOpen(userId)) {
+                context.participantUpdates.stageAttributes(userId, newParticipant.getAttributes());
+            } else {
+                context.participantsApi.updateParticipant(userId, newParticipant).execute();
+                context.participantCache.invalidateUserId(userId);
+            }
+            return null;
+        });
+
+        requests.run();
     }
 
     public static void updateParticipantClientData(
             StudyParticipant existing, JsonElement clientDataJson) throws IOException {
+        BridgeClientContext context = context();
         existing.clientData(clientDataJson);
-        participantsApi.updateParticipant(existing.getId(), existing).execute();
+        if (context.participantUpdates.isOpen(existing.getId())) {
+            context.participantUpdates.stageParticipant(existing);
+            return;
+        }
+        if (context.plan != null) {
+            context.plan.record(MigrationPlan.Mutation.UPDATE_PARTICIPANT, existing.getId());
+            return;
+        }
+        requireOnline(context);
+        context.participantsApi.updateParticipant(existing.getId(), existing).execute();
+        context.participantCache.invalidateUserId(existing.getId());
+    }
+
+    /**
+     * Starts a participant's unit of work. Until flushParticipantUpdates is called,
+     * attribute and client data updates to this participant are merged instead of sent.
+     * @param participant as it is on Bridge now, the merged update is not sent if it is the same
+     */
+    public static void beginParticipantUpdates(StudyParticipant participant) {
+        context().participantUpdates.begin(participant);
+    }
+
+    /**
+     * Ends a participant's unit of work, sending the merged attribute and client data
+     * updates, if there were any, to Bridge as a single update.
+     * @param userId Bridge user ID of the participant
+     * @throws IOException if something goes wrong
+     */
+    public static void flushParticipantUpdates(String userId) throws IOException {
+        BridgeClientContext context = context();
+        StudyParticipant update = context.participantUpdates.end(userId);
+        if (update == null) {
+            return;
+        }
+        if (context.plan != null) {
+            context.plan.record(MigrationPlan.Mutation.UPDATE_PARTICIPANT, userId);
+            return;
+        }
+        requireOnline(context);
+        context.participantsApi.updateParticipant(userId, update).execute();
+        context.participantCache.invalidateUserId(userId);
+    }
+
+    /**
+     * Ends a participant's unit of work after it failed, still sending the updates that were
+     * staged before the failure. If sending them fails too, that is added to the original failure
+     * as suppressed, so it can't hide it.
+     * @param userId Bridge user ID of the participant
+     * @param failure that ended the unit of work
+     */
+    public static void endParticipantUpdatesAfterFailure(String userId, Throwable failure) {
+        try {
+            flushParticipantUpdates(userId);
+        } catch (IOException | RuntimeException flushFailure) {
+            failure.addSuppressed(flushFailure);
+        }
     }
 
     @VisibleForTesting
@@ -306,26 +518,74 @@ public class BridgeJavaSdkUtil {
         if (data == null) {
             return; // no data to write
         }
+        // The reports are independent of each other, so they are all written at the same time
+        RequestGraph requests = new RequestGraph();
         if (data.completedTests != null) {
-            System.out.println("Writing completed tests report");
-            reportsApi.addParticipantReportRecordV4(userId, COMPLETED_TESTS_REPORT_ID,
-                    makeReportData(objectMapper.writeValueAsString(data.completedTests))).execute();
+            requests.add(COMPLETED_TESTS_REPORT_ID, () -> {
+                writeReportIfChanged(userId, COMPLETED_TESTS_REPORT_ID,
+                        objectMapper.writeValueAsString(data.completedTests), "completed tests");
+                return null;
+            });
         }
         if (data.testSessionSchedule != null) {
-            System.out.println("Writing schedule report");
-            reportsApi.addParticipantReportRecordV4(userId, TEST_SCHEDULE_REPORT_ID,
-                    makeReportData(PathsHelper.readFile(data.testSessionSchedule))).execute();
+            requests.add(TEST_SCHEDULE_REPORT_ID, () -> {
+                writeReportIfChanged(userId, TEST_SCHEDULE_REPORT_ID,
+                        PathsHelper.readFile(data.testSessionSchedule), "schedule");
+                return null;
+            });
         }
         if (data.wakeSleepSchedule != null) {
-            System.out.println("Writing availability report");
-            reportsApi.addParticipantReportRecordV4(userId, AVAILABILITY_REPORT_ID,
-                    makeReportData(PathsHelper.readFile(data.wakeSleepSchedule))).execute();
+            requests.add(AVAILABILITY_REPORT_ID, () -> {
+                writeReportIfChanged(userId, AVAILABILITY_REPORT_ID,
+                        PathsHelper.readFile(data.wakeSleepSchedule), "availability");
+                return null;
+            });
+        }
+        requests.run();
+    }
+
+    /**
+     * Writes a singleton report, unless the report change detector knows Bridge already has it.
+     * @param userId of the Bridge user
+     * @param reportId of the singleton report
+     * @param json client data of the report
+     * @param reportName used for logging
+     * @throws IOException if something goes wrong writing the report to Bridge.
+     */
+    private static void writeReportIfChanged(String userId, String reportId,
+                                             String json, String reportName) throws IOException {
+        BridgeClientContext context = context();
+        if (context.plan != null && userId.startsWith(PLANNED_USER_ID_PREFIX)) {
+            // The participant would have just been created, so there are no reports to compare to
+            context.plan.record(MigrationPlan.Mutation.WRITE_REPORT, userId);
+            return;
+        }
+        if (!context.reportChangeDetector.shouldWrite(userId, reportId, json)) {
+            System.out.println("Skipping unchanged " + reportName + " report");
+            return;
         }
+        if (context.plan != null) {
+            context.plan.record(MigrationPlan.Mutation.WRITE_REPORT, userId);
+            return;
+        }
+        requireOnline(context);
+        System.out.println("Writing " + reportName + " report");
+        context.reportsApi.addParticipantReportRecordV4(userId, reportId, makeReportData(json)).execute();
+        context.responseCache.invalidate(reportCacheKey(userId, reportId));
+        context.reportChangeDetector.didWrite(userId, reportId, json);
     }
 
     public static void writeUserReport(String userId, String reportId, String json) throws IOException {
+        BridgeClientContext context = context();
+        if (context.plan != null) {
+            context.plan.record(MigrationPlan.Mutation.WRITE_REPORT, userId);
+            return;
+        }
+        requireOnline(context);
         System.out.println("Writing report " + reportId);
-        reportsApi.addParticipantReportRecordV4(userId, reportId, makeReportData(json)).execute();
+        context.reportsApi.addParticipantReportRecordV4(userId, reportId, makeReportData(json)).execute();
+        context.responseCache.invalidate(reportCacheKey(userId, reportId));
+        context.reportChangeDetector.didWrite(userId, reportId, json);
     }
 
     /**
@@ -429,8 +689,8 @@ public class BridgeJavaSdkUtil {
      * @throws IOException if something goes wrong
      */
     public static void manuallyMigrateUser(String deviceId) throws IOException {
-        StudyParticipant participant =
-                researcherApi.getParticipantByExternalId(deviceId, false).execute().body();
+        BridgeClientContext context = onlineContext();
+        StudyParticipant participant = getParticipantByExternalId(deviceId);
 
         System.out.println("Manually migrating Arc ID " +
                 participant.getAttributes().get(ATTRIBUTE_ARC_ID));
@@ -471,21 +731,21 @@ public class BridgeJavaSdkUtil {
                 .attributes(migratedAttributes);
 
         System.out.println("Creating participant account on bridge " + arcId);
-        String userId = researcherApi.createParticipant(signUp).execute().body().getIdentifier();
+        String userId = context.researcherApi.createParticipant(signUp).execute().body().getIdentifier();
 
         System.out.println("Writing availability report");
-        reportsApi.addParticipantReportRecordV4(userId, AVAILABILITY_REPORT_ID,
+        context.reportsApi.addParticipantReportRecordV4(userId, AVAILABILITY_REPORT_ID,
                 makeReportData(availability)).execute();
 
         System.out.println("Writing test schedule report");
-        reportsApi.addParticipantReportRecordV4(userId, TEST_SCHEDULE_REPORT_ID,
+        context.reportsApi.addParticipantReportRecordV4(userId, TEST_SCHEDULE_REPORT_ID,
                 makeReportData(testSchedule)).execute();
 
         System.out.println("Writing completed tests report");
         if (completedTests == null) {  // Empty completed list
             completedTests = "{\"completed\":[]}";
         }
-        reportsApi.addParticipantReportRecordV4(userId, COMPLETED_TESTS_REPORT_ID,
+        context.reportsApi.addParticipantReportRecordV4(userId, COMPLETED_TESTS_REPORT_ID,
                 makeReportData(completedTests)).execute();
 
         markDeviceIdAccountAsMigrated(participant);
@@ -494,6 +754,7 @@ public class BridgeJavaSdkUtil {
     }
 
     public static void markDeviceIdAccountAsMigrated(StudyParticipant participant) throws IOException {
+        BridgeClientContext context = context();
         System.out.println("Setting Device ID account IS_MIGRATED set to true...");
         Map<String, String> deviceIdAttributes = new HashMap<>();
         for (String key : participant.getAttributes().keySet()) {
@@ -503,9 +764,19 @@ public class BridgeJavaSdkUtil {
                 deviceIdAttributes.put(key, participant.getAttributes().get(key));
             }
         }
+        if (context.participantUpdates.isOpen(participant.getId())) {
+            context.participantUpdates.stageAttributes(participant.getId(), deviceIdAttributes);
+            return;
+        }
+        if (context.plan != null) {
+            context.plan.record(MigrationPlan.Mutation.UPDATE_PARTICIPANT, participant.getId());
+            return;
+        }
+        requireOnline(context);
         StudyParticipant updatedDeviceIdParticipant = new StudyParticipant();
         updatedDeviceIdParticipant.setAttributes(deviceIdAttributes);
-        researcherApi.updateParticipant(participant.getId(), updatedDeviceIdParticipant).execute();
+        context.researcherApi.updateParticipant(participant.getId(), updatedDeviceIdParticipant).execute();
+        context.participantCache.invalidateUserId(participant.getId());
     }
 
     /**
@@ -516,8 +787,7 @@ public class BridgeJavaSdkUtil {
         HashSet<String> userSet = new HashSet<>();
 
         System.out.println("Getting all users from Study IDs:");
-        List<Study> studyList = researcherApi.getStudies(
-                0, 50, false).execute().body().getItems();
+        List<Study> studyList = getAllStudies();
         for (Study study : studyList) {
             userSet.addAll(getArcIdsInStudy(study.getIdentifier()));
         }
@@ -535,23 +805,44 @@ public class BridgeJavaSdkUtil {
 
         System.out.println("Getting all users from Study ID " + studyId);
 
+        for (String externalId : getExternalIdsInStudy(studyId)) {
+            if (externalId.length() == 6) {
+                userSet.add(externalId);
+            }
+        }
+
+        return userSet;
+    }
+
+    /**
+     * @param studyId the study ID to search in
+     * @return every external ID in the study, in the order Bridge lists them
+     * @throws IOException if something goes wrong
+     */
+    public static List<String> getExternalIdsInStudy(String studyId) throws IOException {
+        BridgeClientContext context = context();
+        if (context.isOffline()) {
+            List<String> externalIds = context.snapshot.studyExternalIds.get(studyId);
+            return (externalIds == null) ? new ArrayList<>() : new ArrayList<>(externalIds);
+        }
+
+        List<String> externalIds = new ArrayList<>();
         int offset = 0;
         List<ExternalIdentifier> externalIdList;
         do {
-            externalIdList =
-                    researcherApi.getExternalIdsForStudy(
-                                    studyId, offset, 100, null)
-                            .execute().body().getItems();
+            int pageOffset = offset;
+            externalIdList = timed(context, "getExternalIds", () ->
+                    context.researcherApi.getExternalIdsForStudy(
+                                    studyId, pageOffset, 100, null)
+                            .execute().body().getItems());
 
             for (ExternalIdentifier identifier : externalIdList) {
-                if (identifier.getIdentifier().length() == 6) {
-                    userSet.add(identifier.getIdentifier());
-                }
+                externalIds.add(identifier.getIdentifier());
             }
             offset += 100;
         } while(externalIdList.size() >= 100);
 
-        return userSet;
+        return externalIds;
     }
 
     /**
@@ -562,74 +853,183 @@ public class BridgeJavaSdkUtil {
         Map<String, List<String>> userMap = new HashMap<>();
 
         System.out.println("Getting all users from Study IDs:");
-        List<Study> studyList = researcherApi.getStudies(
-                0, 50, false).execute().body().getItems();
+        List<Study> studyList = getAllStudies();
         for (Study study : studyList) {
             System.out.println(study.getIdentifier());
-            int offset = 0;
-            List<ExternalIdentifier> externalIdList;
-            do {
-                externalIdList =
-                        researcherApi.getExternalIdsForStudy(
-                                study.getIdentifier(), offset, 100, null)
-                                .execute().body().getItems();
-
-                for (ExternalIdentifier identifier : externalIdList) {
-                    StudyParticipant participant =
-                            researcherApi.getParticipantByExternalId(
-                                    identifier.getIdentifier(), false).execute().body();
-                    String arcID = participant.getAttributes().get("ARC_ID");
-                    if (userMap.get(arcID) == null) {
-                        userMap.put(arcID, new ArrayList<>());
-                    }
-                    List<String> accounts = userMap.get(arcID);
-                    accounts.add(identifier.getIdentifier());
+            for (String externalId : getExternalIdsInStudy(study.getIdentifier())) {
+                StudyParticipant participant = getParticipantByExternalId(externalId);
+                String arcID = participant.getAttributes().get("ARC_ID");
+                if (userMap.get(arcID) == null) {
+                    userMap.put(arcID, new ArrayList<>());
                 }
-                offset += 100;
-            } while(externalIdList.size() >= 100);
+                List<String> accounts = userMap.get(arcID);
+                accounts.add(externalId);
+            }
         }
 
         return userMap;
     }
 
     public static List<Study> getAllStudies() throws IOException {
-        return researcherApi.getStudies(
-                0, 50, false).execute().body().getItems();
+        BridgeClientContext context = context();
+        if (context.isOffline()) {
+            return new ArrayList<>(context.snapshot.studyList);
+        }
+        return timed(context, "getStudies", () -> context.researcherApi.getStudies(
+                0, 50, false).execute().body().getItems());
     }
 
     public static Timeline getParticipantsTimeline(String userId, String studyId) throws IOException {
-        return scheduleApi.getStudyParticipantTimeline(studyId, userId).execute().body();
+        BridgeClientContext context = context();
+        if (context.isOffline()) {
+            // Every participant in a study has the same timeline
+            return context.snapshot.studyTimelines.get(studyId);
+        }
+        String cacheKey = studyCacheKey("timeline", userId, studyId);
+        Timeline timeline = context.responseCache.get(cacheKey, Timeline.class);
+        if (timeline == null) {
+            timeline = timed(context, "getTimeline", () ->
+                    context.scheduleApi.getStudyParticipantTimeline(studyId, userId).execute().body());
+            context.responseCache.putModel(cacheKey, BridgeResponseCache.Kind.TIMELINE, timeline);
+        }
+        return timeline;
+    }
+
+    /**
+     * Call when the study's schedule has changed, so the next read downloads the participant's new Timeline
+     * @param userId of the participant
+     * @param studyId of the study
+     */
+    public static void invalidateParticipantsTimeline(String userId, String studyId) {
+        BridgeClientContext context = context();
+        context.responseCache.invalidate(studyCacheKey("timeline", userId, studyId));
+    }
+
+    /**
+     * @param studyId of the study
+     * @return the V2 schedule assigned to the study
+     * @throws IOException if something goes wrong, or the study does not have a schedule
+     */
+    public static Schedule2 getStudySchedule(String studyId) throws IOException {
+        BridgeClientContext context = context();
+        if (context.isOffline()) {
+            Schedule2 schedule = context.snapshot.studySchedules.get(studyId);
+            if (schedule == null) {
+                throw new EntityNotFoundException("Schedule not found in snapshot", studyId);
+            }
+            return schedule;
+        }
+        return timed(context, "getSchedule", () ->
+                context.scheduleApi.getScheduleForStudy(studyId).execute().body());
     }
 
     public static StudyActivityEventList getAllTimelineEvents(String userId, String studyId) throws IOException {
-        return activityEventsApi.getStudyParticipantStudyActivityEvents(studyId, userId).execute().body();
+        BridgeClientContext context = context();
+        StudyActivityEventList eventList;
+        if (context.isOffline()) {
+            eventList = context.snapshot.getEvents(userId, studyId);
+        } else {
+            String cacheKey = studyCacheKey("events", userId, studyId);
+            eventList = context.responseCache.get(cacheKey, StudyActivityEventList.class);
+            if (eventList == null) {
+                eventList = timed(context, "getEvents", () -> context.activityEventsApi
+                        .getStudyParticipantStudyActivityEvents(studyId, userId).execute().body());
+                context.responseCache.putModel(cacheKey, BridgeResponseCache.Kind.EVENTS, eventList);
+            }
+        }
+        // While planning, include the events that would have been published, but were not
+        MigrationPlan plan = context.plan;
+        return (plan == null) ? eventList : plan.withPlannedEvents(userId, studyId, eventList);
     }
 
 
     public static void updateStudyBurst(String userId, String studyId, String eventId,
                                         DateTime dateTime, String timezone) throws IOException {
+        BridgeClientContext context = context();
+        if (context.plan != null) {
+            context.plan.record(MigrationPlan.Mutation.BURST_EVENT, userId);
+            context.plan.recordEvent(userId, studyId, eventId, dateTime, timezone);
+            return;
+        }
+        requireOnline(context);
         StudyActivityEventRequest request = new StudyActivityEventRequest();
         request.setEventId(eventId);
         request.setTimestamp(dateTime);
         request.setClientTimeZone(timezone);
-        activityEventsApi.createStudyParticipantStudyActivityEvent(studyId, userId, request).execute();
+        context.activityEventsApi.createStudyParticipantStudyActivityEvent(studyId, userId, request).execute();
+        context.responseCache.invalidate(studyCacheKey("events", userId, studyId));
+        context.responseCache.invalidate(studyCacheKey("timeline", userId, studyId));
     }
 
     public static void updateAdherence(String userId, String studyId, List<AdherenceRecord> records) throws IOException {
-        List<List<AdherenceRecord>> batchedRecordList = ListUtils
-                .partition(records, ADHERENCE_RECORD_MAX_COUNT);
-        for (List<AdherenceRecord> recordList : batchedRecordList) {
-            AdherenceRecordUpdates adherenceUpdate = new AdherenceRecordUpdates();
-            adherenceUpdate.setRecords(recordList);
-            adherenceRecordsApi.updateStudyParticipantAdherenceRecords(
-                    studyId, userId, adherenceUpdate).execute();
+        BridgeClientContext context = context();
+        if (context.plan != null) {
+            // Batches only grow once they are sent, so this is the most batches it could take
+            int batchSize = context.adherenceUploader.getBatchSize();
+            context.plan.record(MigrationPlan.Mutation.ADHERENCE_BATCH, userId,
+                    (records.size() + batchSize - 1) / batchSize);
+            return;
+        }
+        requireOnline(context);
+        try {
+            context.adherenceUploader.upload(records, batch -> {
+                AdherenceRecordUpdates adherenceUpdate = new AdherenceRecordUpdates();
+                adherenceUpdate.setRecords(batch);
+                context.adherenceRecordsApi.updateStudyParticipantAdherenceRecords(
+                        studyId, userId, adherenceUpdate).execute();
+            });
+        } finally {
+            // Some batches may have been written, even if others failed
+            context.responseCache.invalidate(studyCacheKey("adherence", userId, studyId));
         }
     }
 
-    public static AdherenceRecordList getUserAdherenceRecords(String userId, String studyId) throws IOException {
-        AdherenceRecordsSearch search = new AdherenceRecordsSearch();
-        search.setPageSize(500);  // This should always include the entire adherence record list
-        return adherenceRecordsApi.searchForStudyParticipantAdherenceRecords(
-                studyId, userId, search).execute().body();
+    /**
+     * @param userId of the participant
+     * @param studyId of the participant
+     * @return all of the participant's adherence records, every page of the search combined
+     * @throws IOException if something goes wrong
+     */
+    public static List<AdherenceRecord> getUserAdherenceRecords(String userId, String studyId) throws IOException {
+        BridgeClientContext context = context();
+        if (context.isOffline()) {
+            return context.snapshot.getAdherenceRecords(userId, studyId);
+        }
+        String cacheKey = studyCacheKey("adherence", userId, studyId);
+        List<AdherenceRecord> allRecords = context.responseCache.get(cacheKey, ADHERENCE_RECORD_LIST_TYPE);
+        if (allRecords != null) {
+            return allRecords;
+        }
+        allRecords = new ArrayList<>();
+        List<AdherenceRecord> page;
+        do {
+            AdherenceRecordsSearch search = new AdherenceRecordsSearch();
+            search.setOffsetBy(allRecords.size());
+            search.setPageSize(ADHERENCE_SEARCH_PAGE_SIZE);
+            page = timed(context, "searchAdherence", () ->
+                    context.adherenceRecordsApi.searchForStudyParticipantAdherenceRecords(
+                            studyId, userId, search).execute().body().getItems());
+            if (page == null) {
+                break;
+            }
+            allRecords.addAll(page);
+        } while (page.size() == ADHERENCE_SEARCH_PAGE_SIZE);
+
+        context.responseCache.putModel(cacheKey, BridgeResponseCache.Kind.ADHERENCE, allRecords);
+        return allRecords;
+    }
+
+    /**
+     * @return the response cache key for a participant's report, scoped to the current bridge project
+     */
+    private static String reportCacheKey(String userId, String reportId) {
+        return context().getBridgeId() + "/report/" + userId + "/" + reportId;
+    }
+
+    /**
+     * @return the response cache key for a participant's study data, scoped to the current bridge project
+     */
+    private static String studyCacheKey(String type, String userId, String studyId) {
+        return context().getBridgeId() + "/" + type + "/" + studyId + "/" + userId;
     }
 }
@@ -0,0 +1,413 @@
+package org.sagebionetworks.dian.datamigration;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.io.BaseEncoding;
+
+import org.sagebionetworks.bridge.rest.RestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Opt-in, encrypted, on-disk cache of read-only Bridge responses
+ * (participant reports, participant timelines, activity events, and adherence searches).
+ *
+ * Operators run the adherence tool and the V2 migration over and over against participants whose
+ * data has mostly not changed, so this lets those runs skip re-downloading the same responses.
+ *
+ * The Bridge endpoints used here do not return ETag or Last-Modified headers, and the generated
+ * SDK calls have no way to send conditional request headers, so freshness is based on a TTL
+ * per kind of response. Our own writes invalidate the affected entries.
+ *
+ * Each file is encrypted with its own key, derived from a random salt stored at the start of the file
+ * and a master key. The master key is derived from the passphrase with PBKDF2, and a salt stored
+ * in the cache directory, so the slow derivation only happens once per run.
+ *
+ * Reads and writes run concurrently, only the stats and the master key are locked.
+ * Entries are written to a temporary file and moved into place, so a read never sees half an entry.
+ *
+ * Set the environmental vars BR_CACHE_DIR and BR_CACHE_KEY to enable the cache.
+ * BR_CACHE_TTL_MINUTES can optionally override the default TTL of all kinds of responses.
+ */
+public class BridgeResponseCache {
+
+    public static final String ENV_CACHE_DIR = "BR_CACHE_DIR";
+    public static final String ENV_CACHE_KEY = "BR_CACHE_KEY";
+    public static final String ENV_CACHE_TTL_MINUTES = "BR_CACHE_TTL_MINUTES";
+
+    public enum Kind {
+        REPORT(TimeUnit.HOURS.toMillis(12)),
+        TIMELINE(TimeUnit.HOURS.toMillis(24)),
+        EVENTS(TimeUnit.HOURS.toMillis(12)),
+        ADHERENCE(TimeUnit.HOURS.toMillis(12));
+
+        final long defaultTtlMillis;
+
+        Kind(long defaultTtlMillis) {
+            this.defaultTtlMillis = defaultTtlMillis;
+        }
+    }
+
+    private static final String CIPHER_TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int GCM_IV_LENGTH = 12;
+    private static final int GCM_TAG_BITS = 128;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    static final String KDF_ALGORITHM = "PBKDF2WithHmacSHA256";
+    static final int KDF_ITERATIONS = 210_000;
+    static final int SALT_LENGTH = 16;
+    private static final int KEY_BITS = 256;
+    // Holds the salt of the master key, it can't collide with the hex names of the entries
+    static final String SALT_FILE_NAME = "salt";
+    // Entries being written, they can't collide with the hex names of the entries either
+    private static final String TEMP_FILE_PREFIX = "writing-";
+
+    private final Path directory;
+    private final String passphrase;
+    // Derived the first time the cache is read or written, null until then
+    private volatile SecretKeySpec masterKey = null;
+    private final Map<Kind, Long> ttlMillis = new EnumMap<>(Kind.class);
+
+    private long hitCount = 0;
+    private long missCount = 0;
+
+    /**
+     * @return a cache configured from the environmental vars, or a disabled cache if they are not set
+     */
+    public static BridgeResponseCache fromEnvironment() {
+        String dir = System.getenv(ENV_CACHE_DIR);
+        String passphrase = System.getenv(ENV_CACHE_KEY);
+        if (dir == null || dir.isEmpty() || passphrase == null || passphrase.isEmpty()) {
+            return disabled();
+        }
+        BridgeResponseCache cache = new BridgeResponseCache(Paths.get(dir), passphrase);
+        String ttlMinutes = System.getenv(ENV_CACHE_TTL_MINUTES);
+        if (ttlMinutes != null && !ttlMinutes.isEmpty()) {
+            long ttl = TimeUnit.MINUTES.toMillis(parseTtlMinutes(ttlMinutes));
+            for (Kind kind : Kind.values()) {
+                cache.setTtlMillis(kind, ttl);
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * @param ttlMinutes value of the BR_CACHE_TTL_MINUTES environmental var
+     * @return the TTL in minutes
+     * @throws IllegalArgumentException if the TTL is not a whole number, 0 or more
+     */
+    static long parseTtlMinutes(String ttlMinutes) {
+        long minutes;
+        try {
+            minutes = Long.parseLong(ttlMinutes.trim());
+        } catch (NumberFormatException e) {
+            minutes = -1;
+        }
+        if (minutes < 0) {
+            throw new IllegalArgumentException(ENV_CACHE_TTL_MINUTES +
+                    " must be a whole number of minutes, 0 or more, but was \"" + ttlMinutes + "\"");
+        }
+        return minutes;
+    }
+
+    /**
+     * @return a cache that never stores or returns anything
+     */
+    public static BridgeResponseCache disabled() {
+        return new BridgeResponseCache(null, null);
+    }
+
+    /**
+     * @param directory where the encrypted responses are stored
+     * @param passphrase used to derive the encryption key, null for a disabled cache
+     */
+    public BridgeResponseCache(@Nullable Path directory, @Nullable String passphrase) {
+        this.directory = directory;
+        this.passphrase = passphrase;
+        for (Kind kind : Kind.values()) {
+            ttlMillis.put(kind, kind.defaultTtlMillis);
+        }
+    }
+
+    public boolean isEnabled() {
+        return directory != null && passphrase != null;
+    }
+
+    public void setTtlMillis(Kind kind, long millis) {
+        ttlMillis.put(kind, millis);
+    }
+
+    /**
+     * @param key identifying the request
+     * @return the cached response body, or null if it is missing, expired, or unreadable
+     */
+    public @Nullable String get(String key) {
+        if (!isEnabled()) {
+            return null;
+        }
+        Path file = fileFor(key);
+        if (!Files.exists(file)) {
+            recordMiss();
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(decryptEntry(Files.readAllBytes(file))))) {
+            long expiresAt = in.readLong();
+            String storedKey = in.readUTF();
+            if (expiresAt <= now() || !storedKey.equals(key)) {
+                Files.deleteIfExists(file);
+                recordMiss();
+                return null;
+            }
+            byte[] body = new byte[in.readInt()];
+            in.readFully(body);
+            recordHit();
+            return new String(body, StandardCharsets.UTF_8);
+        } catch (IOException | GeneralSecurityException e) {
+            // A corrupt file, one written with a different key, or one deleted while reading it, is a miss
+            recordMiss();
+            return null;
+        }
+    }
+
+    /**
+     * @param key identifying the request
+     * @param type of the Bridge model that was cached
+     * @return the cached Bridge model, or null if it is not cached
+     */
+    public @Nullable <T> T get(String key, Class<T> type) {
+        String json = get(key);
+        if (json == null) {
+            return null;
+        }
+        return RestUtils.GSON.fromJson(json, type);
+    }
+
+    /**
+     * @param key identifying the request
+     * @param type of the Bridge models that were cached, like a list of models
+     * @return the cached Bridge models, or null if they are not cached
+     */
+    public @Nullable <T> T get(String key, Type type) {
+        String json = get(key);
+        if (json == null) {
+            return null;
+        }
+        return RestUtils.GSON.fromJson(json, type);
+    }
+
+    /**
+     * @param key identifying the request
+     * @param kind of response, which determines its TTL
+     * @param body of the response to store
+     */
+    public void put(String key, Kind kind, String body) {
+        if (!isEnabled() || body == null) {
+            return;
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                byte[] bodyBytes = body.getBytes(StandardCharsets.UTF_8);
+                out.writeLong(now() + ttlMillis.get(kind));
+                out.writeUTF(key);
+                out.writeInt(bodyBytes.length);
+                out.write(bodyBytes);
+            }
+            byte[] entry = encryptEntry(bytes.toByteArray());
+            Files.createDirectories(directory);
+            // Another thread can read or write the same key meanwhile, so replace the entry at once
+            Path tempFile = Files.createTempFile(directory, TEMP_FILE_PREFIX, null);
+            try {
+                Files.write(tempFile, entry);
+                Files.move(tempFile, fileFor(key),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tempFile);
+            }
+        } catch (IOException | GeneralSecurityException e) {
+            // The cache is only an optimization, failing to write it should not stop a run
+            System.out.println("Could not write response cache entry " + e.getMessage());
+        }
+    }
+
+    /**
+     * @param key identifying the request
+     * @param kind of response, which determines its TTL
+     * @param model Bridge model to store
+     */
+    public void putModel(String key, Kind kind, Object model) {
+        if (!isEnabled() || model == null) {
+            return;
+        }
+        put(key, kind, RestUtils.GSON.toJson(model));
+    }
+
+    /**
+     * Call after writing to Bridge, so the next read re-downloads the response
+     * @param key identifying the request
+     */
+    public void invalidate(String key) {
+        if (!isEnabled()) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(fileFor(key));
+        } catch (IOException e) {
+            System.out.println("Could not delete response cache entry " + e.getMessage());
+        }
+    }
+
+    public synchronized String statsString() {
+        return "Response cache hits " + hitCount + ", misses " + missCount;
+    }
+
+    private synchronized void recordHit() {
+        hitCount++;
+    }
+
+    private synchronized void recordMiss() {
+        missCount++;
+    }
+
+    @VisibleForTesting
+    protected long now() {
+        return System.currentTimeMillis();
+    }
+
+    private Path fileFor(String key) {
+        // Hash the key so that user IDs are not visible in the file names
+        return directory.resolve(BaseEncoding.base16().lowerCase().encode(sha256(key)));
+    }
+
+    /**
+     * @return the random salt of the entry, followed by the entry encrypted with the salt's key
+     */
+    private byte[] encryptEntry(byte[] plainText) throws IOException, GeneralSecurityException {
+        byte[] salt = newSalt();
+        byte[] cipherText = encrypt(entryKey(salt), plainText);
+        byte[] result = new byte[salt.length + cipherText.length];
+        System.arraycopy(salt, 0, result, 0, salt.length);
+        System.arraycopy(cipherText, 0, result, salt.length, cipherText.length);
+        return result;
+    }
+
+    private byte[] decryptEntry(byte[] data) throws IOException, GeneralSecurityException {
+        if (data.length < SALT_LENGTH) {
+            throw new GeneralSecurityException("Cache entry is too short");
+        }
+        byte[] salt = Arrays.copyOf(data, SALT_LENGTH);
+        return decrypt(entryKey(salt), Arrays.copyOfRange(data, SALT_LENGTH, data.length));
+    }
+
+    private SecretKeySpec entryKey(byte[] salt) throws IOException, GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(masterKey());
+        return new SecretKeySpec(mac.doFinal(salt), "AES");
+    }
+
+    /**
+     * @return the key the entry keys are derived from, using the salt in the cache directory,
+     *         which is created the first time the directory is used
+     */
+    private SecretKeySpec masterKey() throws IOException, GeneralSecurityException {
+        SecretKeySpec key = masterKey;
+        if (key != null) {
+            return key;
+        }
+        synchronized (this) {
+            if (masterKey != null) {
+                return masterKey;
+            }
+            Path saltFile = directory.resolve(SALT_FILE_NAME);
+            byte[] salt;
+            if (Files.exists(saltFile)) {
+                salt = Files.readAllBytes(saltFile);
+            } else {
+                salt = newSalt();
+                Files.createDirectories(directory);
+                Files.write(saltFile, salt);
+            }
+            masterKey = deriveKey(passphrase, salt);
+            return masterKey;
+        }
+    }
+
+    /**
+     * @return a new random salt to derive a key with
+     */
+    static byte[] newSalt() {
+        byte[] salt = new byte[SALT_LENGTH];
+        RANDOM.nextBytes(salt);
+        return salt;
+    }
+
+    /**
+     * @param passphrase to derive the key from
+     * @param salt stored with the data the key encrypts
+     * @return the AES key derived with PBKDF2, which is slow on purpose, so derive it once and reuse it
+     */
+    static SecretKeySpec deriveKey(String passphrase, byte[] salt) throws GeneralSecurityException {
+        PBEKeySpec spec = new PBEKeySpec(passphrase.toCharArray(), salt, KDF_ITERATIONS, KEY_BITS);
+        try {
+            byte[] key = SecretKeyFactory.getInstance(KDF_ALGORITHM).generateSecret(spec).getEncoded();
+            return new SecretKeySpec(key, "AES");
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    /**
+     * @return the random IV, followed by the AES-GCM encrypted and authenticated plain text
+     */
+    static byte[] encrypt(SecretKeySpec key, byte[] plainText) throws GeneralSecurityException {
+        byte[] iv = new byte[GCM_IV_LENGTH];
+        RANDOM.nextBytes(iv);
+        Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_BITS, iv));
+        byte[] cipherText = cipher.doFinal(plainText);
+        byte[] result = new byte[iv.length + cipherText.length];
+        System.arraycopy(iv, 0, result, 0, iv.length);
+        System.arraycopy(cipherText, 0, result, iv.length, cipherText.length);
+        return result;
+    }
+
+    static byte[] decrypt(SecretKeySpec key, byte[] data) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_BITS, data, 0, GCM_IV_LENGTH));
+        return cipher.doFinal(data, GCM_IV_LENGTH, data.length - GCM_IV_LENGTH);
+    }
+
+    private static byte[] sha256(String value) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package org.sagebionetworks.dian.datamigration;
+
+import org.sagebionetworks.bridge.rest.RestUtils;
+import org.sagebionetworks.bridge.rest.exceptions.EntityNotFoundException;
+import org.sagebionetworks.bridge.rest.model.AdherenceRecord;
+import org.sagebionetworks.bridge.rest.model.Schedule2;
+import org.sagebionetworks.bridge.rest.model.Study;
+import org.sagebionetworks.bridge.rest.model.StudyActivityEventList;
+import org.sagebionetworks.bridge.rest.model.StudyParticipant;
+import org.sagebionetworks.bridge.rest.model.Timeline;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.Nullable;
+
+/**
+ * Everything the migration and adherence tools read from one Bridge app, downloaded once:
+ * the studies, their schedules and timelines, the external IDs in each study, and each participant's
+ * StudyParticipant, HM reports, activity events and adherence records.
+ *
+ * A snapshot is written as gzipped JSON, encrypted with AES-GCM because it contains participant data.
+ * The key is derived from a passphrase with PBKDF2, like the BridgeResponseCache, with a random
+ * salt for each file. The file starts with a header of HEADER_MAGIC, HEADER_VERSION and the salt.
+ *
+ * Set the environmental vars BR_SNAPSHOT_DIR and BR_SNAPSHOT_KEY to have BridgeClientContext.signIn
+ * return an offline context that reads from the app's snapshot in that directory,
+ * see BridgeClientContext.fromSnapshot.
+ * Offline contexts throw an IllegalStateException for anything that would write to Bridge.
+ */
+public class CohortSnapshot {
+
+    public static final String ENV_SNAPSHOT_DIR = "BR_SNAPSHOT_DIR";
+    public static final String ENV_SNAPSHOT_KEY = "BR_SNAPSHOT_KEY";
+    public static final String FILE_EXTENSION = ".snapshot";
+
+    public static final int FORMAT_VERSION = 1;
+
+    // The encrypted file's header, versioned separately from the snapshot's JSON format
+    static final byte[] HEADER_MAGIC = "DIANSNAP".getBytes(StandardCharsets.US_ASCII);
+    static final byte HEADER_VERSION = 1;
+    static final int HEADER_LENGTH = HEADER_MAGIC.length + 1 + BridgeResponseCache.SALT_LENGTH;
+
+    public int formatVersion = FORMAT_VERSION;
+    public String bridgeId;
+    // Milliseconds since 1970 that the export started
+    public long createdOn;
+
+    public List<Study> studyList = new ArrayList<>();
+    // Study ID, to all the external IDs in the study, in the order Bridge listed them
+    public Map<String, List<String>> studyExternalIds = new LinkedHashMap<>();
+    // Study ID, to its V2 schedule, missing if the study does not have one
+    public Map<String, Schedule2> studySchedules = new HashMap<>();
+    // Study ID, to the timeline of one of its participants, which is the same for all of them
+    public Map<String, Timeline> studyTimelines = new HashMap<>();
+    // External ID, to the participant's data
+    public Map<String, ParticipantData> participants = new LinkedHashMap<>();
+
+    // Bridge user ID, to the participant's data, built when it is first needed
+    private transient volatile Map<String, ParticipantData> userIdMap = null;
+
+    /**
+     * Everything downloaded for a single participant
+     */
+    public static class ParticipantData {
+        public StudyParticipant participant;
+        // Report ID, to the report's client data, missing if the participant does not have it
+        public Map<String, String> reports = new HashMap<>();
+        // Study ID, to the participant's activity events in the study
+        public Map<String, StudyActivityEventList> events = new HashMap<>();
+        // Study ID, to all the participant's adherence records in the study
+        public Map<String, List<AdherenceRecord>> adherence = new HashMap<>();
+    }
+
+    /**
+     * @return true if the environmental vars are set to read snapshots instead of Bridge
+     */
+    public static boolean isEnabledInEnvironment() {
+        String dir = System.getenv(ENV_SNAPSHOT_DIR);
+        return dir != null && !dir.isEmpty();
+    }
+
+    /**
+     * @param directory the snapshots are in
+     * @param bridgeId bridge project identifier
+     * @return the file the bridge app's snapshot is written to in the directory
+     */
+    public static Path fileFor(Path directory, String bridgeId) {
+        return directory.resolve(bridgeId + FILE_EXTENSION);
+    }
+
+    /**
+     * @param bridgeId bridge project identifier
+     * @return the app's snapshot, read from the directory and key in the environmental vars
+     * @throws IOException if the snapshot could not be read
+     */
+    public static CohortSnapshot fromEnvironment(String bridgeId) throws IOException {
+        String dir = System.getenv(ENV_SNAPSHOT_DIR);
+        String passphrase = System.getenv(ENV_SNAPSHOT_KEY);
+        if (dir == null || dir.isEmpty() || passphrase == null || passphrase.isEmpty()) {
+            throw new IllegalStateException(ENV_SNAPSHOT_DIR + " and " +
+                    ENV_SNAPSHOT_KEY + " must be set to read a snapshot");
+        }
+        CohortSnapshot snapshot = read(fileFor(Paths.get(dir), bridgeId), passphrase);
+        if (!bridgeId.equals(snapshot.bridgeId)) {
+            throw new IOException("Snapshot of " + snapshot.bridgeId + " is not of " + bridgeId);
+        }
+        return snapshot;
+    }
+
+    /**
+     * @param file to read the snapshot from
+     * @param passphrase the snapshot was written with
+     * @return the snapshot
+     * @throws IOException if the file could not be read, or was not written with the passphrase
+     */
+    public static CohortSnapshot read(Path file, String passphrase) throws IOException {
+        byte[] data = Files.readAllBytes(file);
+        if (data.length < HEADER_LENGTH ||
+                !Arrays.equals(HEADER_MAGIC, Arrays.copyOf(data, HEADER_MAGIC.length))) {
+            throw new IOException(file + " is not a snapshot");
+        }
+        if (data[HEADER_MAGIC.length] != HEADER_VERSION) {
+            throw new IOException("Snapshot " + file + " has an unsupported header version " +
+                    data[HEADER_MAGIC.length]);
+        }
+        byte[] salt = Arrays.copyOfRange(data, HEADER_MAGIC.length + 1, HEADER_LENGTH);
+        byte[] compressed;
+        try {
+            compressed = BridgeResponseCache.decrypt(
+                    BridgeResponseCache.deriveKey(passphrase, salt),
+                    Arrays.copyOfRange(data, HEADER_LENGTH, data.length));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not decrypt snapshot " + file + ", is the key correct?", e);
+        }
+        CohortSnapshot snapshot;
+        try (Reader reader = new InputStreamReader(new GZIPInputStream(
+                new ByteArrayInputStream(compressed)), StandardCharsets.UTF_8)) {
+            snapshot = RestUtils.GSON.fromJson(reader, CohortSnapshot.class);
+        }
+        if (snapshot == null || snapshot.formatVersion != FORMAT_VERSION) {
+            throw new IOException("Snapshot " + file + " has an unsupported format version");
+        }
+        return snapshot;
+    }
+
+    /**
+     * Writes the snapshot to a temporary file first, so a failed write never replaces a good snapshot
+     * @param file to write the snapshot to
+     * @param passphrase to derive the encryption key from
+     * @throws IOException if the snapshot could not be written
+     */
+    public void write(Path file, String passphrase) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (Writer writer = new OutputStreamWriter(
+                new GZIPOutputStream(compressed), StandardCharsets.UTF_8)) {
+            RestUtils.GSON.toJson(this, writer);
+        }
+        byte[] salt = BridgeResponseCache.newSalt();
+        byte[] encrypted;
+        try {
+            encrypted = BridgeResponseCache.encrypt(
+                    BridgeResponseCache.deriveKey(passphrase, salt), compressed.toByteArray());
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not encrypt snapshot", e);
+        }
+        ByteArrayOutputStream contents = new ByteArrayOutputStream(HEADER_LENGTH + encrypted.length);
+        contents.write(HEADER_MAGIC);
+        contents.write(HEADER_VERSION);
+        contents.write(salt);
+        contents.write(encrypted);
+
+        Path absolute = file.toAbsolutePath();
+        Path temp = absolute.resolveSibling(absolute.getFileName() + ".tmp");
+        Files.write(temp, contents.toByteArray());
+        Files.move(temp, absolute, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * @param externalId of the participant
+     * @return the participant
+     * @throws EntityNotFoundException if the participant is not in the snapshot, like Bridge
+     */
+    public StudyParticipant getParticipantByExternalId(String externalId) {
+        ParticipantData data = participants.get(externalId);
+        if (data == null || data.participant == null) {
+            throw new EntityNotFoundException("Account not found in snapshot", externalId);
+        }
+        return data.participant;
+    }
+
+    /**
+     * @param userId of the participant
+     * @param reportId of the singleton report
+     * @return the report's client data, or null if the participant does not have the report
+     */
+    public @Nullable String getReport(String userId, String reportId) {
+        ParticipantData data = byUserId(userId);
+        return (data == null) ? null : data.reports.get(reportId);
+    }
+
+    /**
+     * @return the participant's activity events in the study, or null if they are not in the snapshot
+     */
+    public @Nullable StudyActivityEventList getEvents(String userId, String studyId) {
+        ParticipantData data = byUserId(userId);
+        return (data == null) ? null : data.events.get(studyId);
+    }
+
+    /**
+     * @return the participant's adherence records in the study, empty if they are not in the snapshot
+     */
+    public List<AdherenceRecord> getAdherenceRecords(String userId, String studyId) {
+        ParticipantData data = byUserId(userId);
+        List<AdherenceRecord> records = (data == null) ? null : data.adherence.get(studyId);
+        return (records == null) ? new ArrayList<>() : new ArrayList<>(records);
+    }
+
+    private @Nullable ParticipantData byUserId(String userId) {
+        Map<String, ParticipantData> map = userIdMap;
+        if (map == null) {
+            map = new HashMap<>();
+            for (ParticipantData data : participants.values()) {
+                if (data.participant != null && data.participant.getId() != null) {
+                    map.put(data.participant.getId(), data);
+                }
+            }
+            userIdMap = map;
+        }
+        return map.get(userId);
+    }
+}
@@ -0,0 +1,108 @@
+package org.sagebionetworks.dian.datamigration;
+
+import com.google.common.io.BaseEncoding;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+
+import javax.annotation.Nullable;
+
+/**
+ * A small persistent map of keys to SHA-256 content hashes, stored as a properties file.
+ * This lets a nightly run know if the content it is about to write, or about to process,
+ * is the same as it was the last time.
+ */
+public class ContentHashStore {
+
+    private final Path file;
+    private final Properties hashes = new Properties();
+    private boolean isDirty = false;
+
+    /**
+     * @param file where the hashes are stored, it is read now if it already exists
+     * @throws IOException if the existing file could not be read
+     */
+    public ContentHashStore(Path file) throws IOException {
+        this.file = file;
+        if (Files.exists(file)) {
+            try (InputStream in = Files.newInputStream(file)) {
+                hashes.load(in);
+            }
+        }
+    }
+
+    /**
+     * @param key identifying the content
+     * @param content to compare to the last stored hash
+     * @return true if the content hash matches the hash stored for the key
+     */
+    public synchronized boolean matches(String key, String content) {
+        String stored = hashes.getProperty(key);
+        return stored != null && stored.equals(hash(content));
+    }
+
+    /**
+     * @param key identifying the content
+     * @param content to store the hash of
+     */
+    public synchronized void put(String key, String content) {
+        hashes.setProperty(key, hash(content));
+        isDirty = true;
+    }
+
+    /**
+     * @param key identifying the content to forget
+     */
+    public synchronized void remove(String key) {
+        if (hashes.remove(key) != null) {
+            isDirty = true;
+        }
+    }
+
+    public synchronized @Nullable String get(String key) {
+        return hashes.getProperty(key);
+    }
+
+    public synchronized int size() {
+        return hashes.size();
+    }
+
+    /**
+     * Writes the hashes to the file, if any have changed
+     * @throws IOException if something goes wrong writing the file
+     */
+    public synchronized void save() throws IOException {
+        if (!isDirty) {
+            return;
+        }
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        try (OutputStream out = Files.newOutputStream(file)) {
+            hashes.store(out, null);
+        }
+        isDirty = false;
+    }
+
+    /**
+     * @param content to hash, null is treated as an empty string
+     * @return the lowercase hex SHA-256 of the content
+     */
+    public static String hash(@Nullable String content) {
+        try {
+            byte[] bytes = (content == null ? "" : content).getBytes(StandardCharsets.UTF_8);
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+            return BaseEncoding.base16().lowerCase().encode(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
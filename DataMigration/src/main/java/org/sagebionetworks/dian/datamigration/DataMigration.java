@@ -48,7 +48,7 @@ public class DataMigration {
 
     public static void main(String[] args) throws IOException, SynapseException {
         try {
-            runDataMigration();
+            runDataMigration(MigrationPlan.isRequested(args));
         } finally {
             // Delete all traces of the algorithm.
             // This is for enhanced data privacy,
@@ -57,12 +57,22 @@ public class DataMigration {
         }
     }
 
-    private static void runDataMigration() throws SynapseException, IOException {
-        System.out.println("Beginning Data Migration");
+    /**
+     * @param isPlan true to only plan the migration, sending every read, but counting every write
+     * @throws SynapseException if something goes wrong downloading the HappyMedium files
+     * @throws IOException if something goes wrong
+     */
+    private static void runDataMigration(boolean isPlan) throws SynapseException, IOException {
+        System.out.println(isPlan ? "Planning Data Migration" : "Beginning Data Migration");
 
         // Initialize Sage APIs
         SynapseUtil.initializeSynapse();
         BridgeJavaSdkUtil.initialize();
+        if (isPlan) {
+            MigrationPlan plan = MigrationPlan.fromEnvironment();
+            BridgeJavaSdkUtil.context().plan = plan;
+            SynapseUtil.plan = plan;
+        }
 
         // Download the participant and data files
         SynapseUtil.downloadAndUnzipAllUserDataFiles();
@@ -89,6 +99,13 @@ public class DataMigration {
         		exceptions.add(e);
         	}
         }
+        System.out.println(BridgeJavaSdkUtil.context().statsString());
+        if (isPlan) {
+            // Nothing was written, so the report change detector is left as it was
+            System.out.println(BridgeJavaSdkUtil.context().plan.report("DataMigration", userList.size()));
+        } else {
+            BridgeJavaSdkUtil.context().reportChangeDetector.save();
+        }
         if (!exceptions.isEmpty()) {
         	// throw one big exception
         	StringBuilder cumulativeMessages = new StringBuilder();
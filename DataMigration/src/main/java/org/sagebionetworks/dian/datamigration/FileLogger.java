@@ -15,9 +15,13 @@ public class FileLogger {
         writer = new BufferedWriter(new FileWriter(fileName, false));
     }
 
-    public void write(String log) throws IOException {
+    // Synchronized, as more than one bridge app can be migrated at the same time
+    public synchronized void write(String log) throws IOException {
         System.out.println(log);
-        writer.write(log + "\n");
+        // Until the file is opened, like when a single participant is migrated, logs are only printed
+        if (writer != null) {
+            writer.write(log + "\n");
+        }
     }
 
     public File closeFile() throws IOException {
@@ -0,0 +1,334 @@
+package org.sagebionetworks.dian.datamigration;
+
+import org.joda.time.DateTime;
+import org.sagebionetworks.bridge.rest.RestUtils;
+import org.sagebionetworks.bridge.rest.model.StudyActivityEvent;
+import org.sagebionetworks.bridge.rest.model.StudyActivityEventList;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A dry run of the DataMigration or ScheduleV2Migration, started with the --plan argument.
+ *
+ * While a plan is set on a BridgeClientContext, BridgeJavaSdkUtil still sends every read request,
+ * and times them, but every write is counted here instead of being sent. The migrations run their
+ * normal code, so the counts are exactly what a real run with the same data would send.
+ * Activity events that would have been published are remembered, and added to the participant's
+ * events when they are read, so code that depends on them runs like it would after a real write.
+ *
+ * The Synapse requests that list and download the HappyMedium files, and unzipping them, run
+ * one at a time before any participant is migrated, so they are timed on their own, and added
+ * to every estimate in full.
+ *
+ * Writes can't be timed without sending them, so their latency is estimated as the mean latency
+ * of the Bridge reads, unless BR_PLAN_WRITE_LATENCY_MS is set. The wall-clock estimates are a lower bound:
+ * they assume requests are spread evenly over the participants being migrated at the same time,
+ * with a perfect speedup, while the read latencies were measured with the planning run's own
+ * concurrency, and they do not account for Bridge rate limiting.
+ */
+public class MigrationPlan {
+
+    public static final String PLAN_ARG = "--plan";
+    public static final String ENV_PLAN_WRITE_LATENCY_MS = "BR_PLAN_WRITE_LATENCY_MS";
+
+    // The number of participants migrated at the same time to estimate the runtime for
+    public static final int[] CONCURRENCY_LEVELS = new int[] { 1, 2, 4, 8, 16, 32 };
+
+    public enum Mutation {
+        CREATE_PARTICIPANT,
+        WRITE_REPORT,
+        DELETE_REPORT,
+        UPDATE_PARTICIPANT,
+        BURST_EVENT,
+        ADHERENCE_BATCH
+    }
+
+    private final Map<Mutation, Long> mutationCounts = new EnumMap<>(Mutation.class);
+    // The users that would need each kind of mutation
+    private final Map<Mutation, Set<String>> mutationUsers = new EnumMap<>(Mutation.class);
+    // Endpoint name, to the number of requests and the total nanoseconds they took
+    private final Map<String, long[]> readLatencies = new TreeMap<>();
+    // Step name, to the number of times it ran and the total nanoseconds, for steps that run one at a time
+    private final Map<String, long[]> serialLatencies = new TreeMap<>();
+
+    // "userId/studyId", to the activity events that would have been published, by event ID
+    private final Map<String, Map<String, StudyActivityEvent>> plannedEvents = new HashMap<>();
+
+    private final Long writeLatencyMillis;
+
+    /**
+     * @return a plan with the write latency set by the environmental var, or measured from the reads
+     * @throws IllegalArgumentException if the environmental var is not a number of milliseconds
+     */
+    public static MigrationPlan fromEnvironment() {
+        String latency = System.getenv(ENV_PLAN_WRITE_LATENCY_MS);
+        if (latency == null || latency.isEmpty()) {
+            return new MigrationPlan(null);
+        }
+        return new MigrationPlan(parseLatency(latency));
+    }
+
+    /**
+     * @param latency value of the BR_PLAN_WRITE_LATENCY_MS environmental var
+     * @return the latency in milliseconds
+     * @throws IllegalArgumentException if the latency is not a whole number, 0 or more
+     */
+    static long parseLatency(String latency) {
+        long millis;
+        try {
+            millis = Long.parseLong(latency.trim());
+        } catch (NumberFormatException e) {
+            millis = -1;
+        }
+        if (millis < 0) {
+            throw new IllegalArgumentException(ENV_PLAN_WRITE_LATENCY_MS +
+                    " must be a whole number of milliseconds, 0 or more, but was \"" + latency + "\"");
+        }
+        return millis;
+    }
+
+    /**
+     * @param writeLatencyMillis the estimated latency of every write, or null to use the mean read latency
+     */
+    public MigrationPlan(Long writeLatencyMillis) {
+        this.writeLatencyMillis = writeLatencyMillis;
+        for (Mutation mutation : Mutation.values()) {
+            mutationCounts.put(mutation, 0L);
+            mutationUsers.put(mutation, new HashSet<>());
+        }
+    }
+
+    /**
+     * @param args of a main function
+     * @return true if the args ask for a plan instead of a migration
+     */
+    public static boolean isRequested(String[] args) {
+        for (String arg : args) {
+            if (PLAN_ARG.equals(arg)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Counts a write that would have been sent to Bridge
+     * @param mutation kind of write
+     * @param userId of the participant it would have been sent for, or null if it is not for one
+     * @param count of requests
+     */
+    public synchronized void record(Mutation mutation, String userId, long count) {
+        if (count <= 0) {
+            return;
+        }
+        mutationCounts.put(mutation, mutationCounts.get(mutation) + count);
+        if (userId != null) {
+            mutationUsers.get(mutation).add(userId);
+        }
+    }
+
+    public void record(Mutation mutation, String userId) {
+        record(mutation, userId, 1);
+    }
+
+    /**
+     * Remembers an activity event that would have been published, so later reads include it
+     * @param userId of the participant
+     * @param studyId the event is in
+     * @param eventId of the event
+     * @param timestamp of the event
+     * @param timezone the event was published with
+     */
+    public synchronized void recordEvent(String userId, String studyId, String eventId,
+                                         DateTime timestamp, String timezone) {
+        StudyActivityEvent event = new StudyActivityEvent();
+        event.setEventId(eventId);
+        event.setTimestamp(timestamp);
+        event.setClientTimeZone(timezone);
+        plannedEvents.computeIfAbsent(userId + "/" + studyId, k -> new LinkedHashMap<>())
+                .put(eventId, event);
+    }
+
+    /**
+     * @param userId of the participant
+     * @param studyId the events are in
+     * @param eventList read from Bridge, or null if there were none
+     * @return a copy of the events, with the events that would have been published
+     *         replacing any Bridge has with the same ID, like a real run would
+     */
+    public synchronized StudyActivityEventList withPlannedEvents(
+            String userId, String studyId, StudyActivityEventList eventList) {
+        Map<String, StudyActivityEvent> planned = plannedEvents.get(userId + "/" + studyId);
+        if (planned == null) {
+            return eventList;
+        }
+        List<StudyActivityEvent> items = new ArrayList<>(planned.values());
+        if (eventList != null && eventList.getItems() != null) {
+            for (StudyActivityEvent event : eventList.getItems()) {
+                if (!planned.containsKey(event.getEventId())) {
+                    items.add(event);
+                }
+            }
+        }
+        // The list's items are read only, so start from an empty list, like Bridge returns
+        StudyActivityEventList merged = RestUtils.GSON.fromJson(
+                "{\"items\":[]}", StudyActivityEventList.class);
+        merged.getItems().addAll(items);
+        return merged;
+    }
+
+    /**
+     * @param endpoint name of the read request
+     * @param nanos it took to get the response
+     */
+    public synchronized void recordLatency(String endpoint, long nanos) {
+        long[] latency = readLatencies.computeIfAbsent(endpoint, k -> new long[2]);
+        latency[0]++;
+        latency[1] += nanos;
+    }
+
+    /**
+     * @param step name of the request, or of the local work, that runs before any participant is migrated
+     * @param nanos it took
+     */
+    public synchronized void recordSerialLatency(String step, long nanos) {
+        long[] latency = serialLatencies.computeIfAbsent(step, k -> new long[2]);
+        latency[0]++;
+        latency[1] += nanos;
+    }
+
+    public synchronized long getSerialCount() {
+        long count = 0;
+        for (long[] latency : serialLatencies.values()) {
+            count += latency[0];
+        }
+        return count;
+    }
+
+    public synchronized long getMutationCount(Mutation mutation) {
+        return mutationCounts.get(mutation);
+    }
+
+    public synchronized int getUserCount(Mutation mutation) {
+        return mutationUsers.get(mutation).size();
+    }
+
+    public synchronized long getReadCount() {
+        long count = 0;
+        for (long[] latency : readLatencies.values()) {
+            count += latency[0];
+        }
+        return count;
+    }
+
+    /**
+     * @return the estimated latency of a single write, or null if it can't be estimated
+     */
+    public synchronized Double writeLatencyMillis() {
+        if (writeLatencyMillis != null) {
+            return writeLatencyMillis.doubleValue();
+        }
+        long count = 0;
+        long nanos = 0;
+        for (long[] latency : readLatencies.values()) {
+            count += latency[0];
+            nanos += latency[1];
+        }
+        return (count == 0) ? null : nanosToMillis(nanos) / count;
+    }
+
+    /**
+     * @param concurrency the number of participants migrated at the same time
+     * @param participantCount the number of participants that would be migrated
+     * @return a lower bound of the wall-clock milliseconds of the real run,
+     *         or null if it can't be estimated
+     */
+    public synchronized Double estimateMillis(int concurrency, int participantCount) {
+        Double writeLatency = writeLatencyMillis();
+        if (writeLatency == null) {
+            return null;
+        }
+        double totalMillis = 0;
+        for (long[] latency : readLatencies.values()) {
+            totalMillis += nanosToMillis(latency[1]);
+        }
+        for (long count : mutationCounts.values()) {
+            totalMillis += count * writeLatency;
+        }
+        int parallel = Math.max(1, Math.min(concurrency, participantCount));
+        return totalMillis / parallel + nanosToMillis(serialNanos());
+    }
+
+    /**
+     * @param name of the run being planned
+     * @param participantCount the number of participants that would be migrated
+     * @return the mutation counts, the read and serial step latencies, and the runtime estimates, for printing
+     */
+    public synchronized String report(String name, int participantCount) {
+        StringBuilder str = new StringBuilder();
+        str.append("Plan for ").append(name).append(", ")
+                .append(participantCount).append(" participants");
+        str.append("\nWrites that would be sent:");
+        for (Mutation mutation : Mutation.values()) {
+            str.append("\n    ").append(mutation.name()).append(" ")
+                    .append(mutationCounts.get(mutation)).append(", for ")
+                    .append(mutationUsers.get(mutation).size()).append(" participants");
+        }
+        str.append("\nBridge reads sent while planning ").append(getReadCount()).append(":");
+        for (Map.Entry<String, long[]> entry : readLatencies.entrySet()) {
+            long[] latency = entry.getValue();
+            str.append("\n    ").append(entry.getKey()).append(" ").append(latency[0])
+                    .append(String.format(", mean %.1f ms", nanosToMillis(latency[1]) / latency[0]));
+        }
+        if (!serialLatencies.isEmpty()) {
+            str.append("\nSteps run one at a time before migrating participants ")
+                    .append(getSerialCount()).append(String.format(", %s:", formatDuration(
+                            nanosToMillis(serialNanos()))));
+            for (Map.Entry<String, long[]> entry : serialLatencies.entrySet()) {
+                long[] latency = entry.getValue();
+                str.append("\n    ").append(entry.getKey()).append(" ").append(latency[0])
+                        .append(String.format(", mean %.1f ms", nanosToMillis(latency[1]) / latency[0]));
+            }
+        }
+        Double writeLatency = writeLatencyMillis();
+        if (writeLatency == null) {
+            str.append("\nNo reads were timed, set ").append(ENV_PLAN_WRITE_LATENCY_MS)
+                    .append(" to estimate the runtime");
+            return str.toString();
+        }
+        str.append(String.format("\nEstimated write latency %.1f ms", writeLatency))
+                .append(writeLatencyMillis == null ? ", the mean read latency" : "");
+        str.append("\nEstimated runtime, at least:");
+        for (int concurrency : CONCURRENCY_LEVELS) {
+            str.append("\n    ").append(concurrency).append(" at a time ")
+                    .append(formatDuration(estimateMillis(concurrency, participantCount)));
+        }
+        return str.toString();
+    }
+
+    private long serialNanos() {
+        long nanos = 0;
+        for (long[] latency : serialLatencies.values()) {
+            nanos += latency[1];
+        }
+        return nanos;
+    }
+
+    private static double nanosToMillis(long nanos) {
+        return nanos / (double)TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    private static String formatDuration(double millis) {
+        long seconds = Math.round(millis / 1000.0);
+        return String.format("%d:%02d:%02d", seconds / 3600, (seconds / 60) % 60, seconds % 60);
+    }
+}
@@ -0,0 +1,194 @@
+package org.sagebionetworks.dian.datamigration;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import org.sagebionetworks.bridge.rest.RestUtils;
+import org.sagebionetworks.bridge.rest.model.StudyParticipant;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+/**
+ * In-memory cache of Bridge StudyParticipant objects, so that tools that look up the same
+ * participant more than once (by external ID or by Bridge user ID) do not need a network
+ * round-trip for every lookup.
+ *
+ * Entries expire after a TTL, and when the cache is full the least recently used entry is evicted.
+ * Any code that writes to a participant on Bridge should call invalidate() for that participant.
+ *
+ * Participants are copied on the way in and out, so a caller that modifies a participant before
+ * writing it can't change what the cache holds, even if the write fails.
+ */
+public class ParticipantCache {
+
+    // Default time a participant is considered fresh
+    public static final long DEFAULT_TTL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    // Default maximum number of participants held in memory at once
+    public static final int DEFAULT_MAX_SIZE = 5000;
+
+    private final long ttlMillis;
+    private final int maxSize;
+
+    // Access ordered, so that iteration order is least recently used first
+    private final LinkedHashMap<String, Entry> byExternalId;
+    // Bridge user ID to external ID, so that we can look up or invalidate by either key
+    private final Map<String, String> externalIdByUserId = new LinkedHashMap<>();
+
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long evictionCount = 0;
+
+    public ParticipantCache() {
+        this(DEFAULT_TTL_MILLIS, DEFAULT_MAX_SIZE);
+    }
+
+    public ParticipantCache(long ttlMillis, int maxSize) {
+        this.ttlMillis = ttlMillis;
+        this.maxSize = maxSize;
+        this.byExternalId = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > ParticipantCache.this.maxSize) {
+                    removeUserIdMapping(eldest.getValue());
+                    evictionCount++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @param externalId of the participant
+     * @return a copy of the cached participant, or null if it was not cached or has expired
+     */
+    public synchronized @Nullable StudyParticipant getByExternalId(String externalId) {
+        return hitOrMiss(externalId, byExternalId.get(externalId));
+    }
+
+    /**
+     * @param userId Bridge user ID of the participant
+     * @return a copy of the cached participant, or null if it was not cached or has expired
+     */
+    public synchronized @Nullable StudyParticipant getByUserId(String userId) {
+        String externalId = externalIdByUserId.get(userId);
+        Entry entry = (externalId == null) ? null : byExternalId.get(externalId);
+        return hitOrMiss(externalId, entry);
+    }
+
+    /**
+     * @param externalId that was used to look up the participant
+     * @param participant returned from Bridge
+     */
+    public synchronized void put(String externalId, StudyParticipant participant) {
+        if (externalId == null || participant == null) {
+            return;
+        }
+        Entry previous = byExternalId.remove(externalId);
+        if (previous != null) {
+            removeUserIdMapping(previous);
+        }
+        Entry entry = new Entry(copyOf(participant), now() + ttlMillis);
+        byExternalId.put(externalId, entry);
+        if (participant.getId() != null) {
+            externalIdByUserId.put(participant.getId(), externalId);
+        }
+    }
+
+    /**
+     * Call after writing to a participant, so the next lookup re-fetches it from Bridge
+     * @param userId Bridge user ID of the participant that was updated
+     */
+    public synchronized void invalidateUserId(String userId) {
+        String externalId = externalIdByUserId.remove(userId);
+        if (externalId != null) {
+            byExternalId.remove(externalId);
+        }
+    }
+
+    /**
+     * Call after writing to a participant, so the next lookup re-fetches it from Bridge
+     * @param externalId of the participant that was updated
+     */
+    public synchronized void invalidateExternalId(String externalId) {
+        Entry entry = byExternalId.remove(externalId);
+        if (entry != null) {
+            removeUserIdMapping(entry);
+        }
+    }
+
+    public synchronized void clear() {
+        byExternalId.clear();
+        externalIdByUserId.clear();
+        hitCount = 0;
+        missCount = 0;
+        evictionCount = 0;
+    }
+
+    public synchronized int size() {
+        return byExternalId.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * @return a one line summary of the cache counters, for logging at the end of a run
+     */
+    public synchronized String statsString() {
+        return "Participant cache hits " + hitCount + ", misses " + missCount +
+                ", evictions " + evictionCount + ", size " + byExternalId.size();
+    }
+
+    @VisibleForTesting
+    protected long now() {
+        return System.currentTimeMillis();
+    }
+
+    private StudyParticipant hitOrMiss(String externalId, Entry entry) {
+        if (entry == null) {
+            missCount++;
+            return null;
+        }
+        if (entry.expiresAt <= now()) {
+            invalidateExternalId(externalId);
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        return copyOf(entry.participant);
+    }
+
+    private static StudyParticipant copyOf(StudyParticipant participant) {
+        // The Bridge SDK models have no copy constructor, and do not expose setting the user ID
+        return RestUtils.GSON.fromJson(RestUtils.GSON.toJson(participant), StudyParticipant.class);
+    }
+
+    private void removeUserIdMapping(Entry entry) {
+        if (entry.participant.getId() != null) {
+            externalIdByUserId.remove(entry.participant.getId());
+        }
+    }
+
+    private static class Entry {
+        final StudyParticipant participant;
+        final long expiresAt;
+
+        Entry(StudyParticipant participant, long expiresAt) {
+            this.participant = participant;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package org.sagebionetworks.dian.datamigration;
+
+import org.sagebionetworks.bridge.rest.RestUtils;
+import org.sagebionetworks.bridge.rest.model.StudyParticipant;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import javax.annotation.Nullable;
+
+/**
+ * Write-behind buffer for participant updates.
+ *
+ * While a unit of work is open for a participant, attribute and client data updates are
+ * merged here instead of being sent to Bridge one at a time. When the unit of work ends,
+ * the merged update is sent once. This saves round-trips, and stops overlapping updates
+ * to the same participant from clobbering each other.
+ *
+ * Every update we send replaces the whole attribute map, or the whole client data,
+ * so merging keeps the most recent of each. A full participant replaces the attributes
+ * staged before it, because its own attributes are newer.
+ *
+ * The unit of work remembers the participant as it was when the unit began. If the merged
+ * update would not change its attributes or client data, like when a migration is run again,
+ * nothing is sent at all.
+ */
+public class ParticipantUpdateBuffer {
+
+    // User ID, to a copy of the participant when their unit of work began
+    private final Map<String, StudyParticipant> openParticipants = new HashMap<>();
+    private final Map<String, PendingUpdate> pendingUpdates = new HashMap<>();
+
+    private int stagedCount = 0;
+    private int flushedCount = 0;
+    private int unchangedCount = 0;
+
+    /**
+     * @param participant the unit of work is for, as it is on Bridge now
+     */
+    public synchronized void begin(StudyParticipant participant) {
+        openParticipants.put(participant.getId(), copyOf(participant));
+    }
+
+    /**
+     * @param userId Bridge user ID of the participant
+     * @return true if updates to this participant should be staged, instead of sent now
+     */
+    public synchronized boolean isOpen(String userId) {
+        return openParticipants.containsKey(userId);
+    }
+
+    /**
+     * @param userId Bridge user ID of the participant
+     * @param attributes that will replace the participant's attributes
+     */
+    public synchronized void stageAttributes(String userId, Map<String, String> attributes) {
+        pending(userId).attributes = new HashMap<>(attributes);
+        stagedCount++;
+    }
+
+    /**
+     * @param participant full participant to update, which includes its new client data
+     */
+    public synchronized void stageParticipant(StudyParticipant participant) {
+        PendingUpdate pending = pending(participant.getId());
+        pending.participant = participant;
+        pending.attributes = null;
+        pending.clientData = participant.getClientData();
+        pending.hasClientData = true;
+        stagedCount++;
+    }
+
+    /**
+     * Ends the unit of work for the participant
+     * @param userId Bridge user ID of the participant
+     * @return the single merged update to send to Bridge,
+     *         or null if nothing was staged, or it would not change the participant
+     */
+    public synchronized @Nullable StudyParticipant end(String userId) {
+        StudyParticipant original = openParticipants.remove(userId);
+        PendingUpdate pending = pendingUpdates.remove(userId);
+        if (pending == null) {
+            return null;
+        }
+        StudyParticipant update = (pending.participant != null) ?
+                pending.participant : new StudyParticipant();
+        if (pending.attributes != null) {
+            update.setAttributes(pending.attributes);
+        }
+        if (pending.hasClientData) {
+            update.setClientData(pending.clientData);
+        }
+        if (original != null && isUnchanged(original, update)) {
+            unchangedCount++;
+            return null;
+        }
+        flushedCount++;
+        return update;
+    }
+
+    /**
+     * Drops any staged updates without sending them, and resets the counts
+     */
+    public synchronized void clear() {
+        openParticipants.clear();
+        pendingUpdates.clear();
+        stagedCount = 0;
+        flushedCount = 0;
+        unchangedCount = 0;
+    }
+
+    /**
+     * @return a one line summary of how many updates were merged, for logging at the end of a run
+     */
+    public synchronized String statsString() {
+        return "Participant updates staged " + stagedCount + ", sent " + flushedCount +
+                ", unchanged " + unchangedCount;
+    }
+
+    private static boolean isUnchanged(StudyParticipant original, StudyParticipant update) {
+        return Objects.equals(attributesOf(original), attributesOf(update)) &&
+                RestUtils.GSON.toJsonTree(original.getClientData())
+                        .equals(RestUtils.GSON.toJsonTree(update.getClientData()));
+    }
+
+    private static Map<String, String> attributesOf(StudyParticipant participant) {
+        return (participant.getAttributes() == null) ?
+                Collections.emptyMap() : participant.getAttributes();
+    }
+
+    private static StudyParticipant copyOf(StudyParticipant participant) {
+        // Callers modify the participant when they stage it, so keep it as it was
+        return RestUtils.GSON.fromJson(RestUtils.GSON.toJson(participant), StudyParticipant.class);
+    }
+
+    private PendingUpdate pending(String userId) {
+        PendingUpdate pending = pendingUpdates.get(userId);
+        if (pending == null) {
+            pending = new PendingUpdate();
+            pendingUpdates.put(userId, pending);
+        }
+        return pending;
+    }
+
+    private static class PendingUpdate {
+        StudyParticipant participant = null;
+        Map<String, String> attributes = null;
+        Object clientData = null;
+        boolean hasClientData = false;
+    }
+}
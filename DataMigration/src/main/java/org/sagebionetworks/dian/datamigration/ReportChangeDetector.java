@@ -0,0 +1,145 @@
+package org.sagebionetworks.dian.datamigration;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+/**
+ * Decides if a singleton participant report needs written to Bridge, so that nightly runs
+ * can skip re-writing reports whose content has not changed since the last run.
+ *
+ * There are two ways to detect a change:
+ * HASH_STORE compares against the content hashes of what we last wrote, stored in a local file.
+ * READ_COMPARE downloads the current report once and compares it to the new content.
+ * It always reads Bridge, because a report served from the response cache could be out of date.
+ *
+ * Set the environmental var BR_REPORT_HASH_FILE to use HASH_STORE,
+ * or BR_REPORT_COMPARE to "true" to use READ_COMPARE.
+ */
+public class ReportChangeDetector {
+
+    public static final String ENV_REPORT_HASH_FILE = "BR_REPORT_HASH_FILE";
+    public static final String ENV_REPORT_COMPARE = "BR_REPORT_COMPARE";
+
+    public enum Mode {
+        OFF,
+        HASH_STORE,
+        READ_COMPARE
+    }
+
+    private final Mode mode;
+    private final ContentHashStore hashStore;
+
+    private int writesAvoided = 0;
+    private int writesPerformed = 0;
+
+    /**
+     * @return a change detector configured from the environmental vars,
+     *         or one that always writes reports if they are not set
+     * @throws IOException if the hash file could not be read
+     */
+    public static ReportChangeDetector fromEnvironment() throws IOException {
+        String hashFile = System.getenv(ENV_REPORT_HASH_FILE);
+        if (hashFile != null && !hashFile.isEmpty()) {
+            return new ReportChangeDetector(Mode.HASH_STORE,
+                    new ContentHashStore(Paths.get(hashFile)));
+        }
+        if (Boolean.parseBoolean(System.getenv(ENV_REPORT_COMPARE))) {
+            return new ReportChangeDetector(Mode.READ_COMPARE, null);
+        }
+        return off();
+    }
+
+    public static ReportChangeDetector off() {
+        return new ReportChangeDetector(Mode.OFF, null);
+    }
+
+    /**
+     * @param mode of change detection
+     * @param hashStore used by HASH_STORE mode, ignored otherwise
+     */
+    public ReportChangeDetector(Mode mode, ContentHashStore hashStore) {
+        if (mode == Mode.HASH_STORE && hashStore == null) {
+            throw new IllegalArgumentException("HASH_STORE mode requires a hash store");
+        }
+        this.mode = mode;
+        this.hashStore = hashStore;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * @param userId of the Bridge user
+     * @param reportId of the singleton report
+     * @param content that would be written
+     * @return true if the report needs written, false if Bridge already has this content
+     * @throws IOException if READ_COMPARE mode failed to read the current report
+     */
+    public boolean shouldWrite(String userId, String reportId, String content) throws IOException {
+        boolean isUnchanged;
+        switch (mode) {
+            case HASH_STORE:
+                isUnchanged = hashStore.matches(key(userId, reportId), content);
+                break;
+            case READ_COMPARE:
+                String current = BridgeJavaSdkUtil
+                        .getCurrentParticipantReportClientDataString(userId, reportId);
+                isUnchanged = current != null && current.equals(content);
+                break;
+            default:
+                isUnchanged = false;
+                break;
+        }
+        synchronized (this) {
+            if (isUnchanged) {
+                writesAvoided++;
+            }
+        }
+        return !isUnchanged;
+    }
+
+    /**
+     * Call after a report has been successfully written to Bridge
+     */
+    public void didWrite(String userId, String reportId, String content) {
+        synchronized (this) {
+            writesPerformed++;
+        }
+        if (mode == Mode.HASH_STORE) {
+            hashStore.put(key(userId, reportId), content);
+        }
+    }
+
+    /**
+     * Call after a report has been deleted from Bridge
+     */
+    public void didDelete(String userId, String reportId) {
+        if (mode == Mode.HASH_STORE) {
+            hashStore.remove(key(userId, reportId));
+        }
+    }
+
+    /**
+     * Persists the hashes of what was written, if in HASH_STORE mode
+     * @throws IOException if the hash file could not be written
+     */
+    public void save() throws IOException {
+        if (mode == Mode.HASH_STORE) {
+            hashStore.save();
+        }
+    }
+
+    public synchronized int getWritesAvoided() {
+        return writesAvoided;
+    }
+
+    public synchronized String statsString() {
+        return "Report writes avoided " + writesAvoided + ", performed " + writesPerformed +
+                " (change detection " + mode + ")";
+    }
+
+    private static String key(String userId, String reportId) {
+        return BridgeJavaSdkUtil.context().getBridgeId() + "/" + userId + "/" + reportId;
+    }
+}
@@ -0,0 +1,182 @@
+package org.sagebionetworks.dian.datamigration;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A small dependency graph of network requests for a single unit of work, like one participant.
+ * Each request starts as soon as the requests it depends on have finished, so requests that
+ * do not depend on each other run at the same time, and the total time is the critical path
+ * through the graph instead of the sum of all the requests.
+ *
+ * Usage:
+ *   RequestGraph graph = new RequestGraph();
+ *   graph.add("a", () -> fetchA());
+ *   graph.add("b", () -> fetchB());
+ *   graph.add("c", () -> writeC(), "a", "b");
+ *   graph.run();
+ *   String a = graph.get("a");
+ *
+ * Graphs can't be nested. Every graph shares one fixed pool of threads, and a request that runs a
+ * graph of its own would block a pool thread while it waits, so enough of them deadlock the pool.
+ * run() throws an IllegalStateException when it is called from a request of the shared pool,
+ * add those requests to the outer graph instead.
+ */
+public class RequestGraph {
+
+    // Maximum number of requests that can be in flight at once, across all graphs
+    public static final int MAX_CONCURRENT_REQUESTS = 8;
+
+    private static final AtomicInteger threadCount = new AtomicInteger(0);
+    // True on the threads of the shared pool, so nested graphs can fail fast instead of deadlocking
+    private static final ThreadLocal<Boolean> isSharedPoolThread = ThreadLocal.withInitial(() -> false);
+    private static final ExecutorService sharedExecutor =
+            Executors.newFixedThreadPool(MAX_CONCURRENT_REQUESTS, runnable -> {
+                Thread thread = new Thread(() -> {
+                    isSharedPoolThread.set(true);
+                    runnable.run();
+                }, "bridge-request-" + threadCount.incrementAndGet());
+                // Do not keep the JVM alive after a tool's main function finishes
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /**
+     * A network request that returns a value, or null if it has none
+     */
+    public interface Request<T> {
+        T call() throws IOException;
+    }
+
+    private final Executor executor;
+    private final Map<String, CompletableFuture<Object>> nodes = new LinkedHashMap<>();
+
+    public RequestGraph() {
+        this(sharedExecutor);
+    }
+
+    public RequestGraph(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * @return the executor shared by all request graphs, for other code that needs to
+     *         run bridge requests concurrently within the same overall request limit
+     */
+    public static Executor sharedExecutor() {
+        return sharedExecutor;
+    }
+
+    /**
+     * Adds a request to the graph, it starts once all of its dependencies have finished.
+     * @param name unique name of the request, used to get its result and to depend on it
+     * @param request to run
+     * @param dependsOn names of requests that were already added and must finish first
+     * @return this graph
+     */
+    public <T> RequestGraph add(String name, Request<T> request, String... dependsOn) {
+        if (nodes.containsKey(name)) {
+            throw new IllegalArgumentException("Request " + name + " was already added");
+        }
+        CompletableFuture<?>[] dependencies = new CompletableFuture<?>[dependsOn.length];
+        for (int i = 0; i < dependsOn.length; i++) {
+            CompletableFuture<Object> dependency = nodes.get(dependsOn[i]);
+            if (dependency == null) {
+                throw new IllegalArgumentException("Request " + name +
+                        " depends on " + dependsOn[i] + " which has not been added");
+            }
+            dependencies[i] = dependency;
+        }
+        // Requests run on other threads, so they need the bridge app of the thread that added them
+        BridgeClientContext context = BridgeJavaSdkUtil.boundContext();
+        CompletableFuture<Object> node = CompletableFuture.allOf(dependencies)
+                .thenApplyAsync(ignored -> {
+                    try {
+                        if (context == null) {
+                            return request.call();
+                        }
+                        return BridgeJavaSdkUtil.withContext(context, request);
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                }, executor);
+        nodes.put(name, node);
+        return this;
+    }
+
+    /**
+     * Waits for every request in the graph to finish.
+     * @throws IOException the first request failure, with any other failures added as suppressed
+     * @throws IllegalStateException if called from a request running on the shared pool
+     */
+    public void run() throws IOException {
+        if (executor == sharedExecutor && isSharedPoolThread.get()) {
+            throw new IllegalStateException("A RequestGraph can't be run from a request of another " +
+                    "graph, add its requests to the outer graph instead");
+        }
+        List<Throwable> failures = new ArrayList<>();
+        for (CompletableFuture<Object> node : nodes.values()) {
+            try {
+                node.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for requests", e);
+            } catch (ExecutionException e) {
+                Throwable cause = unwrap(e);
+                // A request that failed because its dependency failed shares the same cause
+                if (!failures.contains(cause)) {
+                    failures.add(cause);
+                }
+            }
+        }
+        if (failures.isEmpty()) {
+            return;
+        }
+        Throwable first = failures.get(0);
+        for (int i = 1; i < failures.size(); i++) {
+            first.addSuppressed(failures.get(i));
+        }
+        if (first instanceof IOException) {
+            throw (IOException)first;
+        }
+        if (first instanceof RuntimeException) {
+            throw (RuntimeException)first;
+        }
+        if (first instanceof Error) {
+            throw (Error)first;
+        }
+        throw new IOException(first);
+    }
+
+    /**
+     * @param name of the request
+     * @return the result of the request, only valid after run() returned successfully
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(String name) {
+        CompletableFuture<Object> node = nodes.get(name);
+        if (node == null) {
+            throw new IllegalArgumentException("No request named " + name);
+        }
+        return (T)node.join();
+    }
+
+    private static Throwable unwrap(Throwable throwable) {
+        Throwable cause = throwable;
+        while ((cause instanceof ExecutionException || cause instanceof CompletionException) &&
+                cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause;
+    }
+}
@@ -67,6 +67,9 @@ public class SynapseUtil {
 
     public static SynapseClient synapse;
 
+    // Set while planning a migration, to time the downloads
+    public static @Nullable MigrationPlan plan = null;
+
     private static Project project;
 
     // Directory name where all files are downloaded to and unzipped
@@ -163,11 +166,13 @@ public class SynapseUtil {
                     System.out.println("Downloading file " + downloadFileName);
                     File downloadFolderFile = downloadFolder
                             .downloadFolder().resolve(downloadFileName).toFile();
-                    synapse.downloadFile(file, downloadFolderFile);
+                    timed("synapseDownload", () -> {
+                        synapse.downloadFile(file, downloadFolderFile);
+                        return null;
+                    });
 
                     System.out.println("Unzipping file " + file.getAssociateObjectId() + ".zip");
-                    UnzipUtil.unzip(downloadFolderFile.getAbsolutePath(),
-                            downloadFolder.unzippedFolder().toFile().getAbsolutePath());
+                    unzip(downloadFolderFile, downloadFolder);
                 }
             }
         }
@@ -191,11 +196,48 @@ public class SynapseUtil {
             System.out.println("Downloading file " + downloadFileName);
             File downloadFolderFile = downloadFolder
                     .downloadFolder().resolve(downloadFileName).toFile();
-            synapse.downloadFile(file, downloadFolderFile);
+            timed("synapseDownload", () -> {
+                synapse.downloadFile(file, downloadFolderFile);
+                return null;
+            });
 
             System.out.println("Unzipping file " + file.getAssociateObjectId() + ".zip");
-            UnzipUtil.unzip(downloadFolderFile.getAbsolutePath(),
+            unzip(downloadFolderFile, downloadFolder);
+        }
+    }
+
+    private interface SynapseCall<T> {
+        T call() throws SynapseException;
+    }
+
+    /**
+     * @param step name the call is timed under, while planning a migration
+     * @param call to Synapse
+     * @return the result of the call
+     */
+    private static <T> T timed(String step, SynapseCall<T> call) throws SynapseException {
+        long start = System.nanoTime();
+        try {
+            return call.call();
+        } finally {
+            recordLatency(step, start);
+        }
+    }
+
+    private static void unzip(File zipFile, DownloadFolder downloadFolder) throws IOException {
+        long start = System.nanoTime();
+        try {
+            UnzipUtil.unzip(zipFile.getAbsolutePath(),
                     downloadFolder.unzippedFolder().toFile().getAbsolutePath());
+        } finally {
+            recordLatency("unzip", start);
+        }
+    }
+
+    private static void recordLatency(String step, long startNanos) {
+        MigrationPlan currentPlan = plan;
+        if (currentPlan != null) {
+            currentPlan.recordSerialLatency(step, System.nanoTime() - startNanos);
         }
     }
 
@@ -214,7 +256,8 @@ public class SynapseUtil {
         fileRequest.setIncludeTypes(Lists.newArrayList(type));
 
         while (true) {
-            EntityChildrenResponse fileResponse = synapse.getEntityChildren(fileRequest);
+            EntityChildrenResponse fileResponse = timed("synapseListChildren",
+                    () -> synapse.getEntityChildren(fileRequest));
             if (fileResponse.getPage() != null) {
                 entityHeaderList.addAll(fileResponse.getPage());
             }
@@ -280,7 +323,8 @@ public class SynapseUtil {
     private static FileHandleAssociation createFileHandlAssociation(
             EntityHeader entityHeader) throws SynapseException {
         String fileId = entityHeader.getId();
-        FileEntity fileEntity = synapse.getEntity(fileId, FileEntity.class);
+        FileEntity fileEntity = timed("synapseGetEntity",
+                () -> synapse.getEntity(fileId, FileEntity.class));
         String fileHandleId = fileEntity.getDataFileHandleId();
         FileHandleAssociation fileHandleAssociation = new FileHandleAssociation();
         fileHandleAssociation.setFileHandleId(fileHandleId);
@@ -0,0 +1,109 @@
+package org.sagebionetworks.dian.datamigration.tools.adherence
+
+import com.google.gson.Gson
+import com.google.gson.JsonElement
+import com.google.gson.JsonObject
+import org.sagebionetworks.bridge.rest.model.AdherenceRecord
+import org.sagebionetworks.dian.datamigration.HmDataModel.CompletedTest
+
+/**
+ * Compares a participant's V1 completed tests with the V2 adherence records made from them.
+ *
+ * Each adherence record's client data is decoded straight from the form it is in,
+ * a JsonObject when made by the migration, or a Map when read back from Bridge,
+ * instead of being serialized to JSON and parsed again.
+ * Completed tests are matched on their packed (week, day, session), so both directions
+ * of the difference are found in linear time.
+ */
+class CompletedTestDiff(
+        val completedList: List<CompletedTest>,
+        adherence: List<AdherenceRecord>) {
+
+    companion object {
+        private val gson = Gson()
+
+        /**
+         * @param clientData of an adherence record created from a CompletedTestV2
+         * @return the completed test in the client data, with its week 0 day offset reversed,
+         *         or null if the record has no client data
+         */
+        @JvmStatic
+        fun decode(clientData: Any?): CompletedTest? {
+            val completed = when (clientData) {
+                null -> return null
+                is JsonObject -> CompletedTest(
+                        clientData.intField("week"), clientData.intField("day"),
+                        clientData.intField("session"), clientData.doubleField("completedOn"))
+                is Map<*, *> -> CompletedTest(
+                        clientData.intField("week"), clientData.intField("day"),
+                        clientData.intField("session"), clientData.doubleField("completedOn"))
+                is JsonElement -> gson.fromJson(clientData, CompletedTest::class.java)
+                else -> gson.fromJson(gson.toJsonTree(clientData), CompletedTest::class.java)
+            } ?: return null
+            // To make V2 of the earnings controller more simple and get rid of the
+            // the odd first study burst day offset, all week 0 sessions were moved a day backwards
+            // so that they match the rest of the study bursts, and have day as 0 for the first day.
+            // This code reverses that functionality, so we match up the completed tests properly
+            if ((completed.week == 0 || completed.week == 1) && completed.day >= 0) {
+                completed.day = completed.day + 1
+            }
+            return completed
+        }
+
+        private fun JsonObject.intField(name: String): Int {
+            val value = get(name)
+            return if (value == null || value.isJsonNull) 0 else value.asNumber.toInt()
+        }
+
+        private fun JsonObject.doubleField(name: String): Double {
+            val value = get(name)
+            return if (value == null || value.isJsonNull) 0.0 else value.asDouble
+        }
+
+        private fun Map<*, *>.intField(name: String): Int {
+            return when (val value = get(name)) {
+                is Number -> value.toInt()
+                is String -> value.toDouble().toInt()
+                else -> 0
+            }
+        }
+
+        private fun Map<*, *>.doubleField(name: String): Double {
+            return when (val value = get(name)) {
+                is Number -> value.toDouble()
+                is String -> value.toDouble()
+                else -> 0.0
+            }
+        }
+
+        private fun key(test: CompletedTest): CompletedTestIndex.Key {
+            return CompletedTestIndex.keyOf(test)
+        }
+    }
+
+    /** The completed tests decoded from the adherence records, in the same order **/
+    val adherenceList: List<CompletedTest> = adherence.mapNotNull { decode(it.clientData) }
+
+    /** Completed tests that do not have a matching adherence record **/
+    val missingFromAdherence: List<CompletedTest> by lazy {
+        val adherenceKeys = adherenceList.mapTo(HashSet(adherenceList.size * 2)) { key(it) }
+        completedList.filter { !adherenceKeys.contains(key(it)) }
+    }
+
+    /** Adherence records that do not have a matching completed test **/
+    val missingFromCompleted: List<CompletedTest> by lazy {
+        val completedKeys = completedList.mapTo(HashSet(completedList.size * 2)) { key(it) }
+        adherenceList.filter { !completedKeys.contains(key(it)) }
+    }
+
+    /**
+     * @return the same difference as SageScheduleController.diff, from whichever list is longer
+     */
+    fun diff(): List<CompletedTest> {
+        return if (adherenceList.size < completedList.size) {
+            missingFromAdherence
+        } else {
+            missingFromCompleted
+        }
+    }
+}
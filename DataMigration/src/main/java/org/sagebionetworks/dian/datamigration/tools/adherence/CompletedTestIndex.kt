@@ -0,0 +1,92 @@
+package org.sagebionetworks.dian.datamigration.tools.adherence
+
+import org.sagebionetworks.dian.datamigration.HmDataModel.CompletedTest
+
+/**
+ * Looks up a completed test by its (week, day, session), without scanning the completed test list.
+ *
+ * The tests are stored in a dense array, indexed by each test's offset from the smallest week,
+ * day, and session in the list. Lists whose values are too far apart use a map keyed by Key.
+ * Like firstOrNull, the first test in the list wins when there are duplicates.
+ */
+class CompletedTestIndex(val completedTests: List<CompletedTest>) {
+
+    companion object {
+        /**
+         * Completed tests with values this far apart are not real data,
+         * but don't let them allocate a huge array, fall back to a map instead
+         */
+        const val MAX_DENSE_SIZE = 1 shl 20
+
+        /**
+         * @return the (week, day, session) of the test, for use as a hash key
+         */
+        @JvmStatic
+        fun keyOf(test: CompletedTest): Key {
+            return Key(test.week, test.day, test.session)
+        }
+    }
+
+    /**
+     * A completed test's (week, day, session), every value is valid, including negative ones
+     */
+    data class Key(val week: Int, val day: Int, val session: Int)
+
+    // Ranges are Longs, as an Int range from a negative to a positive value can overflow
+    private val minWeek = completedTests.minOfOrNull { it.week } ?: 0
+    private val minDay = completedTests.minOfOrNull { it.day } ?: 0
+    private val minSession = completedTests.minOfOrNull { it.session } ?: 0
+    private val weekCount = (completedTests.maxOfOrNull { it.week }?.toLong() ?: -1L) - minWeek + 1
+    private val dayCount = (completedTests.maxOfOrNull { it.day }?.toLong() ?: -1L) - minDay + 1
+    private val sessionCount = (completedTests.maxOfOrNull { it.session }?.toLong() ?: -1L) - minSession + 1
+
+    private val dense: Array<CompletedTest?>?
+    private val sparse: Map<Key, CompletedTest>?
+
+    init {
+        // Each count is at most 2^32, so only check the size once it can't overflow
+        val size = if (weekCount > MAX_DENSE_SIZE || dayCount > MAX_DENSE_SIZE ||
+                sessionCount > MAX_DENSE_SIZE) Long.MAX_VALUE else weekCount * dayCount * sessionCount
+        if (size <= MAX_DENSE_SIZE) {
+            val array = arrayOfNulls<CompletedTest>(size.toInt())
+            for (test in completedTests) {
+                val key = denseKey(test.week, test.day, test.session)
+                if (array[key] == null) {
+                    array[key] = test
+                }
+            }
+            dense = array
+            sparse = null
+        } else {
+            val map = HashMap<Key, CompletedTest>(completedTests.size * 2)
+            for (test in completedTests) {
+                map.putIfAbsent(keyOf(test), test)
+            }
+            dense = null
+            sparse = map
+        }
+    }
+
+    /**
+     * @return the first completed test with the week, day, and session, or null if there is none
+     */
+    fun find(week: Int, day: Int, session: Int): CompletedTest? {
+        dense?.let {
+            if (week.toLong() - minWeek !in 0 until weekCount ||
+                    day.toLong() - minDay !in 0 until dayCount ||
+                    session.toLong() - minSession !in 0 until sessionCount) {
+                return null
+            }
+            return it[denseKey(week, day, session)]
+        }
+        return sparse?.get(Key(week, day, session))
+    }
+
+    /**
+     * Only called for values within the dense array's ranges, so the key always fits in an Int
+     */
+    private fun denseKey(week: Int, day: Int, session: Int): Int {
+        return ((((week.toLong() - minWeek) * dayCount) + (day.toLong() - minDay)) * sessionCount +
+                (session.toLong() - minSession)).toInt()
+    }
+}
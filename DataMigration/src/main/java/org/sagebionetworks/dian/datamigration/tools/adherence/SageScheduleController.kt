@@ -12,6 +12,7 @@ import org.sagebionetworks.dian.datamigration.tools.schedulev2.AdherenceToolV2
 import org.sagebionetworks.dian.datamigration.tools.schedulev2.WakeSleepSchedule
 import org.sagebionetworks.research.sagearc.SageEarningsController
 import java.util.*
+import java.util.concurrent.ThreadLocalRandom
 
 open class SageScheduleController {
 
@@ -64,6 +65,21 @@ open class SageScheduleController {
             return String.format(ACTIVITY_EVENT_STUDY_BURST_FORMAT, burstIdx)
         }
 
+        /**
+         * Convert the activity event identifier into a study burst index
+         * @param activityEventId that triggers the study burst
+         * @return -1 for baseline session, 0-based index for study burst
+         */
+        fun studyBurstIndexOf(activityEventId: String): Int {
+            // Only the baseline session is scheduled with this event,
+            // return -1 in this case, as this is not technically part of the study burst
+            if (activityEventId == ACTIVITY_EVENT_CREATE_SCHEDULE) {
+                return -1
+            }
+            val lastTwoChars = activityEventId.substring(activityEventId.length - 2)
+            return lastTwoChars.toInt() - 1  // -1 for 0 based study burst index
+        }
+
         /**
          * Converts an HM timestamp that are stored on both iOS/Android to a DateTime
          * @param hmTimeStamp a unix timestamp since 1970 in seconds
@@ -81,7 +97,7 @@ open class SageScheduleController {
          */
         public fun createDateTime(hmTimeStamp: Double, timezone: String): DateTime {
             return DateTime((hmTimeStamp * 1000).toLong(),
-                    DateTimeZone.forTimeZone(TimeZone.getTimeZone(timezone)))
+                    TimezoneResolver.dateTimeZone(timezone))
         }
     }
 
@@ -113,44 +129,8 @@ open class SageScheduleController {
      */
     open fun createV2Availability(availability: WakeSleepSchedule): SageV2Availability {
 
-        val formatter = DateTimeFormatterBuilder()
-                .appendPattern("h:mm a")
-                .toFormatter()
-                .withLocale(Locale.US)
-        val twentyFourHourFormatter = DateTimeFormatterBuilder()
-                .appendPattern("H:mm")
-                .toFormatter()
-                .withLocale(Locale.US)
-
-        val wakeStr = availability.wakeSleepData.first().wake
-                .replace("a.m.", "AM")
-                .replace("p.m.", "PM")
-                .replace("a. m.", "AM")
-                .replace("p. m.", "PM")
-                .replace("午前", "AM")
-                .replace("午後", "PM")
-
-        val bedStr = availability.wakeSleepData.first().bed
-                .replace("a.m.", "AM")
-                .replace("p.m.", "PM")
-                .replace("a. m.", "AM")
-                .replace("p. m.", "PM")
-                .replace("午前", "AM")
-                .replace("午後", "PM")
-
-        val wakeLocalTime = if (wakeStr.uppercase().contains("AM") ||
-                wakeStr.uppercase().contains("PM")) {
-            LocalTime.parse(wakeStr, formatter)
-        } else {
-            LocalTime.parse(wakeStr, twentyFourHourFormatter)
-        }
-
-        val bedLocalTime = if (bedStr.uppercase().contains("AM") ||
-                bedStr.uppercase().contains("PM")) {
-            LocalTime.parse(bedStr, formatter)
-        } else {
-            LocalTime.parse(bedStr, twentyFourHourFormatter)
-        }
+        val wakeLocalTime = WakeSleepTimeParser.parse(availability.wakeSleepData.first().wake)
+        val bedLocalTime = WakeSleepTimeParser.parse(availability.wakeSleepData.first().bed)
 
         return SageV2Availability(
                 SageV2Availability.formatter.print(wakeLocalTime),
@@ -198,6 +178,33 @@ open class SageScheduleController {
             dailySessions: List<ScheduledSession>,
             earningsController: SageEarningsControllerV2)
         : CompletedTestV2? {
+        return findCompletedTest(session, earningsController) {
+            sessionOfDayIdx(session, dailySessions)
+        }
+    }
+
+    /**
+     * Finds a completed test that matches the V2 bridge scheduled session info
+     * @param session target to find a match in the completed tests
+     * @param timelineIndex of the timeline that includes the session
+     * @param earningsController that contains the completed test list, and is all setup
+     * @return a matching completed test for the session, or null if none exists
+     */
+    public fun findCompletedTest(
+            session: ScheduledSession,
+            timelineIndex: TimelineIndex,
+            earningsController: SageEarningsControllerV2)
+            : CompletedTestV2? {
+        return findCompletedTest(session, earningsController) {
+            timelineIndex.sessionOfDayIdx(session)
+        }
+    }
+
+    private inline fun findCompletedTest(
+            session: ScheduledSession,
+            earningsController: SageEarningsControllerV2,
+            findSessionIndex: () -> Int)
+            : CompletedTestV2? {
 
         val index = studyBurstIndex(session.startEventId)
         if (index < 0) {
@@ -219,13 +226,10 @@ open class SageScheduleController {
             session.startDay
         }
 
-        val sessionIndex = sessionOfDayIdx(session, dailySessions)
+        val sessionIndex = findSessionIndex()
         // Find the matching CompletedTest based of week/day/session_idx
-        val matchingTest = earningsController.completedTests.firstOrNull {
-            it.week == studyBurstWeekNum &&
-            it.day == dayOfWeekIdx &&
-            it.session == sessionIndex
-        }
+        val matchingTest = earningsController.completedTestIndex()
+                .find(studyBurstWeekNum, dayOfWeekIdx, sessionIndex)
         // Set the EventId in V2 of the EarningsController
         return CompletedTestV2.createFrom(session.startEventId, matchingTest)
     }
@@ -262,19 +266,35 @@ open class SageScheduleController {
         return eventList.items.first { it.eventId == eventId }.timestamp
     }
 
+    /**
+     * @param eventList the list of activity events and their event date
+     * @return the event date of each activity event identifier, the first event wins like eventTimestamp
+     */
+    public fun eventTimestampMap(eventList: StudyActivityEventList): Map<String, DateTime> {
+        val map = HashMap<String, DateTime>(eventList.items.size * 2)
+        for (event in eventList.items) {
+            map.putIfAbsent(event.eventId, event.timestamp)
+        }
+        return map
+    }
+
+    /**
+     * @param eventId the activity event identifier
+     * @param eventTimestamps created by eventTimestampMap
+     * @return the event date corresponding to the eventId
+     */
+    public fun eventTimestamp(eventId: String, eventTimestamps: Map<String, DateTime>): DateTime {
+        return eventTimestamps[eventId]
+                ?: throw NoSuchElementException("No activity event with id $eventId")
+    }
+
     /**
      * Convert the activity event identifier into a study burst index
      * @param activityEventId that triggers the study burst
      * @return -1 for baseline session, 0-based index for study burst
      */
     public fun studyBurstIndex(activityEventId: String): Int {
-        // Only the baseline session is scheduled with this event,
-        // return -1 in this case, as this is not technically part of the study burst
-        if (activityEventId == ACTIVITY_EVENT_CREATE_SCHEDULE) {
-            return -1
-        }
-        val lastTwoChars = activityEventId.substring(activityEventId.length - 2)
-        return lastTwoChars.toInt() - 1  // -1 for 0 based study burst index
+        return studyBurstIndexOf(activityEventId)
     }
 
     /**
@@ -287,51 +307,21 @@ open class SageScheduleController {
         // but it’s not IANA, it’s Java’s old java.util.TimeZone.getDefault().
         // Bridge 2.0 API requires an IANA time zone, so we do some conversion here.
         if (rawTimezone != null) {
-            var timezone: String? = rawTimezone // Remove unnecessary text (from iOS app)
-                    .replace(" (fixed (equal to current))", "")
-                    .replace(" (current)", "")
-            if (IANA_TIMEZONE_MAP.containsKey(timezone)) {
-                timezone = IANA_TIMEZONE_MAP[timezone]
-            }
-            return timezone
+            return TimezoneResolver.ianaName(rawTimezone)
         }
         return default
     }
 
+    /**
+     * @param completedList the V1 completed tests of a participant
+     * @param adherence the V2 adherence records of a participant
+     * @return the completed tests in the longer list that are not in the other one,
+     *         see CompletedTestDiff to get both directions
+     */
     open fun diff(completedList: List<HmDataModel.CompletedTest>,
                   adherence: List<AdherenceRecord>):
             List<HmDataModel.CompletedTest> {
-
-        val gson = Gson()
-        val adherenceCompleteTestList = adherence.map {
-            var completed = gson.fromJson(gson.toJson(it.clientData),
-                    HmDataModel.CompletedTest::class.java)
-            // To make V2 of the earnings controller more simple and get rid of the
-            // the odd first study burst day offset, let's move all week 0 session a day backwards
-            // so that they match the rest of the study bursts, and have day as 0 for the first day.
-            // This code reverses that functionality, so we match up the completed tests properly
-            if ((completed.week == 0 || completed.week == 1) && completed.day >= 0) {
-                completed.day = completed.day + 1
-            }
-            return@map completed
-        }
-        if (adherenceCompleteTestList.size < completedList.size) {
-            return completedList.filter {
-                !adherenceCompleteTestList.any { it2 ->
-                    it.week == it2.week &&
-                    it.day == it2.day &&
-                    it.session == it2.session
-                }
-            }
-        } else {
-            return adherenceCompleteTestList.filter {
-                !completedList.any { it2 ->
-                    it.week == it2.week &&
-                            it.day == it2.day &&
-                            it.session == it2.session
-                }
-            }
-        }
+        return CompletedTestDiff(completedList, adherence).diff()
     }
 
     /**
@@ -342,9 +332,33 @@ open class SageScheduleController {
      */
     open fun createAvailableTimeList(sessionList: List<ScheduledSession>,
                                      availability: SageV2Availability): List<ScheduledSessionStart> {
+        return createAvailableTimeList(TimelineIndex(sessionList), availability)
+    }
+
+    /**
+     * Create the availability time list for the entire user's scheduled sessions
+     * @param timelineIndex of the user's schedule
+     * @param availability the availability of the user for when they can do tests
+     * @return a list the new random start times for each session, except for the baseline session
+     */
+    open fun createAvailableTimeList(timelineIndex: TimelineIndex,
+                                     availability: SageV2Availability): List<ScheduledSessionStart> {
+        return createAvailableTimeList(timelineIndex, availability, SessionTimeRandom.forArcId(null))
+    }
+
+    /**
+     * Create the availability time list for the entire user's scheduled sessions
+     * @param timelineIndex of the user's schedule
+     * @param availability the availability of the user for when they can do tests
+     * @param random used for all the random start times, see SessionTimeRandom
+     * @return a list the new random start times for each session, except for the baseline session
+     */
+    open fun createAvailableTimeList(timelineIndex: TimelineIndex,
+                                     availability: SageV2Availability,
+                                     random: Random): List<ScheduledSessionStart> {
         // Ignore baseline group that only has one session in the list, this is not scheduled randomly
-        return organizeByDaySorted(sessionList).filter { it.size > 1 }.map {
-            val randomTimeList = availability.randomSessionTimeStrings()
+        return timelineIndex.daysSortedByStartTime.filter { it.size > 1 }.map {
+            val randomTimeList = availability.randomSessionTimeStrings(random)
             return@map it.mapIndexed { i, session ->
                 return@mapIndexed ScheduledSessionStart(session.instanceGuid, randomTimeList[i])
             }
@@ -359,14 +373,7 @@ open class SageScheduleController {
      *         sorted within that group by local start time
      */
     open fun organizeByDaySorted(sessionList: List<ScheduledSession>): List<List<ScheduledSession>> {
-        val sessionMap = mutableMapOf<Int, MutableList<ScheduledSession>>()
-        sessionList.forEach {
-            val mapIdx = ((studyBurstIndex(it.startEventId) + 1) * 7) + it.startDay
-            sessionMap[mapIdx]?.add(it) ?: run {
-                sessionMap[mapIdx] = mutableListOf(it)
-            }
-        }
-        return sessionMap.toSortedMap().map { it.value.sortedBy { it.startTime } }
+        return TimelineIndex(sessionList).daysSortedByStartTime
     }
 }
 
@@ -456,6 +463,10 @@ data class SageV2Availability(
         return convertToTimeStringList(randomSessionTimes())
     }
 
+    fun randomSessionTimeStrings(random: Random): List<String> {
+        return convertToTimeStringList(randomSessionTimes(random))
+    }
+
     // In at least a span of 8 hours of availability,
     // there should be 4 testing periods,
     // each one >= to 2 hours apart.
@@ -465,13 +476,20 @@ data class SageV2Availability(
     // the test times (meaning when they take the tests, not necessarily when they get the notifications)
     // somewhat spontaneous/irregular.
     fun randomSessionTimes(): List<LocalTime> {
-        var wakeTime = wakeLocalTime()
-        val totalAvailabilityInMinutes = availabilityInMinutes()
+        return randomSessionTimes(ThreadLocalRandom.current())
+    }
+
+    /**
+     * @param random used for the random offsets, pass a seeded one to get the same times every time
+     * @return the random session times, as outlined above
+     */
+    fun randomSessionTimes(random: Random): List<LocalTime> {
+        val wakeTime = wakeLocalTime()
+        val totalAvailabilityInMinutes = minutesBetween(wakeTime, bedLocalTime())
         val minimumSessionWindow = minimumAvailabilityInMinutes / SageScheduleController.sessionsInADay
         val actualSessionWindows = totalAvailabilityInMinutes / SageScheduleController.sessionsInADay
         val randomWindowInMinutes = actualSessionWindows - minimumSessionWindow
         val randomTimes = mutableListOf<LocalTime>()
-        val random = Random()
         for(i in 0 until SageScheduleController.sessionsInADay) {
             val randomOffset = when (randomWindowInMinutes) {
                 0 -> 0 // fixes issues where random.nextInt(0) throws exception
@@ -543,13 +561,31 @@ open class SageEarningsControllerV2 : SageEarningsController() {
         super.completedTests = completedTestList
     }
 
+    private var completedTestIndex: CompletedTestIndex? = null
+
+    /**
+     * @return an index of the completed tests, built once and rebuilt only when they are set again
+     */
+    fun completedTestIndex(): CompletedTestIndex {
+        val tests = completedTests
+        completedTestIndex?.let {
+            if (it.completedTests === tests) {
+                return it
+            }
+        }
+        return CompletedTestIndex(tests).also { completedTestIndex = it }
+    }
+
     override fun arcStartDays(): HashMap<Int, Int> {
         return studyBurstStartDays
     }
 
+    /** When set, earnings are calculated at this time, instead of the current time **/
+    var overridingNow: DateTime? = null
+
     override fun now(): DateTime {
         // Move one study burst into the future to make sure we get all earnings
-        return super.now().plusWeeks(26)
+        return (overridingNow ?: super.now()).plusWeeks(26)
     }
 }
 
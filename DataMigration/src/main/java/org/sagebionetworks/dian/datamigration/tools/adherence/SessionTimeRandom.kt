@@ -0,0 +1,58 @@
+package org.sagebionetworks.dian.datamigration.tools.adherence
+
+import java.util.*
+import java.util.concurrent.ThreadLocalRandom
+
+/**
+ * Picks the random number generator used to create a participant's session start times.
+ *
+ * By default this is the calling thread's ThreadLocalRandom, which needs no allocation
+ * and no synchronization between participants that are migrated in parallel.
+ *
+ * Set the environmental var BR_SESSION_TIME_SEED to a number to instead seed each participant's
+ * generator from that number and their ARC ID, so running with the same seed regenerates
+ * identical sessionStartLocalTimes, for example to audit a past migration.
+ */
+object SessionTimeRandom {
+
+    const val ENV_SESSION_TIME_SEED = "BR_SESSION_TIME_SEED"
+
+    private val environmentSeed: Long? = System.getenv(ENV_SESSION_TIME_SEED)?.toLongOrNull()
+
+    /**
+     * @param arcId of the participant
+     * @return the random number generator to use for the participant's session times,
+     *         only use it on the calling thread
+     */
+    fun forArcId(arcId: String?): Random {
+        return forArcId(arcId, environmentSeed)
+    }
+
+    /**
+     * @param arcId of the participant
+     * @param seed shared by all participants, or null to not be deterministic
+     * @return a generator seeded from the seed and ARC ID, or the thread's ThreadLocalRandom
+     */
+    fun forArcId(arcId: String?, seed: Long?): Random {
+        if (arcId == null || seed == null) {
+            return ThreadLocalRandom.current()
+        }
+        return Random(seedOf(arcId, seed))
+    }
+
+    /**
+     * @return a 64 bit seed that is stable across JVMs, unlike an object's hashCode
+     */
+    private fun seedOf(arcId: String, seed: Long): Long {
+        // FNV-1a hash of the ARC ID, mixed with the shared seed
+        var hash = -0x340d631b7bdddcdbL
+        for (c in arcId) {
+            hash = (hash xor c.code.toLong()) * 0x100000001b3L
+        }
+        // SplitMix64 finalizer, so ARC IDs that differ by one digit get unrelated seeds
+        var z = hash xor seed
+        z = (z xor (z ushr 30)) * -0x40a7b892e31b1a47L
+        z = (z xor (z ushr 27)) * -0x6b2fb644ecceee15L
+        return z xor (z ushr 31)
+    }
+}
@@ -0,0 +1,80 @@
+package org.sagebionetworks.dian.datamigration.tools.adherence
+
+import org.joda.time.LocalTime
+import org.sagebionetworks.bridge.rest.model.ScheduledSession
+
+/**
+ * An immutable index over the sessions of a Timeline, so that looking up the sessions of a day,
+ * and a session's index within its day, does not filter and re-sort the whole schedule each time.
+ *
+ * Building the index is linear in the number of sessions, plus sorting each day's few sessions.
+ * The Timeline is the same for every participant in a study, so one index can be shared by all of them.
+ */
+class TimelineIndex(val sessions: List<ScheduledSession>) {
+
+    /**
+     * Sessions are grouped into days by the event that started them, and their start day
+     */
+    private data class DayKey(val eventId: String?, val startDay: Int?)
+
+    /** All the sessions of each day, in schedule order **/
+    private val dayMap: Map<DayKey, List<ScheduledSession>>
+    /** The index of each session within its day, when the day is sorted by start time **/
+    private val sessionOfDayIdxMap: Map<String, Int>
+
+    init {
+        val days = LinkedHashMap<DayKey, MutableList<ScheduledSession>>()
+        for (session in sessions) {
+            days.getOrPut(DayKey(session.startEventId, session.startDay)) { mutableListOf() }
+                    .add(session)
+        }
+        dayMap = days
+
+        val idxMap = HashMap<String, Int>(sessions.size * 2)
+        for (daySessions in days.values) {
+            // Parse each start time once, instead of on every comparison
+            val sorted = daySessions
+                    .map { Pair(LocalTime.parse(it.startTime), it) }
+                    .sortedBy { it.first }
+            sorted.forEachIndexed { idx, pair ->
+                // The first session with an instanceGuid wins, like indexOfFirst
+                idxMap.putIfAbsent(pair.second.instanceGuid, idx)
+            }
+        }
+        sessionOfDayIdxMap = idxMap
+    }
+
+    /**
+     * The same groups as SageScheduleController.organizeByDaySorted.
+     * This is lazy, as it needs every startEventId to be a valid study burst event ID.
+     */
+    val daysSortedByStartTime: List<List<ScheduledSession>> by lazy {
+        val burstIdxMap = HashMap<String?, Int>()
+        val sessionMap = HashMap<Int, MutableList<ScheduledSession>>()
+        for (session in sessions) {
+            val burstIdx = burstIdxMap.getOrPut(session.startEventId) {
+                SageScheduleController.studyBurstIndexOf(session.startEventId)
+            }
+            val mapIdx = ((burstIdx + 1) * 7) + session.startDay
+            sessionMap.getOrPut(mapIdx) { mutableListOf() }.add(session)
+        }
+        sessionMap.toSortedMap().map { it.value.sortedBy { session -> session.startTime } }
+    }
+
+    /**
+     * @param activityEventId the activity event group that dayNumber is in reference to
+     * @param startDay the start day of the sessions to find
+     * @return all sessions of the day, in schedule order, like SageScheduleController.allSessionsOfDay
+     */
+    fun sessionsOfDay(activityEventId: String?, startDay: Int?): List<ScheduledSession> {
+        return dayMap[DayKey(activityEventId, startDay)] ?: emptyList()
+    }
+
+    /**
+     * @param session scheduled session in this timeline
+     * @return the same index as SageScheduleController.sessionOfDayIdx, or -1 if it's not in the timeline
+     */
+    fun sessionOfDayIdx(session: ScheduledSession): Int {
+        return sessionOfDayIdxMap[session.instanceGuid] ?: -1
+    }
+}
@@ -0,0 +1,74 @@
+package org.sagebionetworks.dian.datamigration.tools.adherence
+
+import org.joda.time.DateTimeZone
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Resolves HM's time zone names, and the IANA time zones they are converted to, once per name.
+ *
+ * Every session of every participant needs a time zone, but participants only use a handful
+ * of distinct names, so the conversions are cached in concurrent maps shared by all threads.
+ *
+ * java.util.TimeZone silently falls back to GMT for names it does not know, so those names
+ * are remembered as unresolved, to show where IANA_TIMEZONE_MAP is missing a conversion.
+ */
+object TimezoneResolver {
+
+    private const val GMT = "GMT"
+
+    private val ianaNameCache = ConcurrentHashMap<String, String>()
+    private val zoneCache = ConcurrentHashMap<String, DateTimeZone>()
+    private val unresolved: MutableSet<String> = ConcurrentHashMap.newKeySet()
+
+    /**
+     * @param rawTimezone timezone name from HM schedule
+     * @return the IANA time zone name, or null if rawTimezone is null
+     */
+    fun ianaName(rawTimezone: String?): String? {
+        rawTimezone ?: return null
+        return ianaNameCache.computeIfAbsent(rawTimezone) { raw ->
+            // Remove unnecessary text (from iOS app)
+            val timezone = raw
+                    .replace(" (fixed (equal to current))", "")
+                    .replace(" (current)", "")
+            SageScheduleController.IANA_TIMEZONE_MAP[timezone] ?: timezone
+        }
+    }
+
+    /**
+     * @param timezone a valid timezone name
+     * @return the time zone, which is UTC if the name is unknown, like TimeZone.getTimeZone
+     */
+    fun dateTimeZone(timezone: String): DateTimeZone {
+        return zoneCache.computeIfAbsent(timezone) { name ->
+            val javaTimeZone = TimeZone.getTimeZone(name)
+            if (javaTimeZone.id == GMT && name != GMT) {
+                unresolved.add(name)
+            }
+            DateTimeZone.forTimeZone(javaTimeZone)
+        }
+    }
+
+    /**
+     * @param timezone a timezone name
+     * @return true if the name is a known time zone, false if dateTimeZone falls back to UTC for it
+     */
+    fun isKnown(timezone: String): Boolean {
+        dateTimeZone(timezone)
+        return !unresolved.contains(timezone)
+    }
+
+    /**
+     * @return the time zone names that were not known, and fell back to UTC
+     */
+    fun unresolvedNames(): Set<String> {
+        return TreeSet(unresolved)
+    }
+
+    fun statsString(): String {
+        val names = unresolvedNames()
+        return "Time zones resolved " + zoneCache.size + ", unresolved " + names.size +
+                (if (names.isEmpty()) "" else " " + names.joinToString(", "))
+    }
+}
@@ -0,0 +1,88 @@
+package org.sagebionetworks.dian.datamigration.tools.adherence
+
+import org.joda.time.LocalTime
+import org.joda.time.format.DateTimeFormatter
+import org.joda.time.format.DateTimeFormatterBuilder
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Parses the wake and bed times of a V1 wake sleep schedule, like "8:30 AM", "7:00 p. m.",
+ * "午後9:00", or "21:00", into a LocalTime.
+ *
+ * Joda formatters are immutable, so they are built once and shared by every thread.
+ * Participants only use a few distinct time strings, so each one is only parsed once,
+ * and remembered, up to MAX_MEMO_SIZE distinct strings.
+ */
+object WakeSleepTimeParser {
+
+    const val MAX_MEMO_SIZE = 10_000
+
+    private val twelveHourFormatter: DateTimeFormatter = DateTimeFormatterBuilder()
+            .appendPattern("h:mm a")
+            .toFormatter()
+            .withLocale(Locale.US)
+    private val twentyFourHourFormatter: DateTimeFormatter = DateTimeFormatterBuilder()
+            .appendPattern("H:mm")
+            .toFormatter()
+            .withLocale(Locale.US)
+
+    /**
+     * The locale specific ways the apps wrote AM and PM, and what to replace them with
+     */
+    private val halfDayReplacements = listOf(
+            Pair("a.m.", "AM"),
+            Pair("p.m.", "PM"),
+            Pair("a. m.", "AM"),
+            Pair("p. m.", "PM"),
+            Pair("午前", "AM"),
+            Pair("午後", "PM"))
+
+    private val memo = ConcurrentHashMap<String, LocalTime>()
+
+    /**
+     * @param time a wake or bed time from a V1 wake sleep schedule
+     * @return the parsed time
+     * @throws IllegalArgumentException if the time is not in a known format
+     */
+    fun parse(time: String): LocalTime {
+        memo[time]?.let { return it }
+        val localTime = parseUncached(time)
+        if (memo.size < MAX_MEMO_SIZE) {
+            memo[time] = localTime
+        }
+        return localTime
+    }
+
+    /**
+     * @param time a wake or bed time from a V1 wake sleep schedule
+     * @return the parsed time, always parsed, without looking it up or remembering it
+     * @throws IllegalArgumentException if the time is not in a known format
+     */
+    fun parseUncached(time: String): LocalTime {
+        val normalized = StringBuilder(time.length)
+        var isTwelveHour = false
+        var i = 0
+        while (i < time.length) {
+            val replacement = halfDayReplacements.firstOrNull { time.startsWith(it.first, i) }
+            if (replacement != null) {
+                normalized.append(replacement.second)
+                isTwelveHour = true
+                i += replacement.first.length
+                continue
+            }
+            val c = time[i]
+            // The 12 hour format also matches am or pm written in any case
+            if ((c == 'm' || c == 'M') && normalized.isNotEmpty()) {
+                val previous = normalized[normalized.length - 1]
+                if (previous == 'a' || previous == 'A' || previous == 'p' || previous == 'P') {
+                    isTwelveHour = true
+                }
+            }
+            normalized.append(c)
+            i++
+        }
+        val formatter = if (isTwelveHour) twelveHourFormatter else twentyFourHourFormatter
+        return LocalTime.parse(normalized.toString(), formatter)
+    }
+}
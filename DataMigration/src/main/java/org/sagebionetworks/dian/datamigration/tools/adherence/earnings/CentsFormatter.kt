@@ -0,0 +1,43 @@
+package org.sagebionetworks.research.sagearc
+
+/**
+ * Formats an amount of money in cents as dollars, like "$12.50", without String.format.
+ *
+ * Earnings are always a multiple of 50 cents and rarely above a few hundred dollars,
+ * so the strings for amounts up to MAX_CACHED_CENTS are cached once they are formatted.
+ */
+object CentsFormatter {
+
+    const val MAX_CACHED_CENTS = 100_000  // $1000.00
+
+    private val cache = arrayOfNulls<String>(MAX_CACHED_CENTS + 1)
+
+    /**
+     * @param cents the amount of money
+     * @return the same string as String.format("$%.2f", cents / 100.0) with an English locale
+     */
+    fun format(cents: Long): String {
+        if (cents in 0..MAX_CACHED_CENTS) {
+            val idx = cents.toInt()
+            // Strings are immutable, so a race here only formats the same string twice
+            return cache[idx] ?: formatUncached(cents).also { cache[idx] = it }
+        }
+        return formatUncached(cents)
+    }
+
+    private fun formatUncached(cents: Long): String {
+        val str = StringBuilder(12)
+        str.append('$')
+        if (cents < 0) {
+            str.append('-')
+        }
+        val positive = Math.abs(cents)
+        str.append(positive / 100).append('.')
+        val remainder = positive % 100
+        if (remainder < 10) {
+            str.append('0')
+        }
+        str.append(remainder)
+        return str.toString()
+    }
+}
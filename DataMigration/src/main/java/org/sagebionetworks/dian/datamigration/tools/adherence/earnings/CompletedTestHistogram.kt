@@ -0,0 +1,133 @@
+package org.sagebionetworks.research.sagearc
+
+import org.sagebionetworks.dian.datamigration.HmDataModel.CompletedTest
+
+/**
+ * The completed tests reduced to what the earnings goals need, so that no goal has to filter
+ * the completed test list: the number of tests and the last completedOn of each week, and of each
+ * (week, day), and a bitmask of which sessions were completed on each (week, day).
+ *
+ * Weeks are mapped to rows of primitive arrays, with one column for each day of the week.
+ * Goals only look at days 0 to 7, the 8 days of the first week, so tests on any other day
+ * are only counted in their week.
+ */
+class CompletedTestHistogram(completed: List<CompletedTest>) {
+
+    companion object {
+        /** Days 0 to 7, the baseline week has 8 days, all others 7 **/
+        const val DAY_COLUMNS = 8
+        /** Sessions 0 to 3 **/
+        const val SESSION_BITS = 4
+    }
+
+    private val weekRows = HashMap<Int, Int>()
+
+    private val weekCounts: IntArray
+    private val weekLastCompletedOn: DoubleArray
+    private val dayCounts: IntArray
+    private val daySessionMasks: IntArray
+    private val dayLastCompletedOn: DoubleArray
+
+    init {
+        for (test in completed) {
+            weekRows.getOrPut(test.week) { weekRows.size }
+        }
+        weekCounts = IntArray(weekRows.size)
+        weekLastCompletedOn = DoubleArray(weekRows.size)
+        dayCounts = IntArray(weekRows.size * DAY_COLUMNS)
+        daySessionMasks = IntArray(weekRows.size * DAY_COLUMNS)
+        dayLastCompletedOn = DoubleArray(weekRows.size * DAY_COLUMNS)
+
+        for (test in completed) {
+            val row = weekRows.getValue(test.week)
+            weekLastCompletedOn[row] = later(weekCounts[row], weekLastCompletedOn[row], test.completedOn)
+            weekCounts[row]++
+
+            if (test.day in 0 until DAY_COLUMNS) {
+                val idx = row * DAY_COLUMNS + test.day
+                dayLastCompletedOn[idx] = later(dayCounts[idx], dayLastCompletedOn[idx], test.completedOn)
+                dayCounts[idx]++
+                if (test.session in 0 until SESSION_BITS) {
+                    daySessionMasks[idx] = daySessionMasks[idx] or (1 shl test.session)
+                }
+            }
+        }
+    }
+
+    /**
+     * The same completedOn that sorting by completedOn and taking the last one would give
+     */
+    private fun later(count: Int, current: Double, completedOn: Double): Double {
+        return if (count == 0 || java.lang.Double.compare(completedOn, current) >= 0) {
+            completedOn
+        } else {
+            current
+        }
+    }
+
+    /**
+     * @return the number of completed tests in the week
+     */
+    fun weekCount(week: Int): Int {
+        val row = weekRows[week] ?: return 0
+        return weekCounts[row]
+    }
+
+    /**
+     * @return the completedOn of the last test completed in the week, or null if there are none
+     */
+    fun weekLastCompletedOn(week: Int): Double? {
+        val row = weekRows[week] ?: return null
+        return if (weekCounts[row] == 0) null else weekLastCompletedOn[row]
+    }
+
+    /**
+     * @return the number of completed tests on the day of the week, 0 for days outside 0 to 7
+     */
+    fun dayCount(week: Int, day: Int): Int {
+        val idx = dayIndex(week, day) ?: return 0
+        return dayCounts[idx]
+    }
+
+    /**
+     * @return a bitmask of the sessions 0 to 3 completed on the day of the week
+     */
+    fun daySessionMask(week: Int, day: Int): Int {
+        val idx = dayIndex(week, day) ?: return 0
+        return daySessionMasks[idx]
+    }
+
+    /**
+     * @return the completedOn of the last test completed on the day of the week, or null if there are none
+     */
+    fun dayLastCompletedOn(week: Int, day: Int): Double? {
+        val idx = dayIndex(week, day) ?: return null
+        return if (dayCounts[idx] == 0) null else dayLastCompletedOn[idx]
+    }
+
+    /**
+     * @return everything the earnings goals use from the week, two weeks with equal signatures
+     *         have the same goals
+     */
+    fun weekSignature(week: Int): List<Number> {
+        val row = weekRows[week] ?: return emptyList()
+        val signature = ArrayList<Number>(2 + DAY_COLUMNS * 3)
+        signature.add(weekCounts[row])
+        signature.add(weekLastCompletedOn[row])
+        for (day in 0 until DAY_COLUMNS) {
+            val idx = row * DAY_COLUMNS + day
+            signature.add(dayCounts[idx])
+            signature.add(daySessionMasks[idx])
+            signature.add(dayLastCompletedOn[idx])
+        }
+        return signature
+    }
+
+    private fun dayIndex(week: Int, day: Int): Int? {
+        if (day !in 0 until DAY_COLUMNS) {
+            return null
+        }
+        val row = weekRows[week] ?: return null
+        return row * DAY_COLUMNS + day
+    }
+}
@@ -6,6 +6,7 @@ import java.util.List;
 public class EarningDetails {
 
     public String total_earnings;
+    public long total_earnings_cents;
     public List<Cycle> cycles;
 
     public EarningDetails(){
@@ -16,6 +17,7 @@ public class EarningDetails {
     public static class Cycle {
         public Integer cycle;
         public String total;
+        public long total_cents;
         public Long start_date;
         public Long end_date;
         public List<Goal> details;
@@ -33,6 +35,7 @@ public class EarningDetails {
         public String value;
         public Integer count_completed;
         public String amount_earned;
+        public long amount_earned_cents;
         public Integer progress;
     }
 
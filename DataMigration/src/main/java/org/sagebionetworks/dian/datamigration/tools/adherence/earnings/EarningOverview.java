@@ -13,8 +13,10 @@ public class EarningOverview {
     public static final String TEST_SESSION = "test-session";
 
     public String total_earnings;
+    public long total_earnings_cents;
     public Integer cycle;
     public String cycle_earnings;
+    public long cycle_earnings_cents;
     public List<Goal> goals;
     public List<Achievement> new_achievements;
 
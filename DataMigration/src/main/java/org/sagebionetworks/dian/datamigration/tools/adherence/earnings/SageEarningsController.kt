@@ -34,6 +34,7 @@ package org.sagebionetworks.research.sagearc
 import org.joda.time.DateTime
 import org.joda.time.Days
 import org.sagebionetworks.dian.datamigration.HmDataModel.*
+import org.sagebionetworks.dian.datamigration.tools.adherence.CompletedTestIndex
 import org.sagebionetworks.dian.datamigration.tools.adherence.earnings.EarningDetails
 import org.sagebionetworks.dian.datamigration.tools.adherence.earnings.EarningOverview
 import org.sagebionetworks.dian.datamigration.tools.adherence.earnings.EarningOverview.*
@@ -55,6 +56,12 @@ open class SageEarningsController {
         public const val twentyOneEarningVal = 5.0f
         public const val allSessionEarning = "$0.50"
         public const val allSessionEarningVal = 0.5f
+
+        // Earnings are added up in whole cents, so they can't drift like float sums
+        public const val fourFourEarningCents = 100
+        public const val twoADayEarningCents = 600
+        public const val twentyOneEarningCents = 500
+        public const val allSessionEarningCents = 50
     }
 
     private var lastCalculatedDate = DateTime.now()
@@ -62,9 +69,17 @@ open class SageEarningsController {
     public var completedTests: List<CompletedTest> = listOf()
         set(value) {
             field = filterAndConvertTests(value)
+            completedHistogram = null
             needsRecalculated = true
         }
 
+    // The completed tests reduced for the earnings goals, built once for each completed test list
+    private var completedHistogram: CompletedTestHistogram? = null
+
+    // The goals of study periods before the current one, by week, with the week's signature
+    // of completed tests they were calculated from
+    private val pastPeriodGoals = HashMap<Int, Pair<List<Number>, List<SageGoal>>>()
+
     private var earningsOverview: EarningOverview? = null
     private var earningsDetail: EarningDetails? = null
     private var studySummary: StudySummary? = null
@@ -147,6 +162,8 @@ open class SageEarningsController {
         val expectedWeeks = arcStartDays().values.map { it / 7 }
         val backupWeeks = alternativeArcStartDays.values.map { it / 7 }
         val converted = mutableListOf<CompletedTest>()
+        // The (week, day, session) of each converted test, for finding duplicates
+        val convertedKeys = HashSet<CompletedTestIndex.Key>(tests.size * 2)
         tests.forEach { test ->
             var newWeek = test.week
             // Shift a test closer to the expected week
@@ -162,13 +179,12 @@ open class SageEarningsController {
                     }
                 }
             }
-            // Only add this test if it is not a duplicate
-            if (!converted.any {
-                it.week == test.week &&
-                it.day == test.day &&
-                it.session == test.session }) {
+            // Only add this test if it is not a duplicate,
+            // note that this compares the converted tests' weeks with this test's original week
+            if (!convertedKeys.contains(CompletedTestIndex.keyOf(test))) {
                 converted.add(CompletedTest(
                         newWeek, test.day, test.session, test.completedOn))
+                convertedKeys.add(CompletedTestIndex.Key(newWeek, test.day, test.session))
             }
         }
         // Store baseline test separately
@@ -178,6 +194,15 @@ open class SageEarningsController {
         return converted.filter { it.week != 0 || it.day != 0 }
     }
 
+    private fun histogramOf(completed: List<CompletedTest>): CompletedTestHistogram {
+        if (completed === completedTests) {
+            return completedHistogram ?: CompletedTestHistogram(completed).also {
+                completedHistogram = it
+            }
+        }
+        return CompletedTestHistogram(completed)
+    }
+
     private fun cycleIdx(week: Int): Int {
         val cycleStartDays = arcStartDays()
         cycleStartDays.keys.forEach {
@@ -236,20 +261,22 @@ open class SageEarningsController {
 
     data class SageGoal(
         var goal: EarningOverview.Goal,
-        var earnings: Float,
-        var testState: TestState)
+        var earningsCents: Int,
+        var testState: TestState) {
+        val earnings: Float get() = earningsCents / 100.0f
+    }
 
     data class SageDetailsGoal(
         var goal: EarningDetails.Goal,
-        var earnings: Float,
-        var testState: TestState)
+        var earningsCents: Int,
+        var testState: TestState) {
+        val earnings: Float get() = earningsCents / 100.0f
+    }
 
-    private fun calculateAllSessionsGoal(completed: List<CompletedTest>,
+    private fun calculateAllSessionsGoal(completed: CompletedTestHistogram,
                                         testState: TestState): SageGoal {
 
-        val completedCount = completed.filter {
-            it.week == testState.week
-        }.size
+        val completedCount = completed.weekCount(testState.week)
 
         val targetCompleteCount = 28 // 7 days with 4 sessions a day
         val name = TEST_SESSION
@@ -259,7 +286,7 @@ open class SageEarningsController {
         val amountEarned = "$1?"  // not sure what this is?
         val isComplete = false // this is not really a completable goal, always make it false
         val completedOn: Double? = null
-        val earningsVal = allSessionEarningVal * min(completedCount, 28).toFloat()
+        val earningsCents = allSessionEarningCents * min(completedCount, 28)
 
         val goal = EarningOverview.Goal()
         goal.name = name
@@ -270,17 +297,15 @@ open class SageEarningsController {
         goal.completed_on = completedOn?.toLong()
         goal.progress_components = progressComponents
 
-        return SageGoal(goal, earningsVal, testState)
+        return SageGoal(goal, earningsCents, testState)
     }
 
-    private fun calculateTwentyOneGoal(completed: List<CompletedTest>,
+    private fun calculateTwentyOneGoal(completed: CompletedTestHistogram,
                                       testState: TestState): SageGoal {
 
-        val completedCount = completed.filter {
-            it.week == testState.week
-        }.size
+        val completedCount = completed.weekCount(testState.week)
 
-        var earningsVal = 0.0f
+        var earningsCents = 0
         val targetCompleteCount = 21
         val name = TWENTY_ONE_SESSIONS
         val value = twentyOneEarning
@@ -290,11 +315,8 @@ open class SageEarningsController {
         val isComplete = completedCount >= targetCompleteCount
         var completedOn: Double? = null
         if (isComplete) {
-            earningsVal = twentyOneEarningVal
-            val lastCompleted = completed.filter {
-                it.week == testState.week
-            }.sortedBy { it.completedOn }.lastOrNull()
-            completedOn = lastCompleted?.completedOn ?:
+            earningsCents = twentyOneEarningCents
+            completedOn = completed.weekLastCompletedOn(testState.week) ?:
                 (System.currentTimeMillis() / 1000).toDouble()
         }
 
@@ -307,10 +329,10 @@ open class SageEarningsController {
         goal.completed_on = completedOn?.toLong()
         goal.progress_components = progressComponents
 
-        return SageGoal(goal, earningsVal, testState)
+        return SageGoal(goal, earningsCents, testState)
     }
 
-    private fun calculateTwoADayGoal(completed: List<CompletedTest>,
+    private fun calculateTwoADayGoal(completed: CompletedTestHistogram,
                                     testState: TestState): SageGoal {
 
         val targetDaySessionCompleteCout = 2
@@ -318,9 +340,7 @@ open class SageEarningsController {
         val startDayIdx = if (testState.week == 0) { 1 } else { 0 }
         val dayIdxAdjustment = if (testState.week == 0) { -1 } else { 0 }
         for (dayIdx in startDayIdx until (startDayIdx + 7)) {
-            val count = completed.filter {
-                it.week == testState.week && it.day == dayIdx
-            }.size
+            val count = completed.dayCount(testState.week, dayIdx)
             val progressIdx = dayIdx + dayIdxAdjustment
             if (progressIdx < progressComponents.size &&
                     count >= targetDaySessionCompleteCout) {
@@ -328,7 +348,7 @@ open class SageEarningsController {
             }
         }
 
-        var earningsVal = 0.0f
+        var earningsCents = 0
         val targetCompleteCount = 7
         val completedCount = progressComponents.filter({ it >= 100 }).size
         val name = TWO_A_DAY
@@ -338,10 +358,8 @@ open class SageEarningsController {
         val isComplete = completedCount >= targetCompleteCount
         var completedOn: Double? = null
         if (isComplete) {
-            earningsVal = twoADayEarningVal
-            val lastCompleted = completed.filter { it.week == testState.week }
-                    .sortedBy { it.completedOn }.lastOrNull()
-            completedOn = lastCompleted?.completedOn ?:
+            earningsCents = twoADayEarningCents
+            completedOn = completed.weekLastCompletedOn(testState.week) ?:
                     (System.currentTimeMillis() / 1000).toDouble()
         }
 
@@ -354,32 +372,29 @@ open class SageEarningsController {
         goal.completed_on = completedOn?.toLong()
         goal.progress_components = progressComponents
 
-        return SageGoal(goal, earningsVal, testState)
+        return SageGoal(goal, earningsCents, testState)
     }
 
-    private fun calculateFourFourGoal(completed: List<CompletedTest>,
+    private fun calculateFourFourGoal(completed: CompletedTestHistogram,
                                      testState: TestState): SageGoal {
 
-        var earningsVal = 0.0f
-        var progressComponents: MutableList<Int> = mutableListOf(0, 0, 0, 0)
-        val applicableTests = completed.filter {
-            val isApplicable = it.week == testState.week && it.day == testState.day
-            if (isApplicable && it.session < progressComponents.size) {
-                progressComponents[it.session] = 100
-            }
-            return@filter isApplicable
-        }.sortedBy { it.completedOn }
+        var earningsCents = 0
+        val sessionMask = completed.daySessionMask(testState.week, testState.day)
+        var progressComponents: MutableList<Int> = MutableList(CompletedTestHistogram.SESSION_BITS) {
+            if ((sessionMask and (1 shl it)) != 0) 100 else 0
+        }
+        val applicableCount = completed.dayCount(testState.week, testState.day)
 
         val targetCompleteCount = 4
         val name = FOUR_OUT_OF_FOUR
         val value = fourFourEarning
-         val progress = 100 * (applicableTests.size.toFloat() / targetCompleteCount.toFloat()).toInt()
+         val progress = 100 * (applicableCount.toFloat() / targetCompleteCount.toFloat()).toInt()
         val amountEarned = "$1?"  // not sure what this is?
-        val isComplete = applicableTests.size >= targetCompleteCount
+        val isComplete = applicableCount >= targetCompleteCount
         var completedOn: Double? = null
         if (isComplete) {
-            earningsVal = SageEarningsController.fourFourEarningVal
-            completedOn = applicableTests.lastOrNull()?.completedOn ?:
+            earningsCents = fourFourEarningCents
+            completedOn = completed.dayLastCompletedOn(testState.week, testState.day) ?:
                     (System.currentTimeMillis() / 1000).toDouble()
         }
 
@@ -392,10 +407,10 @@ open class SageEarningsController {
         goal.completed_on = completedOn?.toLong()
         goal.progress_components = progressComponents
 
-        return SageGoal(goal, earningsVal, testState)
+        return SageGoal(goal, earningsCents, testState)
     }
 
-    private fun calculateAllGoals(completed: List<CompletedTest>,
+    private fun calculateAllGoals(completed: CompletedTestHistogram,
                                  studyPeriod: TestState): List<SageGoal> {
 
         // These are the current week/day that show up on the earnings tab
@@ -430,7 +445,24 @@ open class SageEarningsController {
                 // also, use day 1, as every study period has a day 1
                 .map { TestState(nowVal, (it / 7), 1, 0, "") }
 
-        return studyPeriods.map { calculateAllGoals(completed, it) }
+        // Reduce the completed tests once, instead of filtering them again for every goal
+        val histogram = histogramOf(completed)
+        return studyPeriods.map { period ->
+            if (period.week >= atAndBeforeCurrent.week) {
+                return@map calculateAllGoals(histogram, period)
+            }
+            // Past study periods only change if their completed tests change,
+            // so only re-calculate their goals when the week's signature is different
+            val signature = histogram.weekSignature(period.week)
+            pastPeriodGoals[period.week]?.let {
+                if (it.first == signature) {
+                    return@map it.second
+                }
+            }
+            return@map calculateAllGoals(histogram, period).also {
+                pastPeriodGoals[period.week] = Pair(signature, it)
+            }
+        }
     }
 
     private fun calculateEarningsOverview(completed: List<CompletedTest>,
@@ -441,15 +473,12 @@ open class SageEarningsController {
         val currentGoals = allGoals.lastOrNull() ?: listOf()
 
         // Calculate the cycle earnings
-        val cycleEarnings = currentGoals.map { it.earnings }.sum()
-        val cycelEarningsStr = String.format("$%.2f", cycleEarnings)
+        val cycleEarningsCents = centsOf(currentGoals)
+        val cycelEarningsStr = CentsFormatter.format(cycleEarningsCents)
 
         // Calculate the total earnings of all study periods
-        var totalEarnings = 0.0f
-        allGoals.forEach { goals ->
-            totalEarnings += goals.map({ it.earnings }).sum()
-        }
-        val totalEarningsStr = String.format("$%.2f", totalEarnings)
+        val totalEarningsCents = totalCentsOf(allGoals)
+        val totalEarningsStr = CentsFormatter.format(totalEarningsCents)
 
         // For the earnings overview goals, we should only include today's 4 of 4 goal
         val overviewGoals = currentGoals.filter {
@@ -474,8 +503,10 @@ open class SageEarningsController {
 
         val earnings = EarningOverview()
         earnings.total_earnings = totalEarningsStr
+        earnings.total_earnings_cents = totalEarningsCents
         earnings.cycle = cycle
         earnings.cycle_earnings = cycelEarningsStr
+        earnings.cycle_earnings_cents = cycleEarningsCents
         earnings.goals = goals
         earnings.new_achievements = newAchievements
 
@@ -488,7 +519,7 @@ open class SageEarningsController {
                                        allGoals: List<List<SageGoal>>): EarningDetails {
 
         val detailNames = listOf(FOUR_OUT_OF_FOUR, TWO_A_DAY, TWENTY_ONE_SESSIONS, TEST_SESSION)
-        var totalEarnings = 0.0f
+        var totalEarningsCents = 0L
         val cycles = mutableListOf<EarningDetails.Cycle>()
         for (studyPeriodIdx in 0 until allGoals.size) {
             val periodGoals = allGoals[studyPeriodIdx]
@@ -496,14 +527,15 @@ open class SageEarningsController {
                 val value = earningValueStr(name)
                 val goals = periodGoals.filter { it.goal.name == name }
                 val completed = goals.filter { it.goal.completed == true }.size
-                val amountEarned = goals.map { it.earnings }.sum()
+                val amountEarnedCents = centsOf(goals)
                 val progress = goals.map { it.goal.progress }.average().toInt()
-                val amountEarnedStr = String.format("$%.2f", amountEarned)
+                val amountEarnedStr = CentsFormatter.format(amountEarnedCents)
                 val cycleGoal = EarningDetails.Goal()
                 cycleGoal.name = name
                 cycleGoal.value = value
                 cycleGoal.count_completed = completed
                 cycleGoal.amount_earned = amountEarnedStr
+                cycleGoal.amount_earned_cents = amountEarnedCents
                 cycleGoal.progress = progress
                 return@map cycleGoal
             }
@@ -514,24 +546,26 @@ open class SageEarningsController {
             val periodStart = studyStart.withTimeAtStartOfDay().plusDays(periodStartDayOffset)
             val periodEnd = studyStart.withTimeAtStartOfDay().plusDays(periodStartDayOffset + 7)
 
-            val periodEarnings = periodGoals.map { it.earnings }.sum()
-            val periodEarningsStr = String.format("$%.2f", periodEarnings)
+            val periodEarningsCents = centsOf(periodGoals)
+            val periodEarningsStr = CentsFormatter.format(periodEarningsCents)
 
-            totalEarnings += periodEarnings
+            totalEarningsCents += periodEarningsCents
 
             val cycle = EarningDetails.Cycle()
             cycle.cycle = studyPeriodIdx
             cycle.total = periodEarningsStr
+            cycle.total_cents = periodEarningsCents
             cycle.start_date = periodStart.millis / 1000L
             cycle.end_date = periodEnd.millis / 1000L
             cycle.details = details
             cycles.add(cycle)
         }
 
-        val totalEarningsStr = String.format("$%.2f", totalEarnings)
+        val totalEarningsStr = CentsFormatter.format(totalEarningsCents)
 
         val earnings = EarningDetails()
         earnings.total_earnings = totalEarningsStr
+        earnings.total_earnings_cents = totalEarningsCents
         earnings.cycles = cycles
 
         return earnings
@@ -541,11 +575,8 @@ open class SageEarningsController {
                                      current: TestState,
                                      allGoals: List<List<SageGoal>>): StudySummary {
 
-        var totalEarnings = 0.0f
-        allGoals.forEach { goals ->
-            totalEarnings += goals.map({ it.earnings }).sum()
-        }
-        val totalEarningsStr = String.format("$%.2f", totalEarnings)
+        val totalEarningsCents = totalCentsOf(allGoals)
+        val totalEarningsStr = CentsFormatter.format(totalEarningsCents)
 
         var goalsMet = 0
         allGoals.forEach { goals ->
@@ -564,6 +595,7 @@ open class SageEarningsController {
 
         val summary = StudySummary()
         summary.total_earnings = totalEarningsStr
+        summary.total_earnings_cents = totalEarningsCents
         summary.tests_taken = testsTaken
         summary.days_tested = daysTested
         summary.goals_met = goalsMet
@@ -577,12 +609,19 @@ open class SageEarningsController {
         val completed = completedTests
         val allGoals = calculateEarningsMap(completed, current)
 
-        var totalEarnings = 0.0f
-        allGoals.forEach { goals ->
-            totalEarnings += goals.map { it.earnings }.sum()
-        }
+        return CentsFormatter.format(totalCentsOf(allGoals))
+    }
+
+    private fun centsOf(goals: List<SageGoal>): Long {
+        var cents = 0L
+        goals.forEach { cents += it.earningsCents }
+        return cents
+    }
 
-        return String.format("$%.2f", totalEarnings)
+    private fun totalCentsOf(allGoals: List<List<SageGoal>>): Long {
+        var cents = 0L
+        allGoals.forEach { cents += centsOf(it) }
+        return cents
     }
 
     private fun calculateAchievements(old: List<EarningOverview.Goal>,
@@ -608,7 +647,8 @@ open class SageEarningsController {
         var total_earnings: String = "$0.00",
         var tests_taken: Int = 0,
         var days_tested: Int = 0,
-        var goals_met: Int = 0
+        var goals_met: Int = 0,
+        var total_earnings_cents: Long = 0L
     )
 }
 
@@ -0,0 +1,70 @@
+package org.sagebionetworks.dian.datamigration.tools.schedulev2;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+
+import org.joda.time.DateTime;
+import org.sagebionetworks.bridge.rest.model.AdherenceRecord;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds the adherence records that Bridge does not already have.
+ *
+ * Existing records are keyed by instanceGuid and finishedOn. A new record is uploaded
+ * if there is no existing record with its key, or if the existing record's client data
+ * or event timestamp is different. On a nightly run where nothing has changed,
+ * this leaves nothing to upload.
+ */
+public class AdherenceDelta {
+
+    private static final Gson gson = new Gson();
+
+    private final Map<String, AdherenceRecord> existingMap = new HashMap<>();
+
+    /**
+     * @param existing adherence records already on Bridge for the participant
+     */
+    public AdherenceDelta(List<AdherenceRecord> existing) {
+        for (AdherenceRecord record : existing) {
+            existingMap.put(key(record), record);
+        }
+    }
+
+    /**
+     * @param records created from the participant's V1 data
+     * @return the records that are new, or changed, compared to what is on Bridge
+     */
+    public List<AdherenceRecord> changedRecords(List<AdherenceRecord> records) {
+        List<AdherenceRecord> changed = new ArrayList<>();
+        for (AdherenceRecord record : records) {
+            AdherenceRecord existing = existingMap.get(key(record));
+            if (existing == null || !isSame(existing, record)) {
+                changed.add(record);
+            }
+        }
+        return changed;
+    }
+
+    public static String key(AdherenceRecord record) {
+        return record.getInstanceGuid() + "/" + millis(record.getFinishedOn());
+    }
+
+    private static boolean isSame(AdherenceRecord existing, AdherenceRecord record) {
+        if (millis(existing.getEventTimestamp()) != millis(record.getEventTimestamp())) {
+            return false;
+        }
+        // Bridge returns client data as a map, with every number as a double,
+        // comparing them as JSON trees ignores those differences
+        JsonElement existingData = gson.toJsonTree(existing.getClientData());
+        JsonElement recordData = gson.toJsonTree(record.getClientData());
+        return existingData.equals(recordData);
+    }
+
+    private static long millis(DateTime dateTime) {
+        return (dateTime == null) ? Long.MIN_VALUE : dateTime.getMillis();
+    }
+}
@@ -0,0 +1,262 @@
+package org.sagebionetworks.dian.datamigration.tools.schedulev2;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.opencsv.CSVWriter;
+
+import org.joda.time.DateTime;
+import org.sagebionetworks.bridge.rest.model.Study;
+import org.sagebionetworks.bridge.rest.model.StudyParticipant;
+import org.sagebionetworks.dian.datamigration.BridgeClientContext;
+import org.sagebionetworks.dian.datamigration.BridgeJavaSdkUtil;
+import org.sagebionetworks.dian.datamigration.HmDataModel;
+import org.sagebionetworks.dian.datamigration.RequestGraph;
+import org.sagebionetworks.dian.datamigration.tools.adherence.SageV1Schedule;
+import org.sagebionetworks.dian.datamigration.tools.rescheduler.TestSchedule;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Requirements:
+ * Need to be able to answer adherence and earnings questions about a whole study,
+ * without running AdherenceToolV2 once for every participant.
+ *
+ * Calculates the same Cycle, Start Date, End Date, Adherence and Earned rows as AdherenceToolV2,
+ * for every participant in the studies, in parallel using V2MigrationEngine's limits,
+ * and writes them to a CSV file, or to an NDJSON file if the file name ends in .ndjson.
+ *
+ * Usage: AdherenceReportTool outputFile [studyId ...]
+ * Signs into the bridge app in the BR_EMAIL, BR_PW and BR_ID environmental vars,
+ * and reports on every study in the app if no study IDs are given.
+ */
+public class AdherenceReportTool {
+
+    public static final String NDJSON_EXTENSION = ".ndjson";
+
+    public static final List<String> CSV_HEADER = Arrays.asList(
+            "study_id", "arc_id", "cycle", "start_date", "end_date",
+            "adherence", "earned", "testing_now");
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: AdherenceReportTool outputFile [studyId ...]");
+            return;
+        }
+        Path outputFile = Paths.get(args[0]);
+        BridgeClientContext context = BridgeClientContext.signIn(
+                BridgeJavaSdkUtil.BRIDGE_EMAIL, BridgeJavaSdkUtil.BRIDGE_PW, BridgeJavaSdkUtil.BRIDGE_ID);
+
+        List<String> studyIdList = new ArrayList<>(Arrays.asList(args).subList(1, args.length));
+        Map<String, Collection<String>> studyArcIds = BridgeJavaSdkUtil.withContext(context, () -> {
+            if (studyIdList.isEmpty()) {
+                for (Study study : BridgeJavaSdkUtil.getAllStudies()) {
+                    studyIdList.add(study.getIdentifier());
+                }
+            }
+            Map<String, Collection<String>> arcIds = new LinkedHashMap<>();
+            for (String studyId : studyIdList) {
+                arcIds.put(studyId, BridgeJavaSdkUtil.getArcIdsInStudy(studyId).stream()
+                        .sorted().collect(Collectors.toList()));
+            }
+            return arcIds;
+        });
+
+        long start = System.currentTimeMillis();
+        Report report = createReport(context, studyArcIds,
+                V2MigrationEngine.fromEnvironment(), DateTime.now());
+        long elapsed = System.currentTimeMillis() - start;
+
+        try (BufferedWriter writer = Files.newBufferedWriter(outputFile, StandardCharsets.UTF_8)) {
+            if (outputFile.getFileName().toString().endsWith(NDJSON_EXTENSION)) {
+                writeNdjson(report.rowList, writer);
+            } else {
+                writeCsv(report.rowList, writer);
+            }
+        }
+
+        for (V2MigrationEngine.Failure failure : report.failureList) {
+            System.out.println("Error reporting on " + failure.getArcId() + " " + failure.getError());
+        }
+        System.out.println(report.participantCount + " participants, " +
+                report.rowList.size() + " rows, " + report.failureList.size() + " failed");
+        double seconds = Math.max(elapsed, 1) / 1000.0;
+        System.out.println(String.format("Reported in %d ms, %.1f participants per second",
+                elapsed, report.participantCount / seconds));
+        System.out.println(context.statsString());
+        System.out.println("Wrote " + outputFile.toAbsolutePath());
+    }
+
+    /**
+     * Downloads every participant's reports and calculates their adherence table in parallel
+     * @param context of the bridge app the participants belong to
+     * @param studyArcIds the ARC IDs to report on in each study
+     * @param engine that limits how many participants are downloaded at once
+     * @param now the time to calculate the adherence at, shared by all participants
+     * @return the rows of all participants, in the same order as studyArcIds
+     */
+    public static Report createReport(BridgeClientContext context,
+                                      Map<String, Collection<String>> studyArcIds,
+                                      V2MigrationEngine engine, DateTime now) {
+
+        Map<String, List<ReportRow>> participantRows = new ConcurrentHashMap<>();
+        List<V2MigrationEngine.Failure> failureList = engine.run(context, studyArcIds,
+                (studyId, arcId) -> participantRows.put(participantKey(studyId, arcId),
+                        createParticipantRows(studyId, arcId, now)));
+
+        Report report = new Report(failureList);
+        for (Map.Entry<String, Collection<String>> entry : studyArcIds.entrySet()) {
+            for (String arcId : entry.getValue()) {
+                report.participantCount++;
+                List<ReportRow> rows = participantRows.get(participantKey(entry.getKey(), arcId));
+                if (rows != null) {
+                    report.rowList.addAll(rows);
+                }
+            }
+        }
+        return report;
+    }
+
+    /**
+     * @param studyId the participant is in
+     * @param arcId of the participant
+     * @param now the time to calculate the adherence at
+     * @return the participant's adherence table, empty if they have withdrawn or have no schedule
+     * @throws IOException if the participant's reports could not be downloaded
+     */
+    public static List<ReportRow> createParticipantRows(
+            String studyId, String arcId, DateTime now) throws IOException {
+
+        StudyParticipant participant = BridgeJavaSdkUtil.getParticipantByExternalId(arcId);
+        if (participant.getStudyIds() == null || participant.getStudyIds().isEmpty()) {
+            return new ArrayList<>(); // user has withdrawn
+        }
+        String uId = participant.getId();
+
+        RequestGraph requests = new RequestGraph();
+        requests.add(BridgeJavaSdkUtil.TEST_SCHEDULE_REPORT_ID,
+                () -> ScheduleV2Migration.getScheduleJsonFromBridge(uId));
+        requests.add(BridgeJavaSdkUtil.COMPLETED_TESTS_REPORT_ID,
+                () -> ScheduleV2Migration.getCompletedTestsJsonFromBridge(uId));
+        requests.run();
+
+        return createParticipantRows(studyId, arcId,
+                requests.get(BridgeJavaSdkUtil.TEST_SCHEDULE_REPORT_ID),
+                requests.get(BridgeJavaSdkUtil.COMPLETED_TESTS_REPORT_ID), now);
+    }
+
+    /**
+     * @param studyId the participant is in
+     * @param arcId of the participant
+     * @param scheduleJson the participant's TestSchedule report, or null if they have none
+     * @param completedTestsJson the participant's CompletedTests report, or null if they have none
+     * @param now the time to calculate the adherence at
+     * @return the participant's adherence table, empty if they have no schedule
+     * @throws IOException if the reports could not be parsed
+     */
+    public static List<ReportRow> createParticipantRows(
+            String studyId, String arcId, String scheduleJson,
+            String completedTestsJson, DateTime now) throws IOException {
+
+        List<ReportRow> rowList = new ArrayList<>();
+        TestSchedule testSchedule = ScheduleV2Migration.createHMSchedule(arcId, scheduleJson);
+        if (testSchedule == null) {
+            return rowList;
+        }
+        SageV1Schedule v1Schedule = AdherenceToolV2.controller.createV1Schedule(testSchedule);
+        HmDataModel.CompletedTestList completedTests =
+                ScheduleV2Migration.createCompletedTests(completedTestsJson);
+
+        for (AdherenceToolV2.AdherenceTableRow tableRow : AdherenceToolV2.createAdherenceTable(
+                v1Schedule, completedTests.completed, now)) {
+            rowList.add(new ReportRow(studyId, arcId, tableRow));
+        }
+        return rowList;
+    }
+
+    public static void writeCsv(List<ReportRow> rowList, Writer writer) throws IOException {
+        // Not closed, so the caller's writer stays open
+        CSVWriter csvWriter = new CSVWriter(writer);
+        // Values are only quoted if they contain a comma, quote or line break
+        csvWriter.writeNext(CSV_HEADER.toArray(new String[0]), false);
+        for (ReportRow row : rowList) {
+            csvWriter.writeNext(new String[] { row.studyId, row.arcId,
+                    String.valueOf(row.cycle), row.startDate, row.endDate,
+                    row.adherence, row.earned, String.valueOf(row.testingNow) }, false);
+        }
+        csvWriter.flush();
+    }
+
+    public static void writeNdjson(List<ReportRow> rowList, Writer writer) throws IOException {
+        for (ReportRow row : rowList) {
+            ObjectNode node = objectMapper.createObjectNode();
+            node.put(CSV_HEADER.get(0), row.studyId);
+            node.put(CSV_HEADER.get(1), row.arcId);
+            node.put(CSV_HEADER.get(2), row.cycle);
+            node.put(CSV_HEADER.get(3), row.startDate);
+            node.put(CSV_HEADER.get(4), row.endDate);
+            node.put(CSV_HEADER.get(5), row.adherence);
+            node.put(CSV_HEADER.get(6), row.earned);
+            node.put(CSV_HEADER.get(7), row.testingNow);
+            writer.write(objectMapper.writeValueAsString(node));
+            writer.write("\n");
+        }
+    }
+
+    private static String participantKey(String studyId, String arcId) {
+        return studyId + "/" + arcId;
+    }
+
+    /**
+     * A row of AdherenceToolV2's adherence table, with the participant it belongs to
+     */
+    public static class ReportRow {
+        public final String studyId;
+        public final String arcId;
+        public final int cycle;
+        public final String startDate;
+        public final String endDate;
+        public final String adherence;
+        public final String earned;
+        public final boolean testingNow;
+
+        public ReportRow(String studyId, String arcId, AdherenceToolV2.AdherenceTableRow tableRow) {
+            this.studyId = studyId;
+            this.arcId = arcId;
+            this.cycle = tableRow.cycle;
+            this.startDate = tableRow.startDate;
+            this.endDate = tableRow.endDate;
+            this.adherence = tableRow.adherence;
+            this.earned = tableRow.earned;
+            this.testingNow = tableRow.testingNow;
+        }
+    }
+
+    /**
+     * The rows of every participant that was reported on, and the participants that failed
+     */
+    public static class Report {
+        public int participantCount = 0;
+        public final List<ReportRow> rowList = new ArrayList<>();
+        public final List<V2MigrationEngine.Failure> failureList;
+
+        public Report(List<V2MigrationEngine.Failure> failureList) {
+            this.failureList = failureList;
+        }
+    }
+}
@@ -17,6 +17,8 @@ import org.sagebionetworks.dian.datamigration.tools.adherence.earnings.EarningDe
 import org.sagebionetworks.dian.datamigration.tools.rescheduler.TestSchedule;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
 
 import static org.sagebionetworks.dian.datamigration.tools.adherence.earnings.EarningOverview.TEST_SESSION;
@@ -30,6 +32,8 @@ public class AdherenceToolV2 {
 
     public static SageScheduleController controller = new SageScheduleController();
 
+    private static final DateTimeFormatter dtfOut = DateTimeFormat.forPattern("MM/dd/yyyy");
+
     public static void main(String[] args) throws IOException {
         BridgeJavaSdkUtil.initialize(args[0], args[1], args[2]);
         Scanner in = new Scanner(System.in);
@@ -63,25 +67,55 @@ public class AdherenceToolV2 {
 
         SageV1Schedule v1Schedule = controller.createV1Schedule(testSchedule);
 
-        // Calculate the earnings
-        SageEarningsControllerV2 earningsController = new SageEarningsControllerV2();
-        earningsController.initializeWithStudyBursts(v1Schedule, completedTests.completed);
-        EarningDetails earnings = earningsController.getCurrentEarningsDetails();
-
         System.out.println("\nCycle   Start Date      End Date        Adherence   Earned");
 
-        DateTimeFormatter dtfOut = DateTimeFormat.forPattern("MM/dd/yyyy");
+        List<AdherenceTableRow> table = createAdherenceTable(
+                v1Schedule, completedTests.completed, DateTime.now());
+        for (AdherenceTableRow adherenceTableRow : table) {
+            System.out.format("%2d      %s      %s      %s         %s",
+                    adherenceTableRow.cycle, adherenceTableRow.startDate, adherenceTableRow.endDate,
+                    adherenceTableRow.adherence, adherenceTableRow.earned);
+            if (adherenceTableRow.testingNow) {
+                System.out.print("   ** Testing now **");
+            }
+            System.out.println();
+        }
+
+        Scanner scanner = new Scanner(System.in);
+        System.out.println("\nWould you also like to see the RAW JSON?");
+        if (AdherenceToolV2.shouldContinueYN(scanner)) {
+            System.out.println("Raw JSON:");
+            String prettyPrintedJson = mapper.writerWithDefaultPrettyPrinter()
+                    .writeValueAsString(completedTests);
+            System.out.println("\n" + prettyPrintedJson);
+        }
+    }
 
+    /**
+     * @param v1Schedule of the participant
+     * @param completedTests the participant's completed tests
+     * @param now the time to calculate the adherence at
+     * @return one row for each study burst, with its dates, adherence and earnings
+     */
+    public static List<AdherenceTableRow> createAdherenceTable(
+            SageV1Schedule v1Schedule, List<HmDataModel.CompletedTest> completedTests, DateTime now) {
+
+        // Calculate the earnings
+        EarningDetails earnings = createEarningsController(v1Schedule, completedTests, now)
+                .getCurrentEarningsDetails();
+
+        List<AdherenceTableRow> table = new ArrayList<>();
         for (int cycle = 0; cycle < v1Schedule.getStudyBursts().size(); cycle++) {
             SageV1StudyBurst studyBurst = v1Schedule.getStudyBursts().get(cycle);
 
             AdherenceTableRow adherenceTableRow = new AdherenceTableRow();
+            adherenceTableRow.cycle = cycle;
 
             DateTime burstStart = new DateTime((long)(studyBurst.getStartDate() * 1000L), DateTimeZone.UTC);
             DateTime burstEnd = burstStart.plusDays(7);
-            DateTime now = DateTime.now();
 
             boolean isCurrentlyInStudyBurst = now.isAfter(burstStart) && now.isBefore(burstEnd);
+            adherenceTableRow.testingNow = isCurrentlyInStudyBurst;
 
             adherenceTableRow.startDate = dtfOut.print(burstStart);
             adherenceTableRow.endDate = dtfOut.print(burstEnd);
@@ -89,7 +123,7 @@ public class AdherenceToolV2 {
 
             adherenceTableRow.adherence = "00%";
             // If available, the all sessions goal will give an accurate adherence percentage
-            if ((cycle) < earnings.cycles.size()) {
+            if (earnings != null && (cycle) < earnings.cycles.size()) {
                 EarningDetails.Cycle studyBurstEarnings = earnings.cycles.get(cycle);
                 total = studyBurstEarnings.total;
                 for (EarningDetails.Goal goal : studyBurstEarnings.details) {
@@ -98,7 +132,7 @@ public class AdherenceToolV2 {
                         if (isCurrentlyInStudyBurst) {
                             // If we are mid burst, adjust the adherence % to be a percentage
                             // of how many sessions the user has seen so far
-                            int count = sessionsThatCanBeDoneSoFar(studyBurst);
+                            int count = sessionsThatCanBeDoneSoFar(studyBurst, now);
                             int totalCount = (cycle == 0) ? 29 : 28;
                             if (count > 0) {
                                 burstAdherence = (int)(burstAdherence *
@@ -110,24 +144,23 @@ public class AdherenceToolV2 {
                 }
             }
             adherenceTableRow.earned = total;
-
-            System.out.format("%2d      %s      %s      %s         %s",
-                    cycle, adherenceTableRow.startDate, adherenceTableRow.endDate,
-                    adherenceTableRow.adherence, adherenceTableRow.earned);
-            if (isCurrentlyInStudyBurst) {
-                System.out.print("   ** Testing now **");
-            }
-            System.out.println();
+            table.add(adherenceTableRow);
         }
+        return table;
+    }
 
-        Scanner scanner = new Scanner(System.in);
-        System.out.println("\nWould you also like to see the RAW JSON?");
-        if (AdherenceToolV2.shouldContinueYN(scanner)) {
-            System.out.println("Raw JSON:");
-            String prettyPrintedJson = mapper.writerWithDefaultPrettyPrinter()
-                    .writeValueAsString(completedTests);
-            System.out.println("\n" + prettyPrintedJson);
-        }
+    /**
+     * @param v1Schedule of the participant
+     * @param completedTests the participant's completed tests
+     * @param now the time to calculate the earnings at, instead of the current time
+     * @return an earnings controller for the participant
+     */
+    public static SageEarningsControllerV2 createEarningsController(
+            SageV1Schedule v1Schedule, List<HmDataModel.CompletedTest> completedTests, DateTime now) {
+        SageEarningsControllerV2 earningsController = new SageEarningsControllerV2();
+        earningsController.setOverridingNow(now);
+        earningsController.initializeWithStudyBursts(v1Schedule, completedTests);
+        return earningsController;
     }
 
     /**
@@ -144,8 +177,8 @@ public class AdherenceToolV2 {
         return yesNo.toLowerCase().equals("y");
     }
 
-    private static int sessionsThatCanBeDoneSoFar(SageV1StudyBurst burst) {
-        double now = ((double)System.currentTimeMillis() / 1000.0);
+    private static int sessionsThatCanBeDoneSoFar(SageV1StudyBurst burst, DateTime nowDate) {
+        double now = ((double)nowDate.getMillis() / 1000.0);
         int count = 0;
         for (int i = 0; i < burst.getSessions().size(); i++) {
             if (now < burst.getSessions().get(i).session_date) {
@@ -157,6 +190,8 @@ public class AdherenceToolV2 {
     }
 
     public static class AdherenceTableRow {
+        public int cycle = 0;
+        public boolean testingNow = false;
         public String startDate = "";
         public String endDate = "";
         public String adherence = "";
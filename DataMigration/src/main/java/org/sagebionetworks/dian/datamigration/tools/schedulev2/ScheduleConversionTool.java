@@ -0,0 +1,268 @@
+package org.sagebionetworks.dian.datamigration.tools.schedulev2;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.joda.time.DateTime;
+import org.sagebionetworks.dian.datamigration.PathsHelper;
+import org.sagebionetworks.dian.datamigration.tools.adherence.SageScheduleController;
+import org.sagebionetworks.dian.datamigration.tools.adherence.SageV1Schedule;
+import org.sagebionetworks.dian.datamigration.tools.adherence.SageV2Availability;
+import org.sagebionetworks.dian.datamigration.tools.adherence.TimezoneResolver;
+import org.sagebionetworks.dian.datamigration.tools.rescheduler.TestSchedule;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Requirements:
+ * Need to be able to validate and profile the V1 to V2 schedule conversion for the whole cohort,
+ * without touching Bridge, using the schedules written by ScheduleV2Migration.writeScheduleJsonToFile.
+ *
+ * Converts every TestSchedule JSON file in a directory to a SageV1Schedule, and the matching
+ * wake sleep schedule in the availability directory to a SageV2Availability, in parallel,
+ * then prints summary statistics of the conversion.
+ *
+ * Usage: ScheduleConversionTool scheduleDir [availabilityDir] [threadCount]
+ */
+public class ScheduleConversionTool {
+
+    public static final SageScheduleController controller = new SageScheduleController();
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: ScheduleConversionTool scheduleDir [availabilityDir] [threadCount]");
+            return;
+        }
+        Path scheduleDir = Paths.get(args[0]);
+        Path availabilityDir = (args.length > 1) ? Paths.get(args[1]) : null;
+        int threadCount = (args.length > 2) ?
+                Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+        long start = System.currentTimeMillis();
+        Summary summary = convertAll(scheduleDir, availabilityDir, threadCount);
+        long elapsed = System.currentTimeMillis() - start;
+
+        System.out.println(summary.toString());
+        System.out.println("Converted in " + elapsed + " ms");
+    }
+
+    /**
+     * @param scheduleDir directory of TestSchedule JSON files, named by ARC ID or file ID
+     * @param availabilityDir directory of WakeSleepSchedule JSON files with the same names,
+     *                        or null to only convert the schedules
+     * @param threadCount the number of files to convert at the same time
+     * @return the summary statistics of all the conversions
+     * @throws IOException if the directories could not be read
+     */
+    public static Summary convertAll(
+            Path scheduleDir, Path availabilityDir, int threadCount) throws IOException {
+
+        List<Path> scheduleFiles;
+        try (Stream<Path> stream = Files.list(scheduleDir)) {
+            scheduleFiles = stream
+                    .filter(path -> path.getFileName().toString().endsWith(".json"))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threadCount));
+        try {
+            List<Future<Result>> futureList = new ArrayList<>();
+            for (Path scheduleFile : scheduleFiles) {
+                Path availabilityFile = (availabilityDir == null) ?
+                        null : availabilityDir.resolve(scheduleFile.getFileName());
+                futureList.add(executor.submit(() -> convert(scheduleFile, availabilityFile)));
+            }
+            // Results are added in file order, so the summary is the same for any thread count
+            Summary summary = new Summary();
+            for (Future<Result> future : futureList) {
+                summary.add(future.get());
+            }
+            return summary;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while converting schedules", e);
+        } catch (ExecutionException e) {
+            // convert catches its own failures, so this is unexpected
+            throw new IOException(e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * @param scheduleFile TestSchedule JSON file
+     * @param availabilityFile WakeSleepSchedule JSON file, or null if there is none
+     * @return the result of converting the files, with any error instead of throwing it
+     */
+    public static Result convert(Path scheduleFile, Path availabilityFile) {
+        Result result = new Result(scheduleFile.getFileName().toString());
+        try {
+            TestSchedule testSchedule = objectMapper.readValue(
+                    PathsHelper.readFile(scheduleFile), TestSchedule.class);
+            SageV1Schedule v1Schedule = controller.createV1Schedule(testSchedule);
+            result.burstCount = v1Schedule.getStudyBursts().size();
+
+            if (v1Schedule.getV1Timezone() == null) {
+                result.missingTimezone = true;
+            }
+            String timezone = ScheduleV2Migration.getTimezone(v1Schedule);
+            if (!TimezoneResolver.INSTANCE.isKnown(timezone)) {
+                result.unknownTimezone = timezone;
+            }
+
+            // The same start dates createV2Schedule sends to Bridge, before it fixes them,
+            // and it only moves the study bursts that have not started yet
+            DateTime studyStart = SageScheduleController.Companion
+                    .createDateTime(v1Schedule.getStudyBursts().get(0).getStartDate(), timezone)
+                    .withTimeAtStartOfDay().plusHours(12);
+            for (int i = 0; i < v1Schedule.getStudyBursts().size(); i++) {
+                DateTime startDate = SageScheduleController.Companion
+                        .createDateTime(v1Schedule.getStudyBursts().get(i).getStartDate(), timezone)
+                        .withTimeAtStartOfDay().plusHours(13);
+                if (!startDate.isAfterNow()) {
+                    continue;
+                }
+                int dayOffset = ScheduleV2Migration.studyBurstDayOffset(studyStart, startDate, i);
+                if (Math.abs(dayOffset) == 1) {
+                    result.offByOneBurstCount++;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            result.scheduleError = e.toString();
+        }
+
+        if (availabilityFile != null) {
+            result.availabilityChecked = true;
+            if (!Files.exists(availabilityFile)) {
+                result.availabilityMissing = true;
+            } else {
+                try {
+                    WakeSleepSchedule wakeSleepSchedule = objectMapper.readValue(
+                            PathsHelper.readFile(availabilityFile), WakeSleepSchedule.class);
+                    SageV2Availability availability = controller.createV2Availability(wakeSleepSchedule);
+                    result.availabilityShort = availability.availabilityInMinutes() <
+                            SageV2Availability.Companion.getMinimumAvailabilityInMinutes();
+                } catch (IOException | RuntimeException e) {
+                    result.availabilityError = e.toString();
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The conversion result of a single schedule file
+     */
+    public static class Result {
+        public final String fileName;
+        public int burstCount = 0;
+        public int offByOneBurstCount = 0;
+        public boolean missingTimezone = false;
+        public String unknownTimezone = null;
+        public String scheduleError = null;
+        public boolean availabilityChecked = false;
+        public boolean availabilityMissing = false;
+        public boolean availabilityShort = false;
+        public String availabilityError = null;
+
+        public Result(String fileName) {
+            this.fileName = fileName;
+        }
+    }
+
+    /**
+     * Summary statistics of converting many schedule files
+     */
+    public static class Summary {
+        public int scheduleCount = 0;
+        public int scheduleErrorCount = 0;
+        // Number of study bursts, to the number of schedules with that many
+        public final Map<Integer, Integer> burstCountMap = new TreeMap<>();
+        public int offByOneBurstCount = 0;
+        public int offByOneScheduleCount = 0;
+        public int missingTimezoneCount = 0;
+        // Unknown time zone name, to the number of schedules with it
+        public final Map<String, Integer> unknownTimezoneMap = new TreeMap<>();
+        public int availabilityCount = 0;
+        public int availabilityMissingCount = 0;
+        public int availabilityShortCount = 0;
+        public int availabilityErrorCount = 0;
+        public final List<String> errorList = new ArrayList<>();
+
+        public void add(Result result) {
+            scheduleCount++;
+            if (result.scheduleError != null) {
+                scheduleErrorCount++;
+                errorList.add(result.fileName + " schedule " + result.scheduleError);
+            } else {
+                burstCountMap.merge(result.burstCount, 1, Integer::sum);
+                offByOneBurstCount += result.offByOneBurstCount;
+                if (result.offByOneBurstCount > 0) {
+                    offByOneScheduleCount++;
+                }
+                if (result.missingTimezone) {
+                    missingTimezoneCount++;
+                }
+                if (result.unknownTimezone != null) {
+                    unknownTimezoneMap.merge(result.unknownTimezone, 1, Integer::sum);
+                }
+            }
+            if (!result.availabilityChecked) {
+                return;
+            }
+            if (result.availabilityMissing) {
+                availabilityMissingCount++;
+            } else if (result.availabilityError != null) {
+                availabilityErrorCount++;
+                errorList.add(result.fileName + " availability " + result.availabilityError);
+            } else {
+                availabilityCount++;
+                if (result.availabilityShort) {
+                    availabilityShortCount++;
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder str = new StringBuilder();
+            str.append("Schedules converted ").append(scheduleCount - scheduleErrorCount)
+                    .append(", failed ").append(scheduleErrorCount);
+            str.append("\nStudy bursts per schedule:");
+            for (Map.Entry<Integer, Integer> entry : burstCountMap.entrySet()) {
+                str.append("\n    ").append(entry.getKey()).append(" bursts: ")
+                        .append(entry.getValue()).append(" schedules");
+            }
+            str.append("\nFuture study bursts moved by 1 day ").append(offByOneBurstCount)
+                    .append(", in ").append(offByOneScheduleCount).append(" schedules");
+            str.append("\nSchedules without a time zone ").append(missingTimezoneCount);
+            str.append("\nUnknown time zones:");
+            for (Map.Entry<String, Integer> entry : unknownTimezoneMap.entrySet()) {
+                str.append("\n    ").append(entry.getKey()).append(": ")
+                        .append(entry.getValue()).append(" schedules");
+            }
+            str.append("\nAvailability converted ").append(availabilityCount)
+                    .append(", shorter than the minimum ").append(availabilityShortCount)
+                    .append(", missing ").append(availabilityMissingCount)
+                    .append(", failed ").append(availabilityErrorCount);
+            for (String error : errorList) {
+                str.append("\n").append(error);
+            }
+            return str.toString();
+        }
+    }
+}
@@ -14,10 +14,14 @@ import org.sagebionetworks.bridge.rest.model.Study;
 import org.sagebionetworks.bridge.rest.model.StudyActivityEventList;
 import org.sagebionetworks.bridge.rest.model.StudyParticipant;
 import org.sagebionetworks.bridge.rest.model.Timeline;
+import org.sagebionetworks.dian.datamigration.BridgeClientContext;
 import org.sagebionetworks.dian.datamigration.BridgeJavaSdkUtil;
+import org.sagebionetworks.dian.datamigration.ContentHashStore;
 import org.sagebionetworks.dian.datamigration.FileLogger;
 import org.sagebionetworks.dian.datamigration.HmDataModel;
+import org.sagebionetworks.dian.datamigration.MigrationPlan;
 import org.sagebionetworks.dian.datamigration.PathsHelper;
+import org.sagebionetworks.dian.datamigration.RequestGraph;
 import org.sagebionetworks.dian.datamigration.SynapseUtil;
 import org.sagebionetworks.dian.datamigration.tools.adherence.CompletedTestV2;
 import org.sagebionetworks.dian.datamigration.tools.adherence.SageEarningsControllerV2;
@@ -27,6 +31,9 @@ import org.sagebionetworks.dian.datamigration.tools.adherence.SageV1Schedule;
 import org.sagebionetworks.dian.datamigration.tools.adherence.SageV1StudyBurst;
 import org.sagebionetworks.dian.datamigration.tools.adherence.SageV2Availability;
 import org.sagebionetworks.dian.datamigration.tools.adherence.ScheduledSessionStart;
+import org.sagebionetworks.dian.datamigration.tools.adherence.SessionTimeRandom;
+import org.sagebionetworks.dian.datamigration.tools.adherence.TimelineIndex;
+import org.sagebionetworks.dian.datamigration.tools.adherence.TimezoneResolver;
 import org.sagebionetworks.dian.datamigration.tools.adherence.earnings.EarningDetails;
 import org.sagebionetworks.dian.datamigration.tools.rescheduler.TestSchedule;
 
@@ -34,8 +41,14 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static java.util.Comparator.*;
 
@@ -46,98 +59,275 @@ public class ScheduleV2Migration {
     public static Gson gson = new Gson();
     public static SageScheduleController controller = new SageScheduleController();
 
+    private static final String TIMELINE_REQUEST = "timeline";
+
+    // Set the environmental var BR_MIGRATION_FINGERPRINT_FILE to skip participants whose reports have not changed
+    public static final String ENV_FINGERPRINT_FILE = "BR_MIGRATION_FINGERPRINT_FILE";
+    // Fingerprints of each participant's inputs the last time they were migrated, null if not enabled
+    public static ContentHashStore fingerprintStore = null;
+
+    // Parallelism limits can be set with BR_MIGRATION_APP_PARALLELISM and BR_MIGRATION_STUDY_PARALLELISM
+    public static V2MigrationEngine migrationEngine = V2MigrationEngine.fromEnvironment();
+
+    // Set the environmental var BR_ADHERENCE_FULL_SYNC to "true" to re-upload every adherence record
+    public static final String ENV_ADHERENCE_FULL_SYNC = "BR_ADHERENCE_FULL_SYNC";
+    // When true, only adherence records that Bridge does not already have are uploaded
+    public static boolean adherenceDeltaSync =
+            !Boolean.parseBoolean(System.getenv(ENV_ADHERENCE_FULL_SYNC));
+
     public static void main(String[] args) throws IOException, Throwable {
         fileLogger.openFile();
 
-        BridgeJavaSdkUtil.initialize();
-        runV2Migration();
+        String fingerprintFile = System.getenv(ENV_FINGERPRINT_FILE);
+        if (fingerprintFile != null && !fingerprintFile.isEmpty()) {
+            fingerprintStore = new ContentHashStore(Paths.get(fingerprintFile));
+        }
 
-        BridgeJavaSdkUtil.BRIDGE_ID = BridgeJavaSdkUtil.BRIDGE_ID2;
+        List<BridgeClientContext> contextList = new ArrayList<>();
+        contextList.add(BridgeClientContext.signIn(
+                BridgeJavaSdkUtil.BRIDGE_EMAIL, BridgeJavaSdkUtil.BRIDGE_PW, BridgeJavaSdkUtil.BRIDGE_ID));
+        contextList.add(BridgeClientContext.signIn(
+                BridgeJavaSdkUtil.BRIDGE_EMAIL, BridgeJavaSdkUtil.BRIDGE_PW, BridgeJavaSdkUtil.BRIDGE_ID2));
+
+        // With --plan, every read is sent, but every write is only counted
+        boolean isPlan = MigrationPlan.isRequested(args);
+        if (isPlan) {
+            for (BridgeClientContext context : contextList) {
+                context.plan = MigrationPlan.fromEnvironment();
+            }
+        }
+
+        try {
+            runV2Migration(contextList);
+        } finally {
+            // Only participants that were migrated successfully have had their fingerprint updated
+            if (fingerprintStore != null && !isPlan) {
+                fingerprintStore.save();
+            }
+        }
 
-        BridgeJavaSdkUtil.initialize();
-        runV2Migration();
-        
         File file = fileLogger.closeFile();
+        if (isPlan) {
+            // The plan is kept locally, instead of being uploaded to Synapse
+            System.out.println("Plan written to " + file.getAbsolutePath());
+            return;
+        }
         SynapseUtil.initializeSynapse();
         SynapseUtil.uploadToSynapse(file, SynapseUtil.projectId);
     }
 
+    /**
+     * Migrates every bridge app at the same time, each on its own thread with its own context,
+     * so the total time is that of the slowest app, instead of the sum of all of them.
+     * @param contextList one context per bridge app to migrate
+     * @throws IOException the first app that failed, with any other failures added as suppressed
+     */
+    public static void runV2Migration(List<BridgeClientContext> contextList) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(contextList.size());
+        try {
+            List<Future<Void>> futureList = new ArrayList<>();
+            for (BridgeClientContext context : contextList) {
+                futureList.add(executor.submit(() -> BridgeJavaSdkUtil.<Void>withContext(context, () -> {
+                    runV2Migration();
+                    return null;
+                })));
+            }
+            IOException failure = null;
+            for (Future<Void> future : futureList) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while migrating", e);
+                } catch (ExecutionException e) {
+                    IOException appFailure = (e.getCause() instanceof IOException) ?
+                            (IOException)e.getCause() : new IOException(e.getCause());
+                    if (failure == null) {
+                        failure = appFailure;
+                    } else {
+                        failure.addSuppressed(appFailure);
+                    }
+                }
+            }
+            // Time zones are resolved once for the whole process, and shared by every app
+            fileLogger.write("All apps " + TimezoneResolver.INSTANCE.statsString());
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Migrates every participant of the bridge app in BridgeJavaSdkUtil's current context
+     * @throws IOException if something goes wrong
+     */
     public static void runV2Migration() throws IOException {
 
         StringBuilder errorStrings = new StringBuilder();
 
+        // Study IDs are only unique within a bridge project, so each project has its own cache
+        StudyTimelineCache timelineCache = new StudyTimelineCache();
+        BridgeClientContext context = BridgeJavaSdkUtil.context();
+
+        Map<String, Collection<String>> studyArcIds = new LinkedHashMap<>();
         List<Study> studyList = BridgeJavaSdkUtil.getAllStudies();
         for (Study study : studyList) {
             String studyId = study.getIdentifier();
 
             fileLogger.write("Getting all users from Study ID " + studyId);
-            HashSet<String> arcIdList = BridgeJavaSdkUtil.getArcIdsInStudy(studyId);
-
             // Once we are ready to deploy this for all studies, use a curated list of all Study IDs
-            for (String arcId : arcIdList) {
-                try {
-                    StudyParticipant p = BridgeJavaSdkUtil.getParticipantByExternalId(arcId);
+            studyArcIds.put(studyId, BridgeJavaSdkUtil.getArcIdsInStudy(studyId));
+        }
 
-                    if (p.getStudyIds() == null || p.getStudyIds().isEmpty()) {
-                        fileLogger.write(arcId + " has withdrawn");
-                        continue; // user has withdrawn, no need to migrate
-                    }
+        // Participants are migrated concurrently, within the engine's parallelism limits
+        List<V2MigrationEngine.Failure> failureList = migrationEngine.run(context, studyArcIds,
+                (studyId, arcId) -> migrateParticipant(studyId, arcId, timelineCache));
+        for (V2MigrationEngine.Failure failure : failureList) {
+            errorStrings.append("\nError migrating ").append(failure.getArcId())
+                    .append("\n").append(failure.getError().getMessage()).append("\n");
+        }
+
+        fileLogger.write(context.statsString());
+        fileLogger.write(context.getBridgeId() + " " + timelineCache.statsString());
+        if (context.plan != null) {
+            int participantCount = 0;
+            for (Collection<String> arcIds : studyArcIds.values()) {
+                participantCount += arcIds.size();
+            }
+            fileLogger.write(context.plan.report(context.getBridgeId(), participantCount));
+        }
 
-                    String uId = p.getId();
-                    String sId = p.getStudyIds().get(0);
+        // Each bridge app's results are written at once, so they are not mixed with other apps' logs
+        if (errorStrings.length() == 0) {
+            fileLogger.write("\n" + context.getBridgeId() + "\nNoErrors");
+        } else {
+            fileLogger.write("\n" + context.getBridgeId() + "\n" + errorStrings.toString());
+        }
+    }
 
-                    SageV2Availability availability = createV2Availability(
-                            uId, getAvailabilityJsonFromBridge(uId));
-                    if (availability == null) {
-                        fileLogger.write(arcId + " has no availability");
-                        continue;
-                    }
+    /**
+     * Performs the V2 migration of a single participant
+     * @param studyId the participant is listed in, they are migrated in a study they are enrolled in
+     * @param arcId of the participant
+     * @param timelineCache of the bridge app the participant belongs to
+     * @throws Exception if something goes wrong, the message is added to the error report
+     */
+    public static void migrateParticipant(
+            String studyId, String arcId, StudyTimelineCache timelineCache) throws Exception {
+        StudyParticipant p = BridgeJavaSdkUtil.getParticipantByExternalId(arcId);
+
+        if (p.getStudyIds() == null || p.getStudyIds().isEmpty()) {
+            fileLogger.write(arcId + " has withdrawn");
+            return; // user has withdrawn, no need to migrate
+        }
 
-                    SageV1Schedule v1Schedule = createV1Schedule(uId, getScheduleJsonFromBridge(uId));
-                    if (v1Schedule == null) {
-                        fileLogger.write(arcId + " has no schedule");
-                        continue;
-                    }
+        String uId = p.getId();
+        // The engine migrates an Arc ID once, in the first study that lists it,
+        // which may be a study the participant has since left for another one
+        String sId = p.getStudyIds().contains(studyId) ? studyId : p.getStudyIds().get(0);
+
+        // Attribute and client data updates are merged, and sent once at the end
+        BridgeJavaSdkUtil.beginParticipantUpdates(p);
+        try {
+            // The reports and the timeline do not depend on each other, download them all at once
+            RequestGraph requests = new RequestGraph();
+            requests.add(BridgeJavaSdkUtil.AVAILABILITY_REPORT_ID,
+                    () -> getAvailabilityJsonFromBridge(uId));
+            requests.add(BridgeJavaSdkUtil.TEST_SCHEDULE_REPORT_ID,
+                    () -> getScheduleJsonFromBridge(uId));
+            requests.add(BridgeJavaSdkUtil.COMPLETED_TESTS_REPORT_ID,
+                    () -> getCompletedTestsJsonFromBridge(uId));
+            requests.add(TIMELINE_REQUEST, () -> timelineCache.getTimelineIndex(uId, sId));
+            requests.run();
+
+            // Check for a user that has already migrated to V2 and signed into the app
+            SageUserClientData clientData = SageUserClientData.Companion.fromStudyParticipant(gson, p);
+            boolean hasMigrated = SageUserClientData.Companion.hasMigrated(clientData);
+
+            String fingerprintKey = BridgeJavaSdkUtil.context().getBridgeId() + "/" + uId;
+            String fingerprint = fingerprint(
+                    requests.get(BridgeJavaSdkUtil.TEST_SCHEDULE_REPORT_ID),
+                    requests.get(BridgeJavaSdkUtil.AVAILABILITY_REPORT_ID),
+                    requests.get(BridgeJavaSdkUtil.COMPLETED_TESTS_REPORT_ID),
+                    hasMigrated, timelineCache.getScheduleVersion(sId));
+            if (fingerprintStore != null && fingerprintStore.matches(fingerprintKey, fingerprint)) {
+                fileLogger.write(arcId + " is unchanged since it was last migrated");
+                return;
+            }
 
-                    fileLogger.write("Performing V2 migration on " + arcId);
+            SageV2Availability availability = createV2Availability(
+                    arcId, requests.get(BridgeJavaSdkUtil.AVAILABILITY_REPORT_ID));
+            if (availability == null) {
+                fileLogger.write(arcId + " has no availability");
+                return;
+            }
 
-                    // Check for a user that has already migrated to V2 and signed into the app
-                    SageUserClientData clientData = SageUserClientData.Companion.fromStudyParticipant(gson, p);
-                    boolean hasMigrated = SageUserClientData.Companion.hasMigrated(clientData);
+            SageV1Schedule v1Schedule = createV1Schedule(
+                    arcId, requests.get(BridgeJavaSdkUtil.TEST_SCHEDULE_REPORT_ID));
+            if (v1Schedule == null) {
+                fileLogger.write(arcId + " has no schedule");
+                return;
+            }
 
-                    if (!hasMigrated) {
-                        fileLogger.write("Creating schedule for " + arcId);
-                        createV2Schedule(arcId, v1Schedule, uId, sId);
-                    }
+            fileLogger.write("Performing V2 migration on " + arcId);
 
-                    SageEarningsControllerV2 earningsController =
-                            createEarningsController(uId, v1Schedule, getCompletedTestsJsonFromBridge(uId));
+            if (!hasMigrated) {
+                fileLogger.write("Creating schedule for " + arcId);
+                createV2Schedule(arcId, v1Schedule, uId, sId);
+            }
 
-                    StudyActivityEventList eventList = BridgeJavaSdkUtil.getAllTimelineEvents(uId, sId);
-                    Timeline timeline = BridgeJavaSdkUtil.getParticipantsTimeline(uId, sId);
+            SageEarningsControllerV2 earningsController = createEarningsController(
+                    uId, v1Schedule, requests.get(BridgeJavaSdkUtil.COMPLETED_TESTS_REPORT_ID));
 
-                    // If the user has already signed into the V2 app, don't overwrite their client data,
-                    // because it could overwrite any schedule or availability changes the user did in the mobile app.
-                    if (!hasMigrated) {
-                        fileLogger.write("Updating user client data for " + arcId);
-                        updateUserClientData(timeline, p, availability, earningsController);
-                    }
-                    // However, always update their adherence record list as it should be safe
-                    // and will not overwrite any data from the new V2 mobile app.
-                    fileLogger.write("Updating adherence for " + arcId);
-                    updateAdherenceRecords(timeline, eventList, uId, sId, v1Schedule, earningsController);
-                } catch (Exception e) {
-                    errorStrings.append("\nError migrating ").append(arcId)
-                            .append("\n").append(e.getMessage()).append("\n");
-                }
+            // The activity events depend on the schedule being created above
+            StudyActivityEventList eventList = BridgeJavaSdkUtil.getAllTimelineEvents(uId, sId);
+            // The index of the study's timeline, shared by every participant in the study
+            TimelineIndex timelineIndex = requests.get(TIMELINE_REQUEST);
+
+            // If the user has already signed into the V2 app, don't overwrite their client data,
+            // because it could overwrite any schedule or availability changes the user did in the mobile app.
+            if (!hasMigrated) {
+                fileLogger.write("Updating user client data for " + arcId);
+                updateUserClientData(arcId, timelineIndex, p, availability, earningsController);
+            }
+            // However, always update their adherence record list as it should be safe
+            // and will not overwrite any data from the new V2 mobile app.
+            fileLogger.write("Updating adherence for " + arcId);
+            updateAdherenceRecords(arcId, timelineIndex, eventList, uId, sId,
+                    v1Schedule, earningsController);
+
+            // Flush before recording the fingerprint, so a failed update is retried on the next run
+            BridgeJavaSdkUtil.flushParticipantUpdates(uId);
+            if (fingerprintStore != null) {
+                fingerprintStore.put(fingerprintKey, fingerprint);
             }
+        } catch (Exception e) {
+            // A failure to send the staged updates must not hide why the migration failed
+            BridgeJavaSdkUtil.endParticipantUpdatesAfterFailure(uId, e);
+            throw e;
+        } finally {
+            // Ends the unit of work on the early returns, which have not staged anything
+            BridgeJavaSdkUtil.flushParticipantUpdates(uId);
         }
+    }
 
-        if (errorStrings.length() == 0) {
-            fileLogger.write("\nNoErrors");
-        } else {
-            fileLogger.write("\n" + errorStrings.toString());
+    /**
+     * @return a string that is the same for two runs only if everything
+     *         the participant's V2 migration is computed from is the same
+     */
+    public static String fingerprint(String scheduleJson, String availabilityJson,
+                                     String completedTestsJson, boolean hasMigrated,
+                                     String scheduleVersion) {
+        // Lengths keep the boundary between each report unambiguous
+        StringBuilder builder = new StringBuilder();
+        for (String part : new String[] { scheduleJson, availabilityJson, completedTestsJson }) {
+            builder.append(part == null ? -1 : part.length()).append(':')
+                    .append(part == null ? "" : part).append('\n');
         }
+        builder.append(hasMigrated).append('\n').append(scheduleVersion);
+        return builder.toString();
     }
 
     public static String getScheduleJsonFromBridge(String uId) throws IOException {
@@ -199,10 +389,10 @@ public class ScheduleV2Migration {
     }
 
     public static SageV1Schedule
-    createV1Schedule(String uId, String scheduleJson) throws IOException {
-        TestSchedule testSchedule = createHMSchedule(uId, scheduleJson);
+    createV1Schedule(String arcId, String scheduleJson) throws IOException {
+        TestSchedule testSchedule = createHMSchedule(arcId, scheduleJson);
         if (testSchedule == null) {
-            fileLogger.write("User " + uId + " has no schedule yet");
+            fileLogger.write(arcId + " has no schedule yet");
             return null;
         }
         return controller.createV1Schedule(testSchedule);
@@ -212,7 +402,7 @@ public class ScheduleV2Migration {
     createV2Schedule(String arcId, SageV1Schedule v1Schedule, String uId, String sId) throws IOException {
 
         String iANATimezone = getTimezone(v1Schedule);
-        fileLogger.write("User timezone is " + iANATimezone);
+        fileLogger.write(arcId + " timezone is " + iANATimezone);
 
         DateTime studyStart = SageScheduleController.Companion
                 .createDateTime(v1Schedule.getStudyBursts().get(0).getStartDate(), iANATimezone)
@@ -220,6 +410,7 @@ public class ScheduleV2Migration {
                 // how it adjusts local times and time zones to get the correct start day
                 .withTimeAtStartOfDay().plusHours(12);
 
+        List<DateTime> startDateList = new ArrayList<>();
         for (int i = 0; i < v1Schedule.getStudyBursts().size(); i++) {
             SageV1StudyBurst studyBurst = v1Schedule.getStudyBursts().get(i);
 
@@ -237,35 +428,56 @@ public class ScheduleV2Migration {
             // This doesn't happen all the time, so first check for the situation.
             // To fix it, move each future study burst start date by 1 day
             if (startDate.isAfterNow()) {
-                // plus 1 hour accounts for daylight savings time issues
-                int daysFromStart = Days.daysBetween(studyStart, startDate).getDays();
-                int expectedDays = SageScheduleController.Companion.getWeeksBetweenStudyBursts() *
-                        SageScheduleController.Companion.getDaysInAllStudyBursts() * i;
-                if ((expectedDays - daysFromStart) == 1) {
+                int dayOffset = studyBurstDayOffset(studyStart, startDate, i);
+                if (dayOffset == 1) {
                     startDate = startDate.plusDays(1);
                     fileLogger.write(arcId + " study burst " + (i+1) +
                             " is off by 1 day, moving to 1 day in the future");
-                } else if ((expectedDays - daysFromStart) == -1) {
+                } else if (dayOffset == -1) {
                     startDate = startDate.minusDays(1);
                     fileLogger.write(arcId + " study burst " + (i+1) +
                             " is off by 1 day, moving to 1 day in the past");
                 }
             }
 
-            if (i == 0) {
-                // the first study burst start date. This shifted all study bursts by 1 day.
-                // Make sure this is sent first to create the schedule at the correct study start date
-                BridgeJavaSdkUtil.updateStudyBurst(
-                        uId, sId, SageScheduleController.ACTIVITY_EVENT_CREATE_SCHEDULE,
-                        startDate,
-                        iANATimezone);
-            }
-            BridgeJavaSdkUtil.updateStudyBurst(
-                    // i+1 for burst index, as Bridge designates 01 as first, not 00
-                    uId, sId, SageScheduleController.Companion.studyBurstActivityEventId(i+1),
-                    startDate,
-                    iANATimezone);
+            startDateList.add(startDate);
         }
+
+        // the first study burst start date. This shifted all study bursts by 1 day.
+        // Make sure this is sent first to create the schedule at the correct study start date
+        BridgeJavaSdkUtil.updateStudyBurst(
+                uId, sId, SageScheduleController.ACTIVITY_EVENT_CREATE_SCHEDULE,
+                startDateList.get(0),
+                iANATimezone);
+
+        // Once the schedule exists, the study burst events do not depend on each other
+        RequestGraph requests = new RequestGraph();
+        for (int i = 0; i < startDateList.size(); i++) {
+            // i+1 for burst index, as Bridge designates 01 as first, not 00
+            String eventId = SageScheduleController.Companion.studyBurstActivityEventId(i+1);
+            DateTime startDate = startDateList.get(i);
+            requests.add(eventId, () -> {
+                BridgeJavaSdkUtil.updateStudyBurst(uId, sId, eventId, startDate, iANATimezone);
+                return null;
+            });
+        }
+        // Throws the first failed event, with any other failed events as suppressed
+        requests.run();
+    }
+
+    /**
+     * @param studyStart the start date of the study, at noon
+     * @param burstStartDate the start date of the study burst, at 1 PM
+     * @param burstIdx 0-based index of the study burst
+     * @return the days the study burst starts before when it should, 0 if it is on time,
+     *         HappyMedium's app had future study bursts that were off by 1 day
+     */
+    public static int studyBurstDayOffset(DateTime studyStart, DateTime burstStartDate, int burstIdx) {
+        // plus 1 hour accounts for daylight savings time issues
+        int daysFromStart = Days.daysBetween(studyStart, burstStartDate).getDays();
+        int expectedDays = SageScheduleController.Companion.getWeeksBetweenStudyBursts() *
+                SageScheduleController.Companion.getDaysInAllStudyBursts() * burstIdx;
+        return expectedDays - daysFromStart;
     }
 
     public static String getTimezone(SageV1Schedule v1Schedule) {
@@ -279,6 +491,26 @@ public class ScheduleV2Migration {
             Timeline timeline,
             SageV2Availability availability,
             SageEarningsControllerV2 earningsController) {
+        return createUserClientData(
+                new TimelineIndex(timeline.getSchedule()), availability, earningsController);
+    }
+
+    public static SageUserClientData createUserClientData(
+            TimelineIndex timelineIndex,
+            SageV2Availability availability,
+            SageEarningsControllerV2 earningsController) {
+        return createUserClientData(null, timelineIndex, availability, earningsController);
+    }
+
+    /**
+     * @param arcId of the participant, seeds the random session start times when
+     *              BR_SESSION_TIME_SEED is set, see SessionTimeRandom
+     */
+    public static SageUserClientData createUserClientData(
+            String arcId,
+            TimelineIndex timelineIndex,
+            SageV2Availability availability,
+            SageEarningsControllerV2 earningsController) {
 
         EarningDetails earnings = earningsController.getCurrentEarningsDetails();
         List<String> earningsList = new ArrayList<>();
@@ -287,7 +519,8 @@ public class ScheduleV2Migration {
         }
 
         List<ScheduledSessionStart> sessionStartList =
-                controller.createAvailableTimeList(timeline.getSchedule(), availability);
+                controller.createAvailableTimeList(timelineIndex, availability,
+                        SessionTimeRandom.INSTANCE.forArcId(arcId));
 
         String baselineCompletionDate = null;
         if (earningsController.getBaselineTestComplete() != null) {
@@ -303,11 +536,11 @@ public class ScheduleV2Migration {
     }
 
     public static void updateUserClientData(
-            Timeline timeline,
+            String arcId, TimelineIndex timelineIndex,
             StudyParticipant participant, SageV2Availability availability,
             SageEarningsControllerV2 earningsController) throws IOException {
         SageUserClientData clientData =
-                createUserClientData(timeline, availability, earningsController);
+                createUserClientData(arcId, timelineIndex, availability, earningsController);
         JsonElement clientDataJson = new Gson().toJsonTree(clientData);
         BridgeJavaSdkUtil.updateParticipantClientData(participant, clientDataJson);
     }
@@ -321,10 +554,10 @@ public class ScheduleV2Migration {
     }
 
     public static SageV2Availability
-    createV2Availability(String uId, String availabilityJson) throws IOException {
-        WakeSleepSchedule wakeSleepSchedule = createHMAvailability(uId, availabilityJson);
+    createV2Availability(String arcId, String availabilityJson) throws IOException {
+        WakeSleepSchedule wakeSleepSchedule = createHMAvailability(arcId, availabilityJson);
         if (wakeSleepSchedule == null) {
-            fileLogger.write("User has no availability yet");
+            fileLogger.write(arcId + " has no availability yet");
             return null;
         }
         return controller.createV2Availability(wakeSleepSchedule);
@@ -353,12 +586,21 @@ public class ScheduleV2Migration {
     }
 
     public static void updateAdherenceRecords(
-            Timeline timeline, StudyActivityEventList eventList,
+            String arcId, TimelineIndex timelineIndex, StudyActivityEventList eventList,
             String userId, String studyId, SageV1Schedule v1Schedule,
             SageEarningsControllerV2 earningsController) throws IOException {
 
         List<AdherenceRecord> adherenceRecordList = createAdherenceRecords(
-                timeline, eventList, v1Schedule, earningsController);
+                timelineIndex, eventList, v1Schedule, earningsController);
+        fileLogger.write(arcId + " " + adherenceRecordList.size() + " adherence records created");
+
+        if (adherenceDeltaSync && !adherenceRecordList.isEmpty()) {
+            AdherenceDelta delta = new AdherenceDelta(
+                    BridgeJavaSdkUtil.getUserAdherenceRecords(userId, studyId));
+            adherenceRecordList = delta.changedRecords(adherenceRecordList);
+            fileLogger.write(arcId + " " + adherenceRecordList.size() +
+                    " adherence records are new or changed");
+        }
 
         if (!adherenceRecordList.isEmpty()) {
             BridgeJavaSdkUtil.updateAdherence(userId, studyId, adherenceRecordList);
@@ -369,22 +611,25 @@ public class ScheduleV2Migration {
             Timeline timeline, StudyActivityEventList eventList,
             SageV1Schedule v1Schedule,
             SageEarningsControllerV2 earningsController) throws IOException {
+        return createAdherenceRecords(new TimelineIndex(timeline.getSchedule()),
+                eventList, v1Schedule, earningsController);
+    }
 
-        String iANATimezone = getTimezone(v1Schedule);
+    public static List<AdherenceRecord> createAdherenceRecords(
+            TimelineIndex timelineIndex, StudyActivityEventList eventList,
+            SageV1Schedule v1Schedule,
+            SageEarningsControllerV2 earningsController) throws IOException {
 
-        int i = 0;
+        String iANATimezone = getTimezone(v1Schedule);
+        Map<String, DateTime> eventTimestamps = controller.eventTimestampMap(eventList);
 
         List<AdherenceRecord> adherenceRecordList = new ArrayList<>();
-        for(ScheduledSession session : timeline.getSchedule()) {
-            List<ScheduledSession> allSessionsOfDay =
-                    controller.allSessionsOfDay(timeline.getSchedule(),
-                            session.getStartEventId(), session.getStartDay());
+        for(ScheduledSession session : timelineIndex.getSessions()) {
             CompletedTestV2 completed = controller
-                    .findCompletedTest(session, allSessionsOfDay, earningsController);
+                    .findCompletedTest(session, timelineIndex, earningsController);
 
             // Test was completed, make an adherence record for it
             if (completed != null) {
-                i++;
                 // To make V2 of the earnings controller more simple and get rid of the
                 // the odd first study burst day offset, let's move all week 0 session a day backwards
                 // so that they match the rest of the study bursts, and have day as 0 for the first day.
@@ -393,12 +638,11 @@ public class ScheduleV2Migration {
                             completed.getDay() - 1, completed.getSession(), completed.getCompletedOn());
                 }
                 adherenceRecordList.add(controller.createAdherenceRecord(session,
-                        controller.eventTimestamp(session.getStartEventId(), eventList),
+                        controller.eventTimestamp(session.getStartEventId(), eventTimestamps),
                         SageScheduleController.Companion.createDateTime(completed.getCompletedOn()),
                         gson.toJsonTree(completed), iANATimezone));
             }
         }
-        fileLogger.write(i + " adherence records created");
 
         return adherenceRecordList;
     }
@@ -0,0 +1,215 @@
+package org.sagebionetworks.dian.datamigration.tools.schedulev2;
+
+import org.sagebionetworks.bridge.rest.exceptions.EntityNotFoundException;
+import org.sagebionetworks.bridge.rest.model.Schedule2;
+import org.sagebionetworks.bridge.rest.model.Study;
+import org.sagebionetworks.bridge.rest.model.StudyParticipant;
+import org.sagebionetworks.dian.datamigration.BridgeClientContext;
+import org.sagebionetworks.dian.datamigration.BridgeJavaSdkUtil;
+import org.sagebionetworks.dian.datamigration.CohortSnapshot;
+import org.sagebionetworks.dian.datamigration.RequestGraph;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Requirements:
+ * Need to be able to run the read-only tools, and dry runs of the migration, over and over
+ * without making thousands of Bridge requests each time.
+ *
+ * Downloads every participant of a bridge app, their HM reports, activity events and adherence records,
+ * in parallel using V2MigrationEngine's limits, and writes them to one encrypted CohortSnapshot file.
+ * Run the other tools with BR_SNAPSHOT_DIR and BR_SNAPSHOT_KEY set to read from the snapshot instead.
+ *
+ * Usage: SnapshotExportTool outputDir [bridgeId ...]
+ * Signs in with the BR_EMAIL and BR_PW environmental vars, to the BR_ID and BR_ID2 apps if
+ * no bridge IDs are given, and encrypts the snapshots with the BR_SNAPSHOT_KEY environmental var.
+ */
+public class SnapshotExportTool {
+
+    private static final String[] REPORT_IDS = new String[] {
+            BridgeJavaSdkUtil.AVAILABILITY_REPORT_ID,
+            BridgeJavaSdkUtil.TEST_SCHEDULE_REPORT_ID,
+            BridgeJavaSdkUtil.COMPLETED_TESTS_REPORT_ID };
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: SnapshotExportTool outputDir [bridgeId ...]");
+            return;
+        }
+        String passphrase = System.getenv(CohortSnapshot.ENV_SNAPSHOT_KEY);
+        if (passphrase == null || passphrase.isEmpty()) {
+            System.out.println(CohortSnapshot.ENV_SNAPSHOT_KEY + " must be set to encrypt the snapshot");
+            return;
+        }
+        Path outputDir = Paths.get(args[0]);
+        Files.createDirectories(outputDir);
+
+        List<String> bridgeIdList = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            bridgeIdList.add(args[i]);
+        }
+        if (bridgeIdList.isEmpty()) {
+            bridgeIdList.add(BridgeJavaSdkUtil.BRIDGE_ID);
+            bridgeIdList.add(BridgeJavaSdkUtil.BRIDGE_ID2);
+        }
+
+        V2MigrationEngine engine = V2MigrationEngine.fromEnvironment();
+        for (String bridgeId : bridgeIdList) {
+            BridgeClientContext context = BridgeClientContext.signInToBridge(
+                    BridgeJavaSdkUtil.BRIDGE_EMAIL, BridgeJavaSdkUtil.BRIDGE_PW, bridgeId);
+
+            long start = System.currentTimeMillis();
+            List<V2MigrationEngine.Failure> failureList = new ArrayList<>();
+            CohortSnapshot snapshot = export(context, engine, failureList);
+            long elapsed = System.currentTimeMillis() - start;
+
+            Path file = CohortSnapshot.fileFor(outputDir, bridgeId);
+            snapshot.write(file, passphrase);
+
+            for (V2MigrationEngine.Failure failure : failureList) {
+                System.out.println("Error exporting " + failure.getArcId() + " " + failure.getError());
+            }
+            System.out.println(bridgeId + " exported " + snapshot.participants.size() +
+                    " participants in " + snapshot.studyList.size() + " studies, " +
+                    failureList.size() + " failed, in " + elapsed + " ms");
+            System.out.println(context.statsString());
+            System.out.println("Wrote " + file.toAbsolutePath() + " " + Files.size(file) + " bytes");
+        }
+    }
+
+    /**
+     * Downloads everything in the bridge app that the tools read, in one parallel crawl
+     * @param context of the bridge app to export, must not be offline
+     * @param engine that limits how many participants are downloaded at once
+     * @param failureList the participants that could not be downloaded are added to this,
+     *                    they are left out of the snapshot
+     * @return the snapshot of the bridge app
+     * @throws IOException if the studies could not be downloaded
+     */
+    public static CohortSnapshot export(BridgeClientContext context, V2MigrationEngine engine,
+                                        List<V2MigrationEngine.Failure> failureList) throws IOException {
+
+        CohortSnapshot snapshot = new CohortSnapshot();
+        snapshot.bridgeId = context.getBridgeId();
+        snapshot.createdOn = System.currentTimeMillis();
+
+        // Each external ID is only downloaded once, even if it is listed in more than one study
+        Map<String, Collection<String>> studyWork = new LinkedHashMap<>();
+        BridgeJavaSdkUtil.<Void>withContext(context, () -> {
+            Set<String> seen = new HashSet<>();
+            snapshot.studyList.addAll(BridgeJavaSdkUtil.getAllStudies());
+            for (Study study : snapshot.studyList) {
+                String studyId = study.getIdentifier();
+                List<String> externalIds = BridgeJavaSdkUtil.getExternalIdsInStudy(studyId);
+                snapshot.studyExternalIds.put(studyId, externalIds);
+
+                List<String> work = new ArrayList<>();
+                for (String externalId : externalIds) {
+                    if (seen.add(externalId)) {
+                        work.add(externalId);
+                    }
+                }
+                studyWork.put(studyId, work);
+
+                try {
+                    Schedule2 schedule = BridgeJavaSdkUtil.getStudySchedule(studyId);
+                    if (schedule != null) {
+                        snapshot.studySchedules.put(studyId, schedule);
+                    }
+                } catch (EntityNotFoundException e) {
+                    // Studies without a schedule have no timeline either
+                }
+            }
+            return null;
+        });
+
+        Map<String, CohortSnapshot.ParticipantData> participantMap = new ConcurrentHashMap<>();
+        failureList.addAll(engine.run(context, studyWork,
+                (studyId, externalId) -> participantMap.put(externalId, exportParticipant(externalId))));
+
+        // Added in the order Bridge listed them, so the snapshot is the same for any parallelism
+        for (Collection<String> externalIds : studyWork.values()) {
+            for (String externalId : externalIds) {
+                CohortSnapshot.ParticipantData data = participantMap.get(externalId);
+                if (data != null) {
+                    snapshot.participants.put(externalId, data);
+                }
+            }
+        }
+
+        // Every participant in a study has the same timeline, so only the first one's is downloaded
+        BridgeJavaSdkUtil.<Void>withContext(context, () -> {
+            for (String studyId : snapshot.studySchedules.keySet()) {
+                String userId = firstUserIdInStudy(snapshot, studyId);
+                if (userId != null) {
+                    snapshot.studyTimelines.put(studyId,
+                            BridgeJavaSdkUtil.getParticipantsTimeline(userId, studyId));
+                }
+            }
+            return null;
+        });
+
+        return snapshot;
+    }
+
+    /**
+     * @param externalId of the participant
+     * @return the participant, their reports, and their events and adherence records in each of their studies
+     * @throws IOException if something goes wrong
+     */
+    public static CohortSnapshot.ParticipantData exportParticipant(String externalId) throws IOException {
+        CohortSnapshot.ParticipantData data = new CohortSnapshot.ParticipantData();
+        StudyParticipant participant = BridgeJavaSdkUtil.getParticipantByExternalId(externalId);
+        data.participant = participant;
+        String userId = participant.getId();
+
+        // None of these requests depend on each other, so they are all sent at the same time
+        RequestGraph requests = new RequestGraph();
+        for (String reportId : REPORT_IDS) {
+            requests.add(reportId, () ->
+                    BridgeJavaSdkUtil.getParticipantReportClientDataString(userId, reportId, true));
+        }
+        List<String> studyIds = (participant.getStudyIds() == null) ?
+                new ArrayList<>() : participant.getStudyIds();
+        for (String studyId : studyIds) {
+            requests.add("events/" + studyId, () ->
+                    BridgeJavaSdkUtil.getAllTimelineEvents(userId, studyId));
+            requests.add("adherence/" + studyId, () ->
+                    BridgeJavaSdkUtil.getUserAdherenceRecords(userId, studyId));
+        }
+        requests.run();
+
+        for (String reportId : REPORT_IDS) {
+            String clientData = requests.get(reportId);
+            if (clientData != null) {
+                data.reports.put(reportId, clientData);
+            }
+        }
+        for (String studyId : studyIds) {
+            data.events.put(studyId, requests.get("events/" + studyId));
+            data.adherence.put(studyId, requests.get("adherence/" + studyId));
+        }
+        return data;
+    }
+
+    private static String firstUserIdInStudy(CohortSnapshot snapshot, String studyId) {
+        for (CohortSnapshot.ParticipantData data : snapshot.participants.values()) {
+            List<String> studyIds = data.participant.getStudyIds();
+            if (studyIds != null && studyIds.contains(studyId)) {
+                return data.participant.getId();
+            }
+        }
+        return null;
+    }
+}
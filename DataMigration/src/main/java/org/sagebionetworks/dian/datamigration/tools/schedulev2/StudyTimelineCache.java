@@ -0,0 +1,194 @@
+package org.sagebionetworks.dian.datamigration.tools.schedulev2;
+
+import org.sagebionetworks.bridge.rest.exceptions.EntityNotFoundException;
+import org.sagebionetworks.bridge.rest.model.Schedule2;
+import org.sagebionetworks.bridge.rest.model.Timeline;
+import org.sagebionetworks.dian.datamigration.BridgeJavaSdkUtil;
+import org.sagebionetworks.dian.datamigration.tools.adherence.TimelineIndex;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The structure of a participant's Timeline (sessions, startEventId, startDay, startTime, and
+ * instanceGuids) comes from the study's Schedule2, and is identical for every participant in the study.
+ * This caches one Timeline per study, so it is downloaded once per study instead of once per participant,
+ * along with its TimelineIndex, so the index is also built once per study.
+ *
+ * The cache only lives for one run. Each cached Timeline remembers the guid and modifiedOn of the
+ * schedule, read before the Timeline is downloaded, so a schedule published during the download
+ * is cached under the older version. At most once every recheckMillis, a participant of the study
+ * reads the schedule's version again, and if the schedule was edited during the run, its Timeline
+ * is downloaded again instead of served from the cache.
+ *
+ * Participants of the same study are migrated concurrently. The first one to ask for the study's
+ * Timeline downloads it, without holding a lock, and the others wait for that download only.
+ */
+public class StudyTimelineCache {
+
+    public static final long DEFAULT_RECHECK_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    // How long a cached Timeline is served before the schedule's version is read again
+    private final long recheckMillis;
+
+    // Study ID, to its Timeline and index, or to null if the study has no schedule and is not cached
+    private final ConcurrentHashMap<String, CompletableFuture<CachedTimeline>> timelineMap =
+            new ConcurrentHashMap<>();
+
+    private final AtomicInteger hitCount = new AtomicInteger();
+    private final AtomicInteger missCount = new AtomicInteger();
+
+    public StudyTimelineCache() {
+        this(DEFAULT_RECHECK_MILLIS);
+    }
+
+    /**
+     * @param recheckMillis how long a cached Timeline is served before the schedule's version is read again
+     */
+    public StudyTimelineCache(long recheckMillis) {
+        this.recheckMillis = recheckMillis;
+    }
+
+    /**
+     * @param userId of any participant in the study
+     * @param studyId of the study
+     * @return the index of the study's Timeline, only downloaded from Bridge and built
+     *         the first time the study is seen, or null if the participant has no Timeline
+     * @throws IOException if something goes wrong
+     */
+    public TimelineIndex getTimelineIndex(String userId, String studyId) throws IOException {
+        while (true) {
+            CompletableFuture<CachedTimeline> future = new CompletableFuture<>();
+            CompletableFuture<CachedTimeline> existing = timelineMap.putIfAbsent(studyId, future);
+            if (existing == null) {
+                return download(userId, studyId, future);
+            }
+            CachedTimeline cached;
+            try {
+                cached = existing.get();
+            } catch (ExecutionException e) {
+                // The download failed, and was removed from the map, so try it with this participant
+                continue;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the timeline of " + studyId, e);
+            }
+            if (cached == null) {
+                // Studies without a schedule are not cached
+                missCount.incrementAndGet();
+                return indexOf(BridgeJavaSdkUtil.getParticipantsTimeline(userId, studyId));
+            }
+            if (isStale(studyId, cached)) {
+                // The schedule was edited during the run, so its Timeline is downloaded again
+                CompletableFuture<CachedTimeline> replacement = new CompletableFuture<>();
+                if (timelineMap.replace(studyId, existing, replacement)) {
+                    BridgeJavaSdkUtil.invalidateParticipantsTimeline(userId, studyId);
+                    return download(userId, studyId, replacement);
+                }
+                continue; // another participant is already downloading it
+            }
+            hitCount.incrementAndGet();
+            return cached.index;
+        }
+    }
+
+    /**
+     * Only one participant at a time reads the schedule's version, the others are served the cached Timeline
+     * @return true if the schedule's version has changed since the Timeline was cached
+     */
+    private boolean isStale(String studyId, CachedTimeline cached) throws IOException {
+        long checkedAt = cached.checkedAt.get();
+        long now = System.currentTimeMillis();
+        if (now - checkedAt < recheckMillis || !cached.checkedAt.compareAndSet(checkedAt, now)) {
+            return false;
+        }
+        return !cached.scheduleVersion.equals(scheduleVersion(studyId));
+    }
+
+    private TimelineIndex download(String userId, String studyId,
+                              CompletableFuture<CachedTimeline> future) throws IOException {
+        missCount.incrementAndGet();
+        try {
+            String version = scheduleVersion(studyId);
+            Timeline timeline = BridgeJavaSdkUtil.getParticipantsTimeline(userId, studyId);
+            if (version == null || timeline == null) {
+                future.complete(null);
+                return indexOf(timeline);
+            }
+            CachedTimeline cached = new CachedTimeline(version, timeline);
+            future.complete(cached);
+            return cached.index;
+        } catch (IOException | RuntimeException e) {
+            timelineMap.remove(studyId, future);
+            future.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * @param studyId of the study
+     * @return the version of the schedule the study's cached Timeline was created from,
+     *         or null if the study's Timeline is not cached
+     */
+    public String getScheduleVersion(String studyId) {
+        CachedTimeline cached = cachedNow(studyId);
+        return (cached == null) ? null : cached.scheduleVersion;
+    }
+
+    public void clear() {
+        timelineMap.clear();
+        hitCount.set(0);
+        missCount.set(0);
+    }
+
+    public String statsString() {
+        return "Timeline cache hits " + hitCount.get() + ", misses " + missCount.get();
+    }
+
+    /**
+     * @return the study's cached Timeline, or null if it is not cached or still downloading
+     */
+    private CachedTimeline cachedNow(String studyId) {
+        CompletableFuture<CachedTimeline> future = timelineMap.get(studyId);
+        if (future == null || !future.isDone() || future.isCompletedExceptionally()) {
+            return null;
+        }
+        return future.join();
+    }
+
+    private static TimelineIndex indexOf(Timeline timeline) {
+        return (timeline == null) ? null : new TimelineIndex(timeline.getSchedule());
+    }
+
+    /**
+     * @return a string that changes whenever the study's schedule changes, or null if it has none
+     */
+    private String scheduleVersion(String studyId) throws IOException {
+        try {
+            Schedule2 schedule = BridgeJavaSdkUtil.getStudySchedule(studyId);
+            if (schedule == null || schedule.getGuid() == null) {
+                return null;
+            }
+            return schedule.getGuid() + "/" + schedule.getModifiedOn();
+        } catch (EntityNotFoundException e) {
+            return null;
+        }
+    }
+
+    private static class CachedTimeline {
+        final String scheduleVersion;
+        final TimelineIndex index;
+        // When the schedule's version was last read
+        final AtomicLong checkedAt = new AtomicLong(System.currentTimeMillis());
+
+        CachedTimeline(String scheduleVersion, Timeline timeline) {
+            this.scheduleVersion = scheduleVersion;
+            this.index = new TimelineIndex(timeline.getSchedule());
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package org.sagebionetworks.dian.datamigration.tools.schedulev2
+
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.supervisorScope
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
+import org.sagebionetworks.dian.datamigration.BridgeClientContext
+import org.sagebionetworks.dian.datamigration.BridgeJavaSdkUtil
+
+/**
+ * Migrates the participants of one bridge app concurrently, using coroutines.
+ *
+ * At most appParallelism participants are migrated at once across the whole app,
+ * and at most studyParallelism at once within any one study, so a large study can't
+ * use up the whole app's limit. Each participant runs in its own supervised coroutine,
+ * so one participant failing does not cancel the others. A participant listed in more
+ * than one study is migrated once, and is passed the first study they are listed in.
+ *
+ * Participant migrations make blocking bridge calls, so they run on Dispatchers.IO,
+ * with the app's BridgeClientContext bound to the thread for the whole migration.
+ */
+class V2MigrationEngine(
+        val appParallelism: Int = DEFAULT_APP_PARALLELISM,
+        val studyParallelism: Int = DEFAULT_STUDY_PARALLELISM) {
+
+    companion object {
+        const val DEFAULT_APP_PARALLELISM = 8
+        const val DEFAULT_STUDY_PARALLELISM = 4
+
+        const val ENV_APP_PARALLELISM = "BR_MIGRATION_APP_PARALLELISM"
+        const val ENV_STUDY_PARALLELISM = "BR_MIGRATION_STUDY_PARALLELISM"
+
+        /**
+         * @return an engine with the parallelism limits set by the environmental vars, or the defaults
+         */
+        @JvmStatic
+        fun fromEnvironment(): V2MigrationEngine {
+            return V2MigrationEngine(
+                    envInt(ENV_APP_PARALLELISM, DEFAULT_APP_PARALLELISM),
+                    envInt(ENV_STUDY_PARALLELISM, DEFAULT_STUDY_PARALLELISM))
+        }
+
+        private fun envInt(name: String, default: Int): Int {
+            val value = System.getenv(name)?.toIntOrNull() ?: return default
+            return if (value > 0) value else default
+        }
+    }
+
+    init {
+        require(appParallelism > 0) { "appParallelism must be greater than 0" }
+        require(studyParallelism > 0) { "studyParallelism must be greater than 0" }
+    }
+
+    /**
+     * Migrates a single participant, any exception it throws is reported as that participant's failure
+     */
+    fun interface ParticipantMigration {
+        @Throws(Exception::class)
+        fun migrate(studyId: String, arcId: String)
+    }
+
+    /**
+     * A participant that could not be migrated
+     */
+    data class Failure(val arcId: String, val error: Throwable)
+
+    /**
+     * Migrates every participant, and waits for all of them to finish.
+     * @param context of the bridge app the participants belong to
+     * @param studyArcIds the Arc IDs to migrate in each study, in the order they should be started
+     * @param migration that migrates one participant
+     * @return the participants that failed, in the same order as studyArcIds
+     */
+    fun run(context: BridgeClientContext,
+            studyArcIds: Map<String, Collection<String>>,
+            migration: ParticipantMigration): List<Failure> {
+
+        // A participant in two studies would otherwise be migrated twice, at the same time
+        val arcIdSet = HashSet<String>()
+        val work = studyArcIds.flatMap { (studyId, arcIds) -> arcIds.map { Pair(studyId, it) } }
+                .filter { (_, arcId) -> arcIdSet.add(arcId) }
+        // One slot per participant, so failures are reported in the order participants were listed
+        val failures = arrayOfNulls<Failure>(work.size)
+
+        runBlocking {
+            val appPermits = Semaphore(appParallelism)
+            val studyPermits = studyArcIds.keys.associateWith { Semaphore(studyParallelism) }
+            supervisorScope {
+                work.forEachIndexed { index, (studyId, arcId) ->
+                    launch(Dispatchers.IO) {
+                        studyPermits.getValue(studyId).withPermit {
+                            appPermits.withPermit {
+                                try {
+                                    BridgeJavaSdkUtil.withContext<Unit>(context) {
+                                        migration.migrate(studyId, arcId)
+                                    }
+                                } catch (e: Exception) {
+                                    failures[index] = Failure(arcId, e)
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        return failures.filterNotNull()
+    }
+}
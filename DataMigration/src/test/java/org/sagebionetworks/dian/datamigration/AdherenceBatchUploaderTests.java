@@ -0,0 +1,227 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright 2021  Sage Bionetworks. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1.  Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2.  Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *
+ * 3.  Neither the name of the copyright holder(s) nor the names of any contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission. No license is granted to the trademarks of
+ * the copyright holders even if such marks are included in this software.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.sagebionetworks.dian.datamigration;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sagebionetworks.bridge.rest.exceptions.BadRequestException;
+import org.sagebionetworks.bridge.rest.exceptions.BridgeSDKException;
+import org.sagebionetworks.bridge.rest.model.AdherenceRecord;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AdherenceBatchUploaderTests {
+
+    private AdherenceBatchUploader uploader;
+    private List<String> uploaded;
+
+    @Before
+    public void before() {
+        uploader = new AdherenceBatchUploader();
+        uploaded = Collections.synchronizedList(new ArrayList<>());
+    }
+
+    @Test
+    public void test_uploadsEveryRecordOnce() throws IOException {
+        uploader.upload(createRecords(60), this::accept);
+        assertAllUploaded(60);
+        // Full batches succeeded, so the batch size grows
+        assertEquals(AdherenceBatchUploader.START_BATCH_SIZE * 2, uploader.getBatchSize());
+    }
+
+    @Test
+    public void test_splitsBatchesBridgeRejects() throws IOException {
+        uploader.upload(createRecords(60), batch -> {
+            if (batch.size() > 10) {
+                throw new BridgeSDKException("Payload Too Large", 413, "adherence");
+            }
+            accept(batch);
+        });
+        assertAllUploaded(60);
+        assertTrue(uploader.getBatchSize() <= 10);
+
+        // The smaller size is remembered, and used for the next upload
+        uploaded.clear();
+        uploader.upload(createRecords(30), batch -> {
+            assertTrue(batch.size() <= 10);
+            accept(batch);
+        });
+        assertAllUploaded(30);
+    }
+
+    @Test
+    public void test_badRecordIsNotSplitOrRetried() {
+        AtomicInteger sendCount = new AtomicInteger(0);
+        try {
+            uploader.upload(createRecords(30), batch -> {
+                sendCount.incrementAndGet();
+                if (batch.get(0).getInstanceGuid().equals("guid0")) {
+                    throw new BadRequestException("instanceGuid is invalid", "adherence");
+                }
+                accept(batch);
+            });
+            fail("Expected the upload to fail");
+        } catch (IOException e) {
+            fail("Expected the bad request to be rethrown");
+        } catch (BadRequestException e) {
+            assertEquals("instanceGuid is invalid", e.getMessage());
+        }
+        // Each batch was sent once, and the batch size is unchanged
+        assertEquals(2, sendCount.get());
+        assertEquals(5, uploaded.size());
+        assertEquals(AdherenceBatchUploader.START_BATCH_SIZE, uploader.getBatchSize());
+    }
+
+    @Test
+    public void test_validationErrorAboutSizeIsNotSplit() {
+        AtomicInteger sendCount = new AtomicInteger(0);
+        try {
+            uploader.upload(createRecords(30), batch -> {
+                sendCount.incrementAndGet();
+                if (batch.get(0).getInstanceGuid().equals("guid0")) {
+                    throw new BadRequestException("clientData size must not exceed the limit", "adherence");
+                }
+                accept(batch);
+            });
+            fail("Expected the upload to fail");
+        } catch (IOException e) {
+            fail("Expected the bad request to be rethrown");
+        } catch (BadRequestException e) {
+            assertEquals("clientData size must not exceed the limit", e.getMessage());
+        }
+        // The batch failed at once, instead of being split down to single records
+        assertEquals(2, sendCount.get());
+        assertEquals(5, uploaded.size());
+        assertEquals(AdherenceBatchUploader.START_BATCH_SIZE, uploader.getBatchSize());
+    }
+
+    @Test
+    public void test_oversizedRecordDoesNotShrinkBatches() {
+        try {
+            uploader.upload(createRecords(60), batch -> {
+                for (AdherenceRecord record : batch) {
+                    if (record.getInstanceGuid().equals("guid7")) {
+                        throw new BridgeSDKException("Payload Too Large", 413, "adherence");
+                    }
+                }
+                accept(batch);
+            });
+            fail("Expected the upload to fail");
+        } catch (IOException e) {
+            fail("Expected the rejected batch to be rethrown");
+        } catch (BridgeSDKException e) {
+            assertEquals(413, e.getStatusCode());
+        }
+        // Every other record was uploaded, and only the one record was too large
+        assertEquals(59, uploaded.size());
+        assertTrue(uploader.getBatchSize() >= AdherenceBatchUploader.START_BATCH_SIZE);
+    }
+
+    @Test
+    public void test_isTooLarge() {
+        assertTrue(AdherenceBatchUploader.isTooLarge(
+                new BridgeSDKException("Payload Too Large", 413, "adherence")));
+        assertFalse(AdherenceBatchUploader.isTooLarge(
+                new BadRequestException("instanceGuid is invalid", "adherence")));
+        assertFalse(AdherenceBatchUploader.isTooLarge(
+                new BadRequestException("Too many records", "adherence")));
+        assertFalse(AdherenceBatchUploader.isTooLarge(new IOException("Network error")));
+    }
+
+    @Test
+    public void test_retriesOnlyFailedBatches() throws IOException {
+        AtomicInteger failCount = new AtomicInteger(0);
+        uploader.upload(createRecords(60), batch -> {
+            if (batch.get(0).getInstanceGuid().equals("guid25") &&
+                    failCount.getAndIncrement() == 0) {
+                throw new IOException("Network error");
+            }
+            accept(batch);
+        });
+        // The failed batch was sent twice, and the others only once
+        assertEquals(2, failCount.get());
+        assertAllUploaded(60);
+    }
+
+    @Test
+    public void test_failsAfterRetries() {
+        try {
+            uploader.upload(createRecords(30), batch -> {
+                if (batch.get(0).getInstanceGuid().equals("guid0")) {
+                    throw new IOException("Network error");
+                }
+                accept(batch);
+            });
+            fail("Expected the upload to fail");
+        } catch (IOException e) {
+            assertEquals("Network error", e.getMessage());
+        }
+        // The other batch is still uploaded
+        assertEquals(5, uploaded.size());
+    }
+
+    private void accept(List<AdherenceRecord> batch) {
+        for (AdherenceRecord record : batch) {
+            uploaded.add(record.getInstanceGuid());
+        }
+    }
+
+    private void assertAllUploaded(int count) {
+        assertEquals(count, uploaded.size());
+        Set<String> unique = new HashSet<>(uploaded);
+        for (int i = 0; i < count; i++) {
+            assertTrue(unique.contains("guid" + i));
+        }
+    }
+
+    private static List<AdherenceRecord> createRecords(int count) {
+        List<AdherenceRecord> records = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            AdherenceRecord record = new AdherenceRecord();
+            record.setInstanceGuid("guid" + i);
+            records.add(record);
+        }
+        return records;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright 2021  Sage Bionetworks. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1.  Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2.  Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *
+ * 3.  Neither the name of the copyright holder(s) nor the names of any contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission. No license is granted to the trademarks of
+ * the copyright holders even if such marks are included in this software.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.sagebionetworks.dian.datamigration;
+
+import com.google.gson.Gson;
+import com.google.gson.internal.LinkedTreeMap;
+
+import org.joda.time.DateTime;
+import org.junit.Test;
+import org.sagebionetworks.bridge.rest.model.AdherenceRecord;
+import org.sagebionetworks.dian.datamigration.tools.adherence.CompletedTestV2;
+import org.sagebionetworks.dian.datamigration.tools.schedulev2.AdherenceDelta;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class AdherenceDeltaTests {
+
+    private final Gson gson = new Gson();
+
+    @Test
+    public void test_unchangedRecordsAreSkipped() {
+        // Bridge returns client data as a map, with numbers as doubles
+        AdherenceRecord existing = createRecord("guidA", 1000L,
+                gson.fromJson(gson.toJson(completed(1000L)), LinkedTreeMap.class));
+        AdherenceRecord same = createRecord("guidA", 1000L, gson.toJsonTree(completed(1000L)));
+        AdherenceRecord changed = createRecord("guidB", 2000L, gson.toJsonTree(completed(2000L)));
+
+        AdherenceDelta delta = new AdherenceDelta(Collections.singletonList(existing));
+        List<AdherenceRecord> result = delta.changedRecords(Arrays.asList(same, changed));
+        assertEquals(1, result.size());
+        assertSame(changed, result.get(0));
+    }
+
+    @Test
+    public void test_changedClientDataIsUploaded() {
+        AdherenceRecord existing = createRecord("guidA", 1000L, gson.toJsonTree(completed(1000L)));
+        AdherenceRecord record = createRecord("guidA", 1000L,
+                gson.toJsonTree(new CompletedTestV2("timeline_retrieved", 0, 1, 0, 1.0)));
+
+        AdherenceDelta delta = new AdherenceDelta(Collections.singletonList(existing));
+        assertEquals(1, delta.changedRecords(Collections.singletonList(record)).size());
+    }
+
+    private CompletedTestV2 completed(long millis) {
+        return new CompletedTestV2("timeline_retrieved", 0, 0, 0, millis / 1000.0);
+    }
+
+    private AdherenceRecord createRecord(String instanceGuid, long finishedOn, Object clientData) {
+        AdherenceRecord record = new AdherenceRecord();
+        record.setInstanceGuid(instanceGuid);
+        record.setFinishedOn(new DateTime(finishedOn));
+        record.setEventTimestamp(new DateTime(0L));
+        record.setClientData(clientData);
+        return record;
+    }
+}
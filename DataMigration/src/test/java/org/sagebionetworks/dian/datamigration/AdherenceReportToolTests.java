@@ -0,0 +1,154 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright 2021  Sage Bionetworks. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1.  Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2.  Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *
+ * 3.  Neither the name of the copyright holder(s) nor the names of any contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission. No license is granted to the trademarks of
+ * the copyright holders even if such marks are included in this software.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.sagebionetworks.dian.datamigration;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+import org.sagebionetworks.dian.datamigration.tools.adherence.SageEarningsControllerV2;
+import org.sagebionetworks.dian.datamigration.tools.adherence.SageV1Schedule;
+import org.sagebionetworks.dian.datamigration.tools.adherence.earnings.EarningDetails;
+import org.sagebionetworks.dian.datamigration.tools.schedulev2.AdherenceReportTool;
+import org.sagebionetworks.dian.datamigration.tools.schedulev2.AdherenceToolV2;
+import org.sagebionetworks.dian.datamigration.tools.schedulev2.ScheduleV2Migration;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AdherenceReportToolTests {
+
+    private final Path rootFileTestFolder = Paths.get("src", "test", "resources")
+            .resolve("bridge2MigrationTests");
+
+    private final DateTime now = new DateTime(2022, 6, 25, 12, 0, DateTimeZone.UTC);
+
+    private final String completedJson = "{\"completed\":[" +
+            "{\"week\":0,\"day\":1,\"session\":0,\"completedOn\":1655996900}," +
+            "{\"week\":0,\"day\":1,\"session\":1,\"completedOn\":1656006600}]}";
+
+    @Test
+    public void test_createParticipantRows() throws IOException {
+        String scheduleJson = PathsHelper.readFile(
+                rootFileTestFolder.resolve("000050_V1_Schedule.json"));
+
+        List<AdherenceReportTool.ReportRow> rowList = AdherenceReportTool.createParticipantRows(
+                "study", "000050", scheduleJson, completedJson, now);
+        assertEquals(10, rowList.size());
+
+        // Every row is the same as the interactive adherence table
+        List<AdherenceToolV2.AdherenceTableRow> table = AdherenceToolV2.createAdherenceTable(
+                AdherenceToolV2.controller.createV1Schedule(
+                        ScheduleV2Migration.createHMSchedule("000050", scheduleJson)),
+                ScheduleV2Migration.createCompletedTests(completedJson).completed, now);
+        for (int i = 0; i < rowList.size(); i++) {
+            AdherenceReportTool.ReportRow row = rowList.get(i);
+            assertEquals("study", row.studyId);
+            assertEquals("000050", row.arcId);
+            assertEquals(i, row.cycle);
+            assertEquals(table.get(i).startDate, row.startDate);
+            assertEquals(table.get(i).endDate, row.endDate);
+            assertEquals(table.get(i).adherence, row.adherence);
+            assertEquals(table.get(i).earned, row.earned);
+        }
+
+        // The first study burst started on 06/22/2022, so it is being tested now
+        assertEquals("06/22/2022", rowList.get(0).startDate);
+        assertTrue(rowList.get(0).testingNow);
+        assertFalse(rowList.get(1).testingNow);
+        assertEquals("$0.00", rowList.get(1).earned);
+    }
+
+    @Test
+    public void test_earningsUseTheTableTime() throws IOException {
+        SageV1Schedule v1Schedule = AdherenceToolV2.controller.createV1Schedule(
+                ScheduleV2Migration.createHMSchedule("000050", PathsHelper.readFile(
+                        rootFileTestFolder.resolve("000050_V1_Schedule.json"))));
+        List<HmDataModel.CompletedTest> completedTests =
+                ScheduleV2Migration.createCompletedTests(completedJson).completed;
+
+        // Earnings are calculated at the table's time, not at the current time
+        SageEarningsControllerV2 earningsController =
+                AdherenceToolV2.createEarningsController(v1Schedule, completedTests, now);
+        assertEquals(now.plusWeeks(26), earningsController.now());
+
+        // So the same time always creates the same table
+        List<AdherenceToolV2.AdherenceTableRow> table =
+                AdherenceToolV2.createAdherenceTable(v1Schedule, completedTests, now);
+        SageEarningsControllerV2 pinned = new SageEarningsControllerV2();
+        pinned.setOverridingNow(now);
+        pinned.initializeWithStudyBursts(v1Schedule, completedTests);
+        EarningDetails earnings = pinned.getCurrentEarningsDetails();
+        for (int i = 0; i < table.size(); i++) {
+            String expected = (i < earnings.cycles.size()) ? earnings.cycles.get(i).total : "$0.00";
+            assertEquals(expected, table.get(i).earned);
+        }
+    }
+
+    @Test
+    public void test_noSchedule() throws IOException {
+        assertTrue(AdherenceReportTool.createParticipantRows(
+                "study", "000050", null, completedJson, now).isEmpty());
+    }
+
+    @Test
+    public void test_writeCsvAndNdjson() throws IOException {
+        AdherenceToolV2.AdherenceTableRow tableRow = new AdherenceToolV2.AdherenceTableRow();
+        tableRow.cycle = 2;
+        tableRow.startDate = "06/22/2022";
+        tableRow.endDate = "06/29/2022";
+        tableRow.adherence = "50%";
+        tableRow.earned = "$1,000.00";
+        List<AdherenceReportTool.ReportRow> rowList = new ArrayList<>();
+        rowList.add(new AdherenceReportTool.ReportRow("study \"a\"", "000050", tableRow));
+
+        StringWriter csv = new StringWriter();
+        AdherenceReportTool.writeCsv(rowList, csv);
+        assertEquals("study_id,arc_id,cycle,start_date,end_date,adherence,earned,testing_now\n" +
+                "\"study \"\"a\"\"\",000050,2,06/22/2022,06/29/2022,50%,\"$1,000.00\",false\n",
+                csv.toString());
+
+        StringWriter ndjson = new StringWriter();
+        AdherenceReportTool.writeNdjson(rowList, ndjson);
+        assertEquals("{\"study_id\":\"study \\\"a\\\"\",\"arc_id\":\"000050\",\"cycle\":2," +
+                "\"start_date\":\"06/22/2022\",\"end_date\":\"06/29/2022\"," +
+                "\"adherence\":\"50%\",\"earned\":\"$1,000.00\",\"testing_now\":false}\n",
+                ndjson.toString());
+    }
+}
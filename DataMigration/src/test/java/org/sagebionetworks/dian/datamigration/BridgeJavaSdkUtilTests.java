@@ -37,7 +37,9 @@ import com.google.common.collect.ImmutableMap;
 
 import org.apache.commons.lang3.StringUtils;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
@@ -84,6 +86,9 @@ import static org.sagebionetworks.dian.datamigration.BridgeJavaSdkUtil.*;
 
 public class BridgeJavaSdkUtilTests extends Mockito {
 
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
     private final Path resourceDirectory = Paths.get("src", "test", "resources");
     private final Path testSessionSchedulePath = resourceDirectory
             .resolve("testSessionSchedules")
@@ -431,6 +436,29 @@ public class BridgeJavaSdkUtilTests extends Mockito {
         verify(mockCompletedTestsReportCall).execute();
     }
 
+    @Test
+    public void test_writeUserReports_skipsUnchanged() throws IOException {
+        // Deleted after the test, even if it fails, so it can't affect the next run
+        Path hashFile = tempFolder.getRoot().toPath().resolve("reportHashUnitTests.properties");
+        BridgeJavaSdkUtil.context().reportChangeDetector = new ReportChangeDetector(
+                ReportChangeDetector.Mode.HASH_STORE, new ContentHashStore(hashFile));
+
+        HmDataModel.HmUserData data = new HmDataModel.HmUserData();
+        data.testSessionSchedule = testSessionSchedulePath;
+        data.wakeSleepSchedule = wakeSleepSchedulePath;
+
+        BridgeJavaSdkUtil.writeUserReports("000001", data);
+        BridgeJavaSdkUtil.writeUserReports("000001", data);
+        verify(mockTestSessionReportCall, times(1)).execute();
+        verify(mockWakeSleepReportCall, times(1)).execute();
+        assertEquals(2, BridgeJavaSdkUtil.context().reportChangeDetector.getWritesAvoided());
+
+        // A different user has never had reports written
+        BridgeJavaSdkUtil.writeUserReports("000002", data);
+        verify(mockTestSessionReportCall, times(2)).execute();
+        verify(mockWakeSleepReportCall, times(2)).execute();
+    }
+
     @Test
     public void test_bridgifyAttributes() throws IOException {
         Map<String, String> attributeMap = new HashMap<>();
@@ -581,6 +609,32 @@ public class BridgeJavaSdkUtilTests extends Mockito {
         assertEquals("abcdefg", data);
     }
 
+    @Test
+    public void test_readCompareIgnoresResponseCache() throws IOException {
+        BridgeResponseCache responseCache = new BridgeResponseCache(
+                tempFolder.getRoot().toPath().resolve("responseCache"), "passphrase");
+        BridgeClientContext context = new BridgeClientContext("test-app",
+                mockResearcherApi, mockReportsApi, mockParticipantsApi, mockStudyActivityEventsApi,
+                mockAssessmentsApi, mockScheduleApi, mockAdherenceRecordsApi, responseCache,
+                new ReportChangeDetector(ReportChangeDetector.Mode.READ_COMPARE, null));
+
+        ForwardCursorReportDataList changedResponse = new ObjectMapper().readValue(
+                "{\"items\":[{\"data\":\"changed\"}]}", ForwardCursorReportDataList.class);
+        BridgeJavaSdkUtil.<Void>withContext(context, () -> {
+            // Caches the report as it is now
+            assertEquals("abcdefg", BridgeJavaSdkUtil.getParticipantReportClientDataString(
+                    "UserId", "ReportId"));
+
+            // The report is changed on Bridge, after it was cached
+            when(mockGetUsersParticipantReportRecordsV4.execute())
+                    .thenReturn(Response.success(changedResponse));
+            assertTrue(context.reportChangeDetector.shouldWrite("UserId", "ReportId", "abcdefg"));
+            assertFalse(context.reportChangeDetector.shouldWrite("UserId", "ReportId", "changed"));
+            return null;
+        });
+        verify(mockGetUsersParticipantReportRecordsV4, times(3)).execute();
+    }
+
     @Test
     public void test_manualMigration() throws IOException {
         BridgeJavaSdkUtil.manuallyMigrateUser("d1a5cbaf-288c-48dd-9d4a-98c90213ac01");
@@ -0,0 +1,175 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright 2021  Sage Bionetworks. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1.  Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2.  Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *
+ * 3.  Neither the name of the copyright holder(s) nor the names of any contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission. No license is granted to the trademarks of
+ * the copyright holders even if such marks are included in this software.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.sagebionetworks.dian.datamigration;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BridgeResponseCacheTests {
+
+    private final Path cacheDirectory = Paths.get("src", "test", "resources")
+            .resolve("responseCacheUnitTests");
+
+    @Before
+    public void before() throws IOException {
+        PathsHelper.deleteDirectoryRecursively(cacheDirectory);
+    }
+
+    @After
+    public void after() throws IOException {
+        PathsHelper.deleteDirectoryRecursively(cacheDirectory);
+    }
+
+    @Test
+    public void test_disabled() {
+        BridgeResponseCache cache = BridgeResponseCache.disabled();
+        assertFalse(cache.isEnabled());
+        cache.put("key", BridgeResponseCache.Kind.REPORT, "{}");
+        assertNull(cache.get("key"));
+    }
+
+    @Test
+    public void test_putAndGet() {
+        BridgeResponseCache cache = new BridgeResponseCache(cacheDirectory, "passphrase");
+        cache.put("key", BridgeResponseCache.Kind.REPORT, "{\"completed\":[]}");
+        assertEquals("{\"completed\":[]}", cache.get("key"));
+        assertNull(cache.get("otherKey"));
+
+        cache.invalidate("key");
+        assertNull(cache.get("key"));
+    }
+
+    @Test
+    public void test_expired() {
+        BridgeResponseCache cache = new BridgeResponseCache(cacheDirectory, "passphrase");
+        cache.setTtlMillis(BridgeResponseCache.Kind.TIMELINE, 0L);
+        cache.put("key", BridgeResponseCache.Kind.TIMELINE, "{}");
+        assertNull(cache.get("key"));
+    }
+
+    @Test
+    public void test_eachEntryHasItsOwnSalt() throws IOException {
+        BridgeResponseCache cache = new BridgeResponseCache(cacheDirectory, "passphrase");
+        cache.put("key1", BridgeResponseCache.Kind.REPORT, "{}");
+        cache.put("key2", BridgeResponseCache.Kind.REPORT, "{}");
+        assertTrue(Files.exists(cacheDirectory.resolve(BridgeResponseCache.SALT_FILE_NAME)));
+
+        List<byte[]> salts = new ArrayList<>();
+        try (Stream<Path> files = Files.list(cacheDirectory)) {
+            for (Path file : files.collect(Collectors.toList())) {
+                if (!file.getFileName().toString().equals(BridgeResponseCache.SALT_FILE_NAME)) {
+                    salts.add(Arrays.copyOf(Files.readAllBytes(file), BridgeResponseCache.SALT_LENGTH));
+                }
+            }
+        }
+        assertEquals(2, salts.size());
+        assertFalse(Arrays.equals(salts.get(0), salts.get(1)));
+
+        // A new run derives the same master key from the stored salt
+        assertEquals("{}", new BridgeResponseCache(cacheDirectory, "passphrase").get("key1"));
+    }
+
+    @Test
+    public void test_concurrentReadsAndWrites() throws Exception {
+        BridgeResponseCache cache = new BridgeResponseCache(cacheDirectory, "passphrase");
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> futures = new ArrayList<>();
+            for (int i = 0; i < 32; i++) {
+                // Every other task shares a key, so the same entry is replaced while it is read
+                String key = (i % 2 == 0) ? "key" + i : "sharedKey";
+                String body = "{\"id\":" + i + "}";
+                futures.add(executor.submit(() -> {
+                    cache.put(key, BridgeResponseCache.Kind.REPORT, body);
+                    return cache.get(key);
+                }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                String body = futures.get(i).get();
+                if (i % 2 == 0) {
+                    assertEquals("{\"id\":" + i + "}", body);
+                } else {
+                    // A read of a shared key sees one whole entry, never half of one
+                    assertTrue(body, body == null || body.matches("\\{\"id\":\\d+}"));
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+        // Only the salt and the 17 entries are left, no temporary files
+        try (Stream<Path> files = Files.list(cacheDirectory)) {
+            assertEquals(1 + 17, files.count());
+        }
+    }
+
+    @Test
+    public void test_parseTtlMinutes() {
+        assertEquals(30L, BridgeResponseCache.parseTtlMinutes("30"));
+        for (String ttl : new String[] { "-1", "an hour", "1.5" }) {
+            try {
+                BridgeResponseCache.parseTtlMinutes(ttl);
+                fail("TTL " + ttl + " should not be accepted");
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage().contains(BridgeResponseCache.ENV_CACHE_TTL_MINUTES));
+            }
+        }
+    }
+
+    @Test
+    public void test_wrongPassphrase() {
+        new BridgeResponseCache(cacheDirectory, "passphrase")
+                .put("key", BridgeResponseCache.Kind.REPORT, "{}");
+        BridgeResponseCache otherCache = new BridgeResponseCache(cacheDirectory, "other");
+        assertNull(otherCache.get("key"));
+    }
+}
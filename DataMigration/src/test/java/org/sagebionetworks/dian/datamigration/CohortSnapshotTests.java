@@ -0,0 +1,200 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright 2021  Sage Bionetworks. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1.  Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2.  Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *
+ * 3.  Neither the name of the copyright holder(s) nor the names of any contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission. No license is granted to the trademarks of
+ * the copyright holders even if such marks are included in this software.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.sagebionetworks.dian.datamigration;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sagebionetworks.bridge.rest.exceptions.EntityNotFoundException;
+import org.sagebionetworks.bridge.rest.model.AdherenceRecord;
+import org.sagebionetworks.bridge.rest.model.Study;
+import org.sagebionetworks.bridge.rest.model.StudyActivityEventList;
+import org.sagebionetworks.bridge.rest.model.StudyParticipant;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CohortSnapshotTests {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private CohortSnapshot createSnapshot() {
+        CohortSnapshot snapshot = new CohortSnapshot();
+        snapshot.bridgeId = "dian-validation";
+        snapshot.createdOn = 1000L;
+
+        Study study = new Study();
+        study.setIdentifier("study1");
+        snapshot.studyList.add(study);
+        snapshot.studyExternalIds.put("study1", Arrays.asList("000001", "device-id"));
+
+        StudyParticipant participant = new StudyParticipant();
+        participant.setId("user1");
+        participant.setStudyIds(Collections.singletonList("study1"));
+
+        CohortSnapshot.ParticipantData data = new CohortSnapshot.ParticipantData();
+        data.participant = participant;
+        data.reports.put(BridgeJavaSdkUtil.TEST_SCHEDULE_REPORT_ID, "{\"sessions\":[]}");
+        data.events.put("study1", new StudyActivityEventList());
+        List<AdherenceRecord> records = new ArrayList<>();
+        AdherenceRecord record = new AdherenceRecord();
+        record.setInstanceGuid("guid1");
+        records.add(record);
+        data.adherence.put("study1", records);
+        snapshot.participants.put("000001", data);
+        return snapshot;
+    }
+
+    @Test
+    public void test_writeAndRead() throws IOException {
+        Path file = CohortSnapshot.fileFor(tempFolder.getRoot().toPath(), "dian-validation");
+        createSnapshot().write(file, "passphrase");
+
+        // The participant data is not readable in the file
+        String fileContents = new String(Files.readAllBytes(file), "ISO-8859-1");
+        assertFalse(fileContents.contains("sessions"));
+        assertFalse(Files.exists(file.resolveSibling(file.getFileName() + ".tmp")));
+
+        CohortSnapshot snapshot = CohortSnapshot.read(file, "passphrase");
+        assertEquals("dian-validation", snapshot.bridgeId);
+        assertEquals(1000L, snapshot.createdOn);
+        assertEquals("study1", snapshot.studyList.get(0).getIdentifier());
+        assertEquals(Arrays.asList("000001", "device-id"), snapshot.studyExternalIds.get("study1"));
+        assertEquals("user1", snapshot.getParticipantByExternalId("000001").getId());
+        assertEquals("{\"sessions\":[]}",
+                snapshot.getReport("user1", BridgeJavaSdkUtil.TEST_SCHEDULE_REPORT_ID));
+        assertNull(snapshot.getReport("user1", BridgeJavaSdkUtil.AVAILABILITY_REPORT_ID));
+        assertNotNull(snapshot.getEvents("user1", "study1"));
+        assertEquals("guid1", snapshot.getAdherenceRecords("user1", "study1").get(0).getInstanceGuid());
+        assertTrue(snapshot.getAdherenceRecords("user2", "study1").isEmpty());
+    }
+
+    @Test
+    public void test_readWithWrongKey() throws IOException {
+        Path file = tempFolder.getRoot().toPath().resolve("test.snapshot");
+        createSnapshot().write(file, "passphrase");
+        try {
+            CohortSnapshot.read(file, "wrong passphrase");
+            fail("Snapshot should not be readable with the wrong key");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void test_eachFileHasItsOwnSalt() throws IOException {
+        Path first = tempFolder.getRoot().toPath().resolve("first.snapshot");
+        Path second = tempFolder.getRoot().toPath().resolve("second.snapshot");
+        createSnapshot().write(first, "passphrase");
+        createSnapshot().write(second, "passphrase");
+
+        byte[] firstHeader = Arrays.copyOf(Files.readAllBytes(first), CohortSnapshot.HEADER_LENGTH);
+        byte[] secondHeader = Arrays.copyOf(Files.readAllBytes(second), CohortSnapshot.HEADER_LENGTH);
+        assertArrayEquals(CohortSnapshot.HEADER_MAGIC,
+                Arrays.copyOf(firstHeader, CohortSnapshot.HEADER_MAGIC.length));
+        assertEquals(CohortSnapshot.HEADER_VERSION, firstHeader[CohortSnapshot.HEADER_MAGIC.length]);
+        // Same passphrase, but a different salt, and so a different key
+        assertFalse(Arrays.equals(firstHeader, secondHeader));
+        assertEquals("dian-validation", CohortSnapshot.read(second, "passphrase").bridgeId);
+    }
+
+    @Test
+    public void test_readUnsupportedHeader() throws IOException {
+        Path file = tempFolder.getRoot().toPath().resolve("test.snapshot");
+        createSnapshot().write(file, "passphrase");
+        byte[] data = Files.readAllBytes(file);
+        data[CohortSnapshot.HEADER_MAGIC.length] = CohortSnapshot.HEADER_VERSION + 1;
+        Files.write(file, data);
+        try {
+            CohortSnapshot.read(file, "passphrase");
+            fail("Snapshot with a newer header should not be read");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("unsupported header version"));
+        }
+    }
+
+    @Test
+    public void test_offlineContext() throws IOException {
+        BridgeClientContext context = BridgeClientContext.fromSnapshot(createSnapshot());
+        assertTrue(context.isOffline());
+        assertEquals("dian-validation", context.getBridgeId());
+
+        BridgeJavaSdkUtil.<Void>withContext(context, () -> {
+            assertEquals(1, BridgeJavaSdkUtil.getAllStudies().size());
+            assertEquals(Collections.singleton("000001"),
+                    BridgeJavaSdkUtil.getArcIdsInStudy("study1"));
+            assertEquals("user1", BridgeJavaSdkUtil.getParticipantByExternalId("000001").getId());
+            assertEquals("{\"sessions\":[]}", BridgeJavaSdkUtil.getParticipantReportClientDataString(
+                    "user1", BridgeJavaSdkUtil.TEST_SCHEDULE_REPORT_ID));
+            assertNull(BridgeJavaSdkUtil.getParticipantReportClientDataString(
+                    "user1", BridgeJavaSdkUtil.COMPLETED_TESTS_REPORT_ID, true));
+            assertEquals(1, BridgeJavaSdkUtil.getUserAdherenceRecords("user1", "study1").size());
+
+            try {
+                BridgeJavaSdkUtil.getParticipantByExternalId("000002");
+                fail("Participants not in the snapshot should not be found");
+            } catch (EntityNotFoundException e) {
+                // expected
+            }
+
+            // Nothing can be written to Bridge from a snapshot
+            try {
+                BridgeJavaSdkUtil.writeUserReport("user1",
+                        BridgeJavaSdkUtil.COMPLETED_TESTS_REPORT_ID, "{\"completed\":[]}");
+                fail("Offline contexts should not write reports");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+            try {
+                BridgeJavaSdkUtil.updateAdherence("user1", "study1", new ArrayList<>());
+                fail("Offline contexts should not write adherence records");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+            return null;
+        });
+    }
+}
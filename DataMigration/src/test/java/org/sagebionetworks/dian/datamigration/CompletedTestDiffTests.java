@@ -0,0 +1,110 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright 2021  Sage Bionetworks. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1.  Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2.  Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *
+ * 3.  Neither the name of the copyright holder(s) nor the names of any contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission. No license is granted to the trademarks of
+ * the copyright holders even if such marks are included in this software.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.sagebionetworks.dian.datamigration;
+
+import com.google.gson.Gson;
+
+import org.junit.Test;
+import org.sagebionetworks.bridge.rest.model.AdherenceRecord;
+import org.sagebionetworks.dian.datamigration.HmDataModel.CompletedTest;
+import org.sagebionetworks.dian.datamigration.tools.adherence.CompletedTestDiff;
+import org.sagebionetworks.dian.datamigration.tools.adherence.CompletedTestV2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class CompletedTestDiffTests {
+
+    private final Gson gson = new Gson();
+
+    @Test
+    public void test_decodeTreeAndMapMatch() {
+        CompletedTestV2 v2Test = new CompletedTestV2("create_schedule", 26, 3, 2, 1600000000.5);
+
+        // Created by the migration as a JSON tree
+        CompletedTest fromTree = CompletedTestDiff.decode(gson.toJsonTree(v2Test));
+        // Read back from Bridge, as a map with every number as a double
+        Map<?, ?> map = gson.fromJson(gson.toJson(v2Test), Map.class);
+        CompletedTest fromMap = CompletedTestDiff.decode(map);
+
+        assertEquals(26, fromTree.week);
+        assertEquals(3, fromTree.day);
+        assertEquals(2, fromTree.session);
+        assertEquals(1600000000.5, fromTree.completedOn, 0.0);
+        assertEquals(gson.toJson(fromTree), gson.toJson(fromMap));
+
+        assertNull(CompletedTestDiff.decode(null));
+    }
+
+    @Test
+    public void test_weekZeroDayOffsetReversed() {
+        CompletedTest completed = CompletedTestDiff.decode(
+                gson.toJsonTree(new CompletedTestV2("create_schedule", 0, 0, 1, 0.0)));
+        assertEquals(1, completed.day);
+    }
+
+    @Test
+    public void test_bothDirections() {
+        List<CompletedTest> completedList = Arrays.asList(
+                new CompletedTest(26, 1, 0, 1.0),
+                new CompletedTest(26, 1, 1, 2.0),
+                new CompletedTest(26, 2, 0, 3.0));
+
+        List<AdherenceRecord> adherence = new ArrayList<>();
+        adherence.add(record(new CompletedTestV2("burst", 26, 1, 1, 2.0)));
+        adherence.add(record(new CompletedTestV2("burst", 52, 1, 1, 4.0)));
+
+        CompletedTestDiff diff = new CompletedTestDiff(completedList, adherence);
+
+        assertEquals(2, diff.getMissingFromAdherence().size());
+        assertEquals(0, diff.getMissingFromAdherence().get(0).session);
+        assertEquals(2, diff.getMissingFromAdherence().get(1).day);
+
+        assertEquals(1, diff.getMissingFromCompleted().size());
+        assertEquals(52, diff.getMissingFromCompleted().get(0).week);
+
+        // Like before, the diff is taken from the longer list
+        assertEquals(diff.getMissingFromAdherence(), diff.diff());
+    }
+
+    private AdherenceRecord record(CompletedTestV2 completed) {
+        AdherenceRecord record = new AdherenceRecord();
+        record.setClientData(gson.fromJson(gson.toJson(completed), Map.class));
+        return record;
+    }
+}
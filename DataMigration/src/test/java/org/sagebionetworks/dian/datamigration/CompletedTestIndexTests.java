@@ -0,0 +1,126 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright 2021  Sage Bionetworks. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1.  Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2.  Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *
+ * 3.  Neither the name of the copyright holder(s) nor the names of any contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission. No license is granted to the trademarks of
+ * the copyright holders even if such marks are included in this software.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.sagebionetworks.dian.datamigration;
+
+import org.junit.Test;
+import org.sagebionetworks.dian.datamigration.HmDataModel.CompletedTest;
+import org.sagebionetworks.dian.datamigration.tools.adherence.CompletedTestIndex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class CompletedTestIndexTests {
+
+    @Test
+    public void test_findMatchesFirstOrNull() {
+        List<CompletedTest> tests = new ArrayList<>();
+        for (int week : new int[] { 0, 26, 52 }) {
+            for (int day = 0; day < 7; day++) {
+                for (int session = 0; session < 4; session++) {
+                    if ((week + day + session) % 3 != 0) {
+                        tests.add(new CompletedTest(week, day, session, week * 1000 + day * 10 + session));
+                    }
+                }
+            }
+        }
+        CompletedTestIndex index = new CompletedTestIndex(tests);
+
+        for (int week = -1; week < 54; week++) {
+            for (int day = -1; day < 9; day++) {
+                for (int session = -1; session < 5; session++) {
+                    assertSame(firstOrNull(tests, week, day, session),
+                            index.find(week, day, session));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void test_duplicatesFirstWins() {
+        CompletedTest first = new CompletedTest(1, 2, 3, 100);
+        CompletedTest second = new CompletedTest(1, 2, 3, 200);
+        CompletedTestIndex index = new CompletedTestIndex(Arrays.asList(first, second));
+        assertSame(first, index.find(1, 2, 3));
+    }
+
+    @Test
+    public void test_emptyAndSparse() {
+        assertNull(new CompletedTestIndex(new ArrayList<>()).find(0, 0, 0));
+
+        // Values too far apart for the dense array
+        CompletedTest low = new CompletedTest(0, 0, 0, 100);
+        CompletedTest high = new CompletedTest(Integer.MAX_VALUE / 2, 7, 3, 200);
+        CompletedTestIndex index = new CompletedTestIndex(Arrays.asList(low, high));
+        assertSame(low, index.find(0, 0, 0));
+        assertSame(high, index.find(Integer.MAX_VALUE / 2, 7, 3));
+        assertNull(index.find(1, 0, 0));
+    }
+
+    @Test
+    public void test_keysDoNotCollide() {
+        // These would share a key if day and session were packed into 16 bits each
+        CompletedTest test = new CompletedTest(1, 0, 0, 100);
+        CompletedTest largeDay = new CompletedTest(1, 65536, 0, 200);
+        CompletedTest negativeSession = new CompletedTest(1, 0, -65536, 300);
+        CompletedTestIndex index = new CompletedTestIndex(
+                Arrays.asList(test, largeDay, negativeSession));
+        assertSame(test, index.find(1, 0, 0));
+        assertSame(largeDay, index.find(1, 65536, 0));
+        assertSame(negativeSession, index.find(1, 0, -65536));
+        assertNull(index.find(1, 65536, -65536));
+    }
+
+    @Test
+    public void test_fullIntRange() {
+        // The ranges of these values overflow an Int
+        CompletedTest low = new CompletedTest(Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE, 100);
+        CompletedTest high = new CompletedTest(Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE, 200);
+        CompletedTestIndex index = new CompletedTestIndex(Arrays.asList(low, high));
+        assertSame(low, index.find(Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE));
+        assertSame(high, index.find(Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE));
+        assertNull(index.find(0, 0, 0));
+    }
+
+    private CompletedTest firstOrNull(List<CompletedTest> tests, int week, int day, int session) {
+        for (CompletedTest test : tests) {
+            if (test.week == week && test.day == day && test.session == session) {
+                return test;
+            }
+        }
+        return null;
+    }
+}
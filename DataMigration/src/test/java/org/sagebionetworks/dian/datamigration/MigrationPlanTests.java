@@ -0,0 +1,260 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright 2021  Sage Bionetworks. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1.  Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2.  Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *
+ * 3.  Neither the name of the copyright holder(s) nor the names of any contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission. No license is granted to the trademarks of
+ * the copyright holders even if such marks are included in this software.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.sagebionetworks.dian.datamigration;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.joda.time.DateTime;
+import org.junit.Test;
+import org.sagebionetworks.bridge.rest.RestUtils;
+import org.sagebionetworks.bridge.rest.model.AdherenceRecord;
+import org.sagebionetworks.bridge.rest.model.SignUp;
+import org.sagebionetworks.bridge.rest.model.StudyActivityEventList;
+import org.sagebionetworks.bridge.rest.model.StudyParticipant;
+import org.sagebionetworks.bridge.rest.model.Timeline;
+import org.sagebionetworks.dian.datamigration.tools.adherence.SageScheduleController;
+import org.sagebionetworks.dian.datamigration.tools.schedulev2.ScheduleV2Migration;
+import org.sagebionetworks.dian.datamigration.tools.schedulev2.StudyTimelineCache;
+import org.sagebionetworks.dian.datamigration.tools.schedulev2.V2MigrationEngine;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MigrationPlanTests {
+
+    private BridgeClientContext createPlanningContext(MigrationPlan plan) {
+        // Without any APIs, anything that is sent to Bridge fails the test
+        BridgeClientContext context = new BridgeClientContext("dian-validation",
+                null, null, null, null, null, null, null,
+                BridgeResponseCache.disabled(), ReportChangeDetector.off());
+        context.plan = plan;
+        return context;
+    }
+
+    @Test
+    public void test_isRequested() {
+        assertTrue(MigrationPlan.isRequested(new String[] { "report.csv", "--plan" }));
+        assertFalse(MigrationPlan.isRequested(new String[] { }));
+        assertFalse(MigrationPlan.isRequested(new String[] { "plan" }));
+    }
+
+    @Test
+    public void test_writesAreCounted() throws IOException {
+        MigrationPlan plan = new MigrationPlan(100L);
+        BridgeClientContext context = createPlanningContext(plan);
+
+        BridgeJavaSdkUtil.<Void>withContext(context, () -> {
+            SignUp signUp = new SignUp().externalIds(ImmutableMap.of("study1", "000001"));
+            assertEquals(BridgeJavaSdkUtil.PLANNED_USER_ID_PREFIX + "000001",
+                    BridgeJavaSdkUtil.createParticipant(signUp));
+
+            BridgeJavaSdkUtil.writeUserReport("user1",
+                    BridgeJavaSdkUtil.COMPLETED_TESTS_REPORT_ID, "{\"completed\":[]}");
+            BridgeJavaSdkUtil.writeUserReport("user2",
+                    BridgeJavaSdkUtil.COMPLETED_TESTS_REPORT_ID, "{\"completed\":[]}");
+            BridgeJavaSdkUtil.updateStudyBurst("user1", "study1",
+                    "timeline_retrieved", DateTime.now(), "America/Chicago");
+
+            List<AdherenceRecord> records = new ArrayList<>();
+            for (int i = 0; i < AdherenceBatchUploader.START_BATCH_SIZE + 1; i++) {
+                records.add(new AdherenceRecord());
+            }
+            BridgeJavaSdkUtil.updateAdherence("user1", "study1", records);
+            // Nothing to upload is not a batch
+            BridgeJavaSdkUtil.updateAdherence("user2", "study1", new ArrayList<>());
+
+            // Updates in a unit of work are merged into one
+            StudyParticipant participant = new StudyParticipant();
+            participant.setId("user1");
+            participant.setAttributes(ImmutableMap.of("ARC_ID", "000001", "IS_MIGRATED", "false"));
+            BridgeJavaSdkUtil.beginParticipantUpdates(participant);
+            BridgeJavaSdkUtil.markDeviceIdAccountAsMigrated(participant);
+            BridgeJavaSdkUtil.markDeviceIdAccountAsMigrated(participant);
+            BridgeJavaSdkUtil.flushParticipantUpdates("user1");
+
+            // Writes that can't be planned are refused, instead of sent
+            try {
+                BridgeJavaSdkUtil.manuallyMigrateUser("device-id");
+                fail("Manual migrations should not run while planning");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+            return null;
+        });
+
+        assertEquals(1, plan.getMutationCount(MigrationPlan.Mutation.CREATE_PARTICIPANT));
+        assertEquals(2, plan.getMutationCount(MigrationPlan.Mutation.WRITE_REPORT));
+        assertEquals(2, plan.getUserCount(MigrationPlan.Mutation.WRITE_REPORT));
+        assertEquals(1, plan.getMutationCount(MigrationPlan.Mutation.BURST_EVENT));
+        assertEquals(2, plan.getMutationCount(MigrationPlan.Mutation.ADHERENCE_BATCH));
+        assertEquals(1, plan.getUserCount(MigrationPlan.Mutation.ADHERENCE_BATCH));
+        assertEquals(1, plan.getMutationCount(MigrationPlan.Mutation.UPDATE_PARTICIPANT));
+        assertEquals(0, plan.getMutationCount(MigrationPlan.Mutation.DELETE_REPORT));
+    }
+
+    @Test
+    public void test_plannedParticipantReportsAreNotCompared() throws IOException {
+        MigrationPlan plan = new MigrationPlan(100L);
+        // Comparing reads the report from Bridge, which has no APIs here
+        BridgeClientContext context = new BridgeClientContext("dian-validation",
+                null, null, null, null, null, null, null, BridgeResponseCache.disabled(),
+                new ReportChangeDetector(ReportChangeDetector.Mode.READ_COMPARE, null));
+        context.plan = plan;
+
+        BridgeJavaSdkUtil.<Void>withContext(context, () -> {
+            SignUp signUp = new SignUp().externalIds(ImmutableMap.of("study1", "000001"));
+            String userId = BridgeJavaSdkUtil.createParticipant(signUp);
+            HmDataModel.HmUserData data = new HmDataModel.HmUserData();
+            data.completedTests = new HmDataModel.CompletedTestList();
+            BridgeJavaSdkUtil.writeUserReports(userId, data);
+            return null;
+        });
+
+        assertEquals(1, plan.getMutationCount(MigrationPlan.Mutation.WRITE_REPORT));
+        assertEquals(0, plan.getReadCount());
+    }
+
+    /**
+     * @return a snapshot of participant 000050, enrolled in studyId, whose schedule was never created
+     */
+    static CohortSnapshot createUnmigratedSnapshot(String studyId) throws IOException {
+        Path testFolder = Paths.get("src", "test", "resources", "bridge2MigrationTests");
+        // The study's timeline, with the event IDs that the migration publishes
+        String timelineJson = PathsHelper.readFile(testFolder.resolve("000050_V2_Schedule.json"))
+                .replace("\"timeline_retrieved\"",
+                        "\"" + SageScheduleController.ACTIVITY_EVENT_CREATE_SCHEDULE + "\"")
+                .replace("timeline_retrieved_burst",
+                        "custom_" + SageScheduleController.ACTIVITY_EVENT_CREATE_SCHEDULE + "_burst");
+
+        CohortSnapshot snapshot = new CohortSnapshot();
+        snapshot.bridgeId = "dian-validation";
+        snapshot.studyTimelines.put(studyId, RestUtils.GSON.fromJson(timelineJson, Timeline.class));
+
+        StudyParticipant participant = new StudyParticipant();
+        participant.setId("user1");
+        participant.setStudyIds(Collections.singletonList(studyId));
+        participant.setAttributes(ImmutableMap.of("ARC_ID", "000050", "IS_MIGRATED", "false"));
+        CohortSnapshot.ParticipantData data = new CohortSnapshot.ParticipantData();
+        data.participant = participant;
+        data.reports.put(BridgeJavaSdkUtil.TEST_SCHEDULE_REPORT_ID,
+                PathsHelper.readFile(testFolder.resolve("000050_V1_Schedule.json")));
+        data.reports.put(BridgeJavaSdkUtil.AVAILABILITY_REPORT_ID,
+                PathsHelper.readFile(testFolder.resolve("000050_Availability.json")));
+        data.reports.put(BridgeJavaSdkUtil.COMPLETED_TESTS_REPORT_ID, "{\"completed\":[" +
+                "{\"week\":0,\"day\":1,\"session\":0,\"completedOn\":1655996900}," +
+                "{\"week\":0,\"day\":1,\"session\":1,\"completedOn\":1656006600}]}");
+        // The participant has no activity events, because their schedule was never created
+        data.events.put(studyId, RestUtils.GSON.fromJson(
+                "{\"items\":[]}", StudyActivityEventList.class));
+        snapshot.participants.put("000050", data);
+        return snapshot;
+    }
+
+    @Test
+    public void test_plansUnmigratedParticipant() throws IOException {
+        CohortSnapshot snapshot = createUnmigratedSnapshot("study1");
+        MigrationPlan plan = new MigrationPlan(100L);
+        BridgeClientContext context = BridgeClientContext.fromSnapshot(snapshot);
+        context.plan = plan;
+
+        // Migrated like ScheduleV2Migration does, with the context bound to the participant's thread
+        StudyTimelineCache timelineCache = new StudyTimelineCache();
+        List<V2MigrationEngine.Failure> failureList = new V2MigrationEngine(1, 1).run(context,
+                ImmutableMap.<String, Collection<String>>of("study1", Collections.singletonList("000050")),
+                (studyId, arcId) -> ScheduleV2Migration.migrateParticipant(studyId, arcId, timelineCache));
+        assertTrue(failureList.isEmpty() ? "" : failureList.get(0).getError().toString(),
+                failureList.isEmpty());
+
+        // The schedule, and each of the 10 study bursts
+        assertEquals(11, plan.getMutationCount(MigrationPlan.Mutation.BURST_EVENT));
+        // Adherence records are created from the planned events, as they would be after a real run
+        assertEquals(1, plan.getMutationCount(MigrationPlan.Mutation.ADHERENCE_BATCH));
+        assertEquals(1, plan.getMutationCount(MigrationPlan.Mutation.UPDATE_PARTICIPANT));
+    }
+
+    @Test
+    public void test_parseLatency() {
+        assertEquals(250L, MigrationPlan.parseLatency("250"));
+        for (String latency : new String[] { "-1", "fast", "1.5" }) {
+            try {
+                MigrationPlan.parseLatency(latency);
+                fail("Latency " + latency + " should not be accepted");
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage().contains(MigrationPlan.ENV_PLAN_WRITE_LATENCY_MS));
+            }
+        }
+    }
+
+    @Test
+    public void test_estimateMillis() {
+        MigrationPlan plan = new MigrationPlan(null);
+        // Nothing has been timed yet
+        assertNull(plan.estimateMillis(1, 10));
+
+        plan.recordLatency("getParticipant", TimeUnit.MILLISECONDS.toNanos(100));
+        plan.recordLatency("getReport", TimeUnit.MILLISECONDS.toNanos(300));
+        assertEquals(200.0, plan.writeLatencyMillis(), 0.001);
+        assertEquals(2, plan.getReadCount());
+
+        plan.record(MigrationPlan.Mutation.WRITE_REPORT, "user1", 3);
+        // 400 ms of reads, and 3 writes of 200 ms each
+        assertEquals(1000.0, plan.estimateMillis(1, 10), 0.001);
+        assertEquals(250.0, plan.estimateMillis(4, 10), 0.001);
+        // No more participants can be migrated at once than there are
+        assertEquals(500.0, plan.estimateMillis(32, 2), 0.001);
+
+        // The Synapse downloads run once, before the participants, so they are not divided
+        plan.recordSerialLatency("synapseDownload", TimeUnit.MILLISECONDS.toNanos(2000));
+        assertEquals(200.0, plan.writeLatencyMillis(), 0.001);
+        assertEquals(1, plan.getSerialCount());
+        assertEquals(3000.0, plan.estimateMillis(1, 10), 0.001);
+        assertEquals(2250.0, plan.estimateMillis(4, 10), 0.001);
+        assertTrue(plan.report("DataMigration", 10).contains("synapseDownload 1, mean 2000.0 ms"));
+
+        // The write latency can be set, instead of measured
+        MigrationPlan fixedPlan = new MigrationPlan(50L);
+        fixedPlan.record(MigrationPlan.Mutation.BURST_EVENT, "user1", 4);
+        assertEquals(200.0, fixedPlan.estimateMillis(1, 1), 0.001);
+    }
+}
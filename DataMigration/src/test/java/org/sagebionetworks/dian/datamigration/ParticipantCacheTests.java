@@ -0,0 +1,138 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright 2021  Sage Bionetworks. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1.  Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2.  Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *
+ * 3.  Neither the name of the copyright holder(s) nor the names of any contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission. No license is granted to the trademarks of
+ * the copyright holders even if such marks are included in this software.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.sagebionetworks.dian.datamigration;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sagebionetworks.bridge.rest.model.StudyParticipant;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+public class ParticipantCacheTests {
+
+    private MockParticipantCache cache;
+
+    @Before
+    public void before() {
+        cache = new MockParticipantCache(1000L, 2);
+    }
+
+    @Test
+    public void test_hitAndMiss() throws IOException {
+        StudyParticipant participant = createParticipant("userA");
+        assertNull(cache.getByExternalId("000001"));
+        cache.put("000001", participant);
+        assertEquals("userA", cache.getByExternalId("000001").getId());
+        assertEquals("userA", cache.getByUserId("userA").getId());
+        assertNull(cache.getByUserId("userB"));
+        assertEquals(2, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void test_changesToCopiesAreNotCached() throws IOException {
+        StudyParticipant participant = createParticipant("userA");
+        cache.put("000001", participant);
+        // Like a client data update that failed to be written to Bridge
+        participant.setClientData("put");
+        cache.getByExternalId("000001").setClientData("get");
+
+        StudyParticipant cached = cache.getByExternalId("000001");
+        assertNotSame(participant, cached);
+        assertNull(cached.getClientData());
+    }
+
+    @Test
+    public void test_ttlExpiration() throws IOException {
+        cache.put("000001", createParticipant("userA"));
+        cache.currentTime = 999L;
+        assertNotNull(cache.getByExternalId("000001"));
+        cache.currentTime = 1000L;
+        assertNull(cache.getByExternalId("000001"));
+        assertNull(cache.getByUserId("userA"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void test_leastRecentlyUsedEviction() throws IOException {
+        cache.put("000001", createParticipant("userA"));
+        cache.put("000002", createParticipant("userB"));
+        // Touch the first participant, so the second one is least recently used
+        assertNotNull(cache.getByExternalId("000001"));
+        cache.put("000003", createParticipant("userC"));
+
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+        assertNotNull(cache.getByExternalId("000001"));
+        assertNull(cache.getByExternalId("000002"));
+        assertNull(cache.getByUserId("userB"));
+        assertNotNull(cache.getByExternalId("000003"));
+    }
+
+    @Test
+    public void test_invalidate() throws IOException {
+        cache.put("000001", createParticipant("userA"));
+        cache.put("000002", createParticipant("userB"));
+        cache.invalidateUserId("userA");
+        cache.invalidateExternalId("000002");
+        assertNull(cache.getByExternalId("000001"));
+        assertNull(cache.getByUserId("userB"));
+        assertEquals(0, cache.size());
+    }
+
+    private StudyParticipant createParticipant(String userId) throws IOException {
+        // Work-around for BridgeJavaSdk not exposing user ID
+        return new ObjectMapper().readValue(
+                "{\"id\":\"" + userId + "\"}", StudyParticipant.class);
+    }
+
+    private static class MockParticipantCache extends ParticipantCache {
+        long currentTime = 0L;
+
+        MockParticipantCache(long ttlMillis, int maxSize) {
+            super(ttlMillis, maxSize);
+        }
+
+        @Override
+        protected long now() {
+            return currentTime;
+        }
+    }
+}
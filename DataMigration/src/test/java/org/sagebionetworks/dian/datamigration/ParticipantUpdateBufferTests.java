@@ -0,0 +1,142 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright 2021  Sage Bionetworks. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1.  Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2.  Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *
+ * 3.  Neither the name of the copyright holder(s) nor the names of any contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission. No license is granted to the trademarks of
+ * the copyright holders even if such marks are included in this software.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.sagebionetworks.dian.datamigration;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableMap;
+import com.google.gson.JsonPrimitive;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sagebionetworks.bridge.rest.model.StudyParticipant;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ParticipantUpdateBufferTests {
+
+    private ParticipantUpdateBuffer buffer;
+
+    @Before
+    public void before() {
+        buffer = new ParticipantUpdateBuffer();
+    }
+
+    @Test
+    public void test_notOpen() throws IOException {
+        assertFalse(buffer.isOpen("userA"));
+        buffer.begin(createParticipant("userA"));
+        assertTrue(buffer.isOpen("userA"));
+        assertFalse(buffer.isOpen("userB"));
+        assertNull(buffer.end("userA"));
+        assertFalse(buffer.isOpen("userA"));
+    }
+
+    @Test
+    public void test_mergesAttributesAndClientData() throws IOException {
+        buffer.begin(createParticipant("userA"));
+
+        StudyParticipant existing = createParticipant("userA");
+        existing.setAttributes(ImmutableMap.of("ARC_ID", "000001", "IS_MIGRATED", "false"));
+        existing.setClientData(new JsonPrimitive("first"));
+        buffer.stageParticipant(existing);
+
+        buffer.stageAttributes("userA", ImmutableMap.of("ARC_ID", "000001", "IS_MIGRATED", "true"));
+
+        StudyParticipant newer = createParticipant("userA");
+        newer.setAttributes(ImmutableMap.of("ARC_ID", "000001", "IS_MIGRATED", "false"));
+        newer.setClientData(new JsonPrimitive("second"));
+        buffer.stageParticipant(newer);
+
+        // Staging a full participant again should not undo the newer attribute update
+        buffer.stageAttributes("userA", ImmutableMap.of("ARC_ID", "000001", "IS_MIGRATED", "true"));
+
+        StudyParticipant update = buffer.end("userA");
+        assertSame(newer, update);
+        assertEquals("true", update.getAttributes().get("IS_MIGRATED"));
+        assertEquals(new JsonPrimitive("second"), update.getClientData());
+        assertNull(buffer.end("userA"));
+        assertEquals("Participant updates staged 4, sent 1, unchanged 0", buffer.statsString());
+    }
+
+    @Test
+    public void test_fullParticipantReplacesStagedAttributes() throws IOException {
+        buffer.begin(createParticipant("userA"));
+        buffer.stageAttributes("userA", ImmutableMap.of("IS_MIGRATED", "true"));
+
+        // Written after the attributes were staged, so its attributes are newer
+        StudyParticipant newer = createParticipant("userA");
+        newer.setAttributes(ImmutableMap.of("IS_MIGRATED", "false"));
+        newer.setClientData(new JsonPrimitive("clientData"));
+        buffer.stageParticipant(newer);
+
+        StudyParticipant update = buffer.end("userA");
+        assertEquals(ImmutableMap.of("IS_MIGRATED", "false"), update.getAttributes());
+    }
+
+    @Test
+    public void test_unchangedIsNotSent() throws IOException {
+        StudyParticipant original = createParticipant("userA");
+        original.setAttributes(ImmutableMap.of("IS_MIGRATED", "true"));
+        original.setClientData(new JsonPrimitive("clientData"));
+        buffer.begin(original);
+
+        // The same attributes and client data the participant already has
+        buffer.stageAttributes("userA", ImmutableMap.of("IS_MIGRATED", "true"));
+        original.setClientData(new JsonPrimitive("clientData"));
+        buffer.stageParticipant(original);
+
+        assertNull(buffer.end("userA"));
+        assertFalse(buffer.isOpen("userA"));
+        assertEquals("Participant updates staged 2, sent 0, unchanged 1", buffer.statsString());
+    }
+
+    @Test
+    public void test_attributesOnly() throws IOException {
+        buffer.begin(createParticipant("userA"));
+        buffer.stageAttributes("userA", ImmutableMap.of("IS_MIGRATED", "true"));
+        StudyParticipant update = buffer.end("userA");
+        assertEquals(ImmutableMap.of("IS_MIGRATED", "true"), update.getAttributes());
+        assertNull(update.getClientData());
+    }
+
+    private StudyParticipant createParticipant(String userId) throws IOException {
+        return new ObjectMapper().readValue(
+                "{\"id\":\"" + userId + "\"}", StudyParticipant.class);
+    }
+}
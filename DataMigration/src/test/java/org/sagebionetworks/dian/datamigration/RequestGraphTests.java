@@ -0,0 +1,118 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright 2021  Sage Bionetworks. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1.  Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2.  Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *
+ * 3.  Neither the name of the copyright holder(s) nor the names of any contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission. No license is granted to the trademarks of
+ * the copyright holders even if such marks are included in this software.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.sagebionetworks.dian.datamigration;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RequestGraphTests {
+
+    @Test
+    public void test_independentRequestsRunConcurrently() throws IOException {
+        // Both requests must be running at the same time for either of them to finish
+        CountDownLatch latch = new CountDownLatch(2);
+        RequestGraph graph = new RequestGraph();
+        graph.add("a", () -> awaitLatch(latch, "a"));
+        graph.add("b", () -> awaitLatch(latch, "b"));
+        graph.run();
+        assertEquals("a", graph.get("a"));
+        assertEquals("b", graph.get("b"));
+    }
+
+    @Test
+    public void test_dependenciesRunFirst() throws IOException {
+        AtomicInteger order = new AtomicInteger(0);
+        RequestGraph graph = new RequestGraph();
+        graph.add("a", order::incrementAndGet);
+        graph.add("b", order::incrementAndGet, "a");
+        graph.add("c", () -> order.incrementAndGet() + 10, "b");
+        graph.run();
+        assertEquals(1, (int)graph.get("a"));
+        assertEquals(2, (int)graph.get("b"));
+        assertEquals(13, (int)graph.get("c"));
+    }
+
+    @Test
+    public void test_failureSkipsDependents() {
+        AtomicInteger dependentCalls = new AtomicInteger(0);
+        RequestGraph graph = new RequestGraph();
+        graph.add("a", () -> { throw new IOException("a failed"); });
+        graph.add("b", dependentCalls::incrementAndGet, "a");
+        graph.add("c", () -> "c");
+        try {
+            graph.run();
+            fail("Expected the failure of request a to be thrown");
+        } catch (IOException e) {
+            assertEquals("a failed", e.getMessage());
+        }
+        assertEquals(0, dependentCalls.get());
+        assertEquals("c", graph.get("c"));
+    }
+
+    @Test
+    public void test_nestedGraphsFailFast() {
+        RequestGraph graph = new RequestGraph();
+        graph.add("outer", () -> {
+            RequestGraph inner = new RequestGraph();
+            inner.add("inner", () -> "inner");
+            inner.run();
+            return "outer";
+        });
+        try {
+            graph.run();
+            fail("Expected running a graph from a request of another graph to fail");
+        } catch (IllegalStateException e) {
+            // expected
+        } catch (IOException e) {
+            fail("Expected an IllegalStateException, not " + e);
+        }
+    }
+
+        private String awaitLatch(CountDownLatch latch, String value) throws IOException {
+        latch.countDown();
+        try {
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+        return value;
+    }
+}
@@ -111,6 +111,48 @@ public class SageEarningsControllerTests {
         controller.studyBurstDays.put(3, previousThirdCycleStart);
     }
 
+    @Test
+    fun testPastPeriodChanges() {
+        // The goals of past study periods are remembered,
+        // but they must be re-calculated when their completed tests change
+        controller.overridingNow = startDate().plusDays(188).withTimeAtStartOfDay().plusMinutes(1)
+        controller.completedTests = listOf(
+            createTest(0, 0),
+            createTest(0, 1, 0), createTest(0, 1, 1), createTest(0, 1, 2),
+            createTest(25, 0, 0))
+
+        var details = controller.getCurrentEarningsDetails()
+        assertEquals("$1.50", details?.cycles?.get(0)?.total)
+        assertEquals("$0.50", details?.cycles?.get(1)?.total)
+        assertEquals("$2.00", controller.calculateTotalEarnings())
+        assertEquals("$2.00", controller.calculateTotalEarnings())
+
+        controller.completedTests = listOf(
+            createTest(0, 0),
+            createTest(0, 1, 0), createTest(0, 1, 1), createTest(0, 1, 2), createTest(0, 1, 3),
+            createTest(25, 0, 0))
+
+        // 4 sessions at $0.50 each and the 4 of 4 goal at $1
+        details = controller.getCurrentEarningsDetails()
+        assertEquals("$3.00", details?.cycles?.get(0)?.total)
+        assertEquals("$0.50", details?.cycles?.get(1)?.total)
+        assertEquals("$3.50", controller.calculateTotalEarnings())
+        assertEquals(350L, controller.getCurrentEarningsOverview()?.total_earnings_cents)
+        assertEquals(300L, details?.cycles?.get(0)?.total_cents)
+    }
+
+    @Test
+    fun testCentsFormatter() {
+        // Must match the String.format("$%.2f") the earnings strings were made with
+        val centsList = listOf(0L, 5L, 50L, 99L, 100L, 105L, 2550L, 100_000L, 100_001L, 12_345_678L, -50L)
+        centsList.forEach { cents ->
+            val expected = String.format(java.util.Locale.US, "$%.2f", cents / 100.0)
+            assertEquals(expected, CentsFormatter.format(cents))
+            // Cached strings are the same
+            assertEquals(expected, CentsFormatter.format(cents))
+        }
+    }
+
     @Test
     fun testDay0() {
         // User should not get earnings for day 0, which is the tutorial
@@ -35,6 +35,7 @@ package org.sagebionetworks.dian.datamigration;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
 import org.joda.time.LocalTime;
 import org.joda.time.format.DateTimeFormatter;
 import org.junit.After;
@@ -44,6 +45,8 @@ import org.sagebionetworks.dian.datamigration.tools.adherence.SageScheduleContro
 import org.sagebionetworks.dian.datamigration.tools.adherence.SageV1Schedule;
 import org.sagebionetworks.dian.datamigration.tools.adherence.SageV1StudyBurst;
 import org.sagebionetworks.dian.datamigration.tools.adherence.SageV2Availability;
+import org.sagebionetworks.dian.datamigration.tools.adherence.SessionTimeRandom;
+import org.sagebionetworks.dian.datamigration.tools.adherence.TimezoneResolver;
 import org.sagebionetworks.dian.datamigration.tools.rescheduler.TestSchedule;
 import org.sagebionetworks.dian.datamigration.tools.schedulev2.ScheduleV2Migration;
 import org.sagebionetworks.dian.datamigration.tools.schedulev2.WakeSleepSchedule;
@@ -55,14 +58,19 @@ import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 public class SageScheduleControllerTests {
@@ -507,4 +515,42 @@ public class SageScheduleControllerTests {
                     controller.convertToIANATimezone(rawTimezone, null), expectedTimezone);
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testTimezoneResolver() {
+        assertEquals("US/Central", TimezoneResolver.INSTANCE.ianaName("Central Standard Time (current)"));
+        assertNull(TimezoneResolver.INSTANCE.ianaName(null));
+
+        DateTime dateTime = SageScheduleController.Companion.createDateTime(Dec_17_2021, "US/Central");
+        // Central Standard Time in December
+        assertEquals(-6 * 60 * 60 * 1000, dateTime.getZone().getOffset(dateTime));
+        assertSame(dateTime.getZone(), TimezoneResolver.INSTANCE.dateTimeZone("US/Central"));
+        assertFalse(TimezoneResolver.INSTANCE.unresolvedNames().contains("US/Central"));
+
+        // Unknown names fall back to UTC, and are reported
+        DateTimeZone unknown = TimezoneResolver.INSTANCE.dateTimeZone("Not A Time Zone");
+        assertEquals(0, unknown.getOffset(dateTime));
+        assertTrue(TimezoneResolver.INSTANCE.unresolvedNames().contains("Not A Time Zone"));
+    }
+
+    @Test
+    public void testSeededRandomSessionTimes() {
+        SageV2Availability availability = new SageV2Availability("07:00", "23:00");
+        List<String> first = availability.randomSessionTimeStrings(
+                SessionTimeRandom.INSTANCE.forArcId("000001", 42L));
+        List<String> second = availability.randomSessionTimeStrings(
+                SessionTimeRandom.INSTANCE.forArcId("000001", 42L));
+        assertEquals(first, second);
+
+        // Every day of a participant must not get the same times
+        Random random = SessionTimeRandom.INSTANCE.forArcId("000001", 42L);
+        Set<List<String>> days = new HashSet<>();
+        for (int i = 0; i < 10; i++) {
+            days.add(availability.randomSessionTimeStrings(random));
+        }
+        assertTrue(days.size() > 1);
+
+        // Without a seed, the thread's shared generator is used
+        assertSame(ThreadLocalRandom.current(), SessionTimeRandom.INSTANCE.forArcId("000001", null));
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright 2021  Sage Bionetworks. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1.  Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2.  Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *
+ * 3.  Neither the name of the copyright holder(s) nor the names of any contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission. No license is granted to the trademarks of
+ * the copyright holders even if such marks are included in this software.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.sagebionetworks.dian.datamigration;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sagebionetworks.dian.datamigration.tools.schedulev2.ScheduleConversionTool;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ScheduleConversionToolTests {
+
+    private final Path rootFileTestFolder = Paths.get("src", "test", "resources")
+            .resolve("bridge2MigrationTests");
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void test_convertAll() throws IOException {
+        Path scheduleDir = tempFolder.newFolder("all_schedules").toPath();
+        Path availabilityDir = tempFolder.newFolder("all_availability").toPath();
+
+        Files.copy(rootFileTestFolder.resolve("000050_V1_Schedule.json"),
+                scheduleDir.resolve("000050.json"));
+        Files.copy(rootFileTestFolder.resolve("Malformed_V1_Schedule.json"),
+                scheduleDir.resolve("000051.json"));
+        Files.write(scheduleDir.resolve("000052.json"), "not json".getBytes());
+        Files.copy(rootFileTestFolder.resolve("000050_Availability.json"),
+                availabilityDir.resolve("000050.json"));
+
+        ScheduleConversionTool.Summary summary =
+                ScheduleConversionTool.convertAll(scheduleDir, availabilityDir, 4);
+
+        assertEquals(3, summary.scheduleCount);
+        assertEquals(1, summary.scheduleErrorCount);
+        assertEquals(Integer.valueOf(2), summary.burstCountMap.get(10));
+        assertEquals(0, summary.missingTimezoneCount);
+        assertTrue(summary.unknownTimezoneMap.isEmpty());
+
+        assertEquals(1, summary.availabilityCount);
+        assertEquals(2, summary.availabilityMissingCount);
+        assertEquals(0, summary.availabilityErrorCount);
+
+        // The summary is the same no matter how many threads convert the schedules
+        assertEquals(summary.toString(),
+                ScheduleConversionTool.convertAll(scheduleDir, availabilityDir, 1).toString());
+    }
+}
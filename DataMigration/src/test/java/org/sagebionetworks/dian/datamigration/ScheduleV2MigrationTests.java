@@ -38,9 +38,12 @@ import org.joda.time.DateTime;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.sagebionetworks.bridge.rest.RestUtils;
 import org.sagebionetworks.bridge.rest.model.AdherenceRecord;
+import org.sagebionetworks.bridge.rest.model.Schedule2;
 import org.sagebionetworks.bridge.rest.model.StudyActivityEvent;
 import org.sagebionetworks.bridge.rest.model.StudyActivityEventList;
+import org.sagebionetworks.bridge.rest.model.ScheduledSession;
 import org.sagebionetworks.bridge.rest.model.Timeline;
 import org.sagebionetworks.dian.datamigration.tools.adherence.CompletedTestV2;
 import org.sagebionetworks.dian.datamigration.tools.adherence.SageEarningsControllerV2;
@@ -49,21 +52,33 @@ import org.sagebionetworks.dian.datamigration.tools.adherence.SageUserClientData
 import org.sagebionetworks.dian.datamigration.tools.adherence.SageV1Schedule;
 import org.sagebionetworks.dian.datamigration.tools.adherence.SageV2Availability;
 import org.sagebionetworks.dian.datamigration.tools.adherence.ScheduledSessionStart;
+import org.sagebionetworks.dian.datamigration.tools.adherence.TimelineIndex;
 import org.sagebionetworks.dian.datamigration.tools.schedulev2.ScheduleV2Migration;
+import org.sagebionetworks.dian.datamigration.tools.schedulev2.StudyTimelineCache;
+import org.sagebionetworks.dian.datamigration.tools.schedulev2.V2MigrationEngine;
 
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 public class ScheduleV2MigrationTests {
@@ -240,4 +255,98 @@ public class ScheduleV2MigrationTests {
             assertEquals(0, diff.size());
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    public void test_participantIsMigratedInTheStudyTheyAreEnrolledIn() throws IOException {
+        // The participant left study1 for study2, and both studies still list their Arc ID
+        CohortSnapshot snapshot = MigrationPlanTests.createUnmigratedSnapshot("study2");
+        MigrationPlan plan = new MigrationPlan(100L);
+        BridgeClientContext context = BridgeClientContext.fromSnapshot(snapshot);
+        context.plan = plan;
+
+        Map<String, Collection<String>> studyArcIds = new LinkedHashMap<>();
+        studyArcIds.put("study1", Collections.singletonList("000050"));
+        studyArcIds.put("study2", Collections.singletonList("000050"));
+
+        StudyTimelineCache timelineCache = new StudyTimelineCache();
+        List<V2MigrationEngine.Failure> failureList = new V2MigrationEngine(1, 1).run(context,
+                studyArcIds, (studyId, arcId) ->
+                        ScheduleV2Migration.migrateParticipant(studyId, arcId, timelineCache));
+        assertTrue(failureList.isEmpty() ? "" : failureList.get(0).getError().toString(),
+                failureList.isEmpty());
+
+        // Migrated once, in study2, instead of skipped as withdrawn from study1
+        assertEquals(11, plan.getMutationCount(MigrationPlan.Mutation.BURST_EVENT));
+        assertEquals(1, plan.getMutationCount(MigrationPlan.Mutation.UPDATE_PARTICIPANT));
+    }
+
+    @Test
+    public void test_timelineIndexMatchesScheduleLookups() throws IOException {
+        Timeline timeline = gson.fromJson(
+                PathsHelper.readFile(scheduleV2NewJson), Timeline.class);
+        TimelineIndex index = new TimelineIndex(timeline.getSchedule());
+
+        for (ScheduledSession session : timeline.getSchedule()) {
+            List<ScheduledSession> allSessionsOfDay = controller.allSessionsOfDay(
+                    timeline.getSchedule(), session.getStartEventId(), session.getStartDay());
+            assertEquals(allSessionsOfDay,
+                    index.sessionsOfDay(session.getStartEventId(), session.getStartDay()));
+            assertEquals(controller.sessionOfDayIdx(session, allSessionsOfDay),
+                    index.sessionOfDayIdx(session));
+        }
+        assertEquals(organizeByDaySortedLinear(timeline.getSchedule()),
+                index.getDaysSortedByStartTime());
+    }
+
+    @Test
+    public void test_timelineCacheDownloadsEditedSchedule() throws IOException {
+        CohortSnapshot snapshot = new CohortSnapshot();
+        snapshot.bridgeId = "dian-validation";
+        snapshot.studySchedules.put("study1", RestUtils.GSON.fromJson(
+                "{\"guid\":\"schedule1\",\"modifiedOn\":\"2022-06-01T00:00:00.000Z\"}", Schedule2.class));
+        snapshot.studyTimelines.put("study1", RestUtils.GSON.fromJson(
+                PathsHelper.readFile(scheduleV2Json), Timeline.class));
+        BridgeClientContext context = BridgeClientContext.fromSnapshot(snapshot);
+
+        // Recheck the schedule's version every time, instead of every few minutes
+        StudyTimelineCache timelineCache = new StudyTimelineCache(0L);
+        BridgeJavaSdkUtil.<Void>withContext(context, () -> {
+            TimelineIndex index = timelineCache.getTimelineIndex("user1", "study1");
+            String version = timelineCache.getScheduleVersion("study1");
+            assertNotNull(version);
+            // The schedule has not changed, so its Timeline is served from the cache
+            assertSame(index, timelineCache.getTimelineIndex("user2", "study1"));
+
+            // The schedule is edited during the run
+            snapshot.studySchedules.put("study1", RestUtils.GSON.fromJson(
+                    "{\"guid\":\"schedule1\",\"modifiedOn\":\"2022-07-01T00:00:00.000Z\"}", Schedule2.class));
+            snapshot.studyTimelines.put("study1", RestUtils.GSON.fromJson(
+                    PathsHelper.readFile(scheduleV2NewJson), Timeline.class));
+            TimelineIndex editedIndex = timelineCache.getTimelineIndex("user3", "study1");
+            assertNotSame(index, editedIndex);
+            assertNotEquals(version, timelineCache.getScheduleVersion("study1"));
+            assertSame(editedIndex, timelineCache.getTimelineIndex("user4", "study1"));
+            return null;
+        });
+        assertEquals("Timeline cache hits 2, misses 2", timelineCache.statsString());
+    }
+
+    /**
+     * How SageScheduleController.organizeByDaySorted grouped sessions before TimelineIndex,
+     * kept as an oracle for the index
+     */
+    private List<List<ScheduledSession>> organizeByDaySortedLinear(List<ScheduledSession> sessionList) {
+        Map<Integer, List<ScheduledSession>> sessionMap = new TreeMap<>();
+        for (ScheduledSession session : sessionList) {
+            int mapIdx = ((controller.studyBurstIndex(session.getStartEventId()) + 1) * 7) +
+                    session.getStartDay();
+            sessionMap.computeIfAbsent(mapIdx, k -> new ArrayList<>()).add(session);
+        }
+        List<List<ScheduledSession>> days = new ArrayList<>();
+        for (List<ScheduledSession> daySessions : sessionMap.values()) {
+            daySessions.sort(Comparator.comparing(ScheduledSession::getStartTime));
+            days.add(daySessions);
+        }
+        return days;
+    }
+}
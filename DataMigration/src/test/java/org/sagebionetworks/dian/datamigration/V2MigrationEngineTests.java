@@ -0,0 +1,137 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright 2021  Sage Bionetworks. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1.  Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2.  Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *
+ * 3.  Neither the name of the copyright holder(s) nor the names of any contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission. No license is granted to the trademarks of
+ * the copyright holders even if such marks are included in this software.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.sagebionetworks.dian.datamigration;
+
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Test;
+import org.sagebionetworks.dian.datamigration.tools.schedulev2.V2MigrationEngine;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class V2MigrationEngineTests {
+
+    private final BridgeClientContext context = new BridgeClientContext("test-app",
+            null, null, null, null, null, null, null,
+            BridgeResponseCache.disabled(), ReportChangeDetector.off());
+
+    @Test
+    public void test_participantInTwoStudiesIsMigratedOnce() {
+        Map<String, Collection<String>> studyArcIds = new LinkedHashMap<>();
+        studyArcIds.put("study1", ImmutableList.of("000001", "000002"));
+        studyArcIds.put("study2", ImmutableList.of("000002", "000003"));
+
+        Map<String, String> migratedStudies = new ConcurrentHashMap<>();
+        AtomicInteger migratedCount = new AtomicInteger(0);
+        List<V2MigrationEngine.Failure> failureList = new V2MigrationEngine(4, 4)
+                .run(context, studyArcIds, (studyId, arcId) -> {
+                    migratedCount.incrementAndGet();
+                    migratedStudies.put(arcId, studyId);
+                });
+
+        assertTrue(failureList.isEmpty());
+        assertEquals(3, migratedCount.get());
+        // The participant is migrated in the first study they are listed in
+        assertEquals("study1", migratedStudies.get("000002"));
+        assertEquals("study2", migratedStudies.get("000003"));
+    }
+
+    @Test
+    public void test_failuresDoNotCancelOtherParticipants() {
+        Map<String, Collection<String>> studyArcIds = new LinkedHashMap<>();
+        studyArcIds.put("study1", ImmutableList.of("000001", "000002", "000003"));
+        studyArcIds.put("study2", ImmutableList.of("000004", "000005"));
+
+        AtomicInteger migratedCount = new AtomicInteger(0);
+        // Asserting in the migration would only reach the uncaught exception handler
+        Map<String, BridgeClientContext> boundContexts = new ConcurrentHashMap<>();
+        List<V2MigrationEngine.Failure> failureList = new V2MigrationEngine(2, 1)
+                .run(context, studyArcIds, (studyId, arcId) -> {
+                    boundContexts.put(arcId, BridgeJavaSdkUtil.context());
+                    if (arcId.equals("000005") || arcId.equals("000002")) {
+                        throw new IOException("Failed " + arcId);
+                    }
+                    migratedCount.incrementAndGet();
+                });
+
+        assertEquals(3, migratedCount.get());
+        // Participants run with the app's context bound to their thread
+        assertEquals(5, boundContexts.size());
+        for (BridgeClientContext boundContext : boundContexts.values()) {
+            assertSame(context, boundContext);
+        }
+        // Failures are in the order the participants were listed
+        assertEquals(2, failureList.size());
+        assertEquals("000002", failureList.get(0).getArcId());
+        assertEquals("Failed 000002", failureList.get(0).getError().getMessage());
+        assertEquals("000005", failureList.get(1).getArcId());
+    }
+
+    @Test
+    public void test_parallelismLimits() {
+        Map<String, Collection<String>> studyArcIds = new LinkedHashMap<>();
+        studyArcIds.put("study1", ImmutableList.of("000001", "000002", "000003", "000004"));
+        studyArcIds.put("study2", ImmutableList.of("000005", "000006", "000007", "000008"));
+
+        AtomicInteger running = new AtomicInteger(0);
+        AtomicInteger maxRunning = new AtomicInteger(0);
+        Map<String, AtomicInteger> studyRunning = new LinkedHashMap<>();
+        studyRunning.put("study1", new AtomicInteger(0));
+        studyRunning.put("study2", new AtomicInteger(0));
+        AtomicInteger maxStudyRunning = new AtomicInteger(0);
+
+        List<V2MigrationEngine.Failure> failureList = new V2MigrationEngine(3, 2)
+                .run(context, studyArcIds, (studyId, arcId) -> {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    maxStudyRunning.accumulateAndGet(
+                            studyRunning.get(studyId).incrementAndGet(), Math::max);
+                    Thread.sleep(20);
+                    studyRunning.get(studyId).decrementAndGet();
+                    running.decrementAndGet();
+                });
+
+        assertTrue(failureList.isEmpty());
+        assertTrue(maxRunning.get() <= 3);
+        assertTrue(maxStudyRunning.get() <= 2);
+    }
+}
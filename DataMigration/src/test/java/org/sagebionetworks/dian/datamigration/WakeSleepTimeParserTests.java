@@ -0,0 +1,164 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright 2021  Sage Bionetworks. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1.  Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2.  Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *
+ * 3.  Neither the name of the copyright holder(s) nor the names of any contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission. No license is granted to the trademarks of
+ * the copyright holders even if such marks are included in this software.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.sagebionetworks.dian.datamigration;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.joda.time.LocalTime;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.DateTimeFormatterBuilder;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.sagebionetworks.dian.datamigration.tools.adherence.WakeSleepTimeParser;
+import org.sagebionetworks.dian.datamigration.tools.schedulev2.WakeSleepSchedule;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class WakeSleepTimeParserTests {
+
+    private final Path wakeSleepSchedulesFolder =
+            Paths.get("src", "test", "resources", "wakeSleepSchedules");
+
+    private final List<String> localeVariants = Arrays.asList(
+            "8:30 AM", "8:15 PM", "7:00 am", "7:45 pm", "6:00 a.m.", "6:00 p.m.",
+            "6:00 a. m.", "9:30 p. m.", "7:00 午前", "10:00 午後", "09:00", "18:30", "0:00");
+
+    @Test
+    public void test_matchesReplaceChain() throws IOException {
+        List<String> times = corpus();
+        assertFalse(times.isEmpty());
+        for (String time : times) {
+            assertEquals(time, referenceParse(time), WakeSleepTimeParser.INSTANCE.parseUncached(time));
+            assertEquals(time, referenceParse(time), WakeSleepTimeParser.INSTANCE.parse(time));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void test_invalidTime() {
+        WakeSleepTimeParser.INSTANCE.parse("not a time");
+    }
+
+    /**
+     * Not a pass/fail test, prints how long each parser takes over the wake sleep test corpus.
+     * The memo would make every parse after the first a lookup, so this times parseUncached.
+     * Timings are too noisy to assert on, so this only runs when it is un-ignored locally.
+     */
+    @Ignore("Benchmark, run manually")
+    @Test
+    public void test_benchmark() throws IOException {
+        List<String> times = corpus();
+        int iterations = 2000;
+
+        // Warm up both, so the JIT compiler has a chance to kick in
+        for (int i = 0; i < 100; i++) {
+            times.forEach(this::referenceParse);
+            times.forEach(WakeSleepTimeParser.INSTANCE::parseUncached);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            times.forEach(this::referenceParse);
+        }
+        long referenceNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            times.forEach(WakeSleepTimeParser.INSTANCE::parseUncached);
+        }
+        long parserNanos = System.nanoTime() - start;
+
+        long parses = (long)iterations * times.size();
+        System.out.println("Wake sleep times parsed " + parses);
+        System.out.println("Replace chain ns/parse " + (referenceNanos / parses));
+        System.out.println("WakeSleepTimeParser ns/parse " + (parserNanos / parses));
+    }
+
+    /**
+     * @return every wake and bed time in the wake sleep schedule test files, and the locale variants
+     */
+    private List<String> corpus() throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        List<String> times = new ArrayList<>(localeVariants);
+        List<Path> files;
+        try (Stream<Path> stream = Files.walk(wakeSleepSchedulesFolder)) {
+            files = stream.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+        for (Path file : files) {
+            WakeSleepSchedule schedule = mapper.readValue(
+                    PathsHelper.readFile(file), WakeSleepSchedule.class);
+            for (WakeSleepSchedule.WakeSleepData data : schedule.wakeSleepData) {
+                times.add(data.wake);
+                times.add(data.bed);
+            }
+        }
+        return times;
+    }
+
+    /**
+     * How SageScheduleController.createV2Availability used to parse each time
+     */
+    private LocalTime referenceParse(String time) {
+        DateTimeFormatter formatter = new DateTimeFormatterBuilder()
+                .appendPattern("h:mm a")
+                .toFormatter()
+                .withLocale(Locale.US);
+        DateTimeFormatter twentyFourHourFormatter = new DateTimeFormatterBuilder()
+                .appendPattern("H:mm")
+                .toFormatter()
+                .withLocale(Locale.US);
+        String str = time
+                .replace("a.m.", "AM")
+                .replace("p.m.", "PM")
+                .replace("a. m.", "AM")
+                .replace("p. m.", "PM")
+                .replace("午前", "AM")
+                .replace("午後", "PM");
+        if (str.toUpperCase(Locale.ROOT).contains("AM") ||
+                str.toUpperCase(Locale.ROOT).contains("PM")) {
+            return LocalTime.parse(str, formatter);
+        }
+        return LocalTime.parse(str, twentyFourHourFormatter);
+    }
+}